@@ -1,5 +1,11 @@
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.List;
 
 public class BPLCodeGenerator {
     private TreeNode root;
@@ -7,137 +13,87 @@ public class BPLCodeGenerator {
     private HashMap<String, String> strMap;
     private String fp = "%rbx";
     private String sp = "%rsp";
+    private Emitter emitter;
+    // the code of the function being generated, written once it is done
+    private ArrayList<Instruction> code;
+    private PeepholeOptimizer optimizer;
+    private ExpressionGenerator expressionGenerator;
 
-    public BPLCodeGenerator(String inputFileName) throws BPLParserException, BPLTypeCheckerException, BPLCodeGeneratorException {
-        BPLTypeChecker typeChecker = new BPLTypeChecker(inputFileName, false);
+    public BPLCodeGenerator(String inputFileName, Emitter emitter) throws BPLParserException, BPLTypeCheckerException, BPLCodeGeneratorException {
+        this(new BPLTypeChecker(inputFileName, false), emitter);
+    }
+
+    // runs typeChecker and writes the assembly for its tree to emitter,
+    // optimized by a PeepholeOptimizer with the default rules
+    public BPLCodeGenerator(BPLTypeChecker typeChecker, Emitter emitter) throws BPLTypeCheckerException {
+        this(typeChecker, emitter, new PeepholeOptimizer());
+    }
+
+    // as above, with each function's code optimized by optimizer, or
+    // written as generated if it is null
+    public BPLCodeGenerator(BPLTypeChecker typeChecker, Emitter emitter, PeepholeOptimizer optimizer) throws BPLTypeCheckerException {
         typeChecker.runTypeChecker();
         this.root = typeChecker.getRoot();
         this.labelNum = 0;
         this.strMap = new HashMap<String, String>();
+        this.emitter = emitter;
+        this.code = new ArrayList<Instruction>();
+        this.optimizer = optimizer;
+        this.expressionGenerator = new ExpressionGenerator();
     }
 
     public TreeNode getRoot() {
         return this.root;
     }
 
+    // the emitter is flushed at the end, and also after an error, with the
+    // code generated for the function it was in
     public void generate() throws BPLCodeGeneratorException, BPLTypeCheckerException{
-        findDepths();
         //printTree(root, 0);
-        header();
-    }
-
-    private void findDepths() {
-        TreeNode declist = root.getChildren().get(0);
-        while (declist.getKind() != TreeNodeKind.EMPTY) {
-            TreeNode dec = declist.getChildren().get(1).getChildren().get(0);
-            if (dec.getKind() == TreeNodeKind.VAR_DEC || dec.getKind() == TreeNodeKind.POINTER_VAR_DEC || dec.getKind() == TreeNodeKind.ARRAY_VAR_DEC) {
-                dec.setDepth(0);
-            } else {
-                dec.setDepth(0);
-                TreeNode paramList = dec.getChildren().get(2).getChildren().get(0);
-                if (paramList.getKind() != TreeNodeKind.EMPTY && paramList.getKind() != TreeNodeKind.VOID) {
-                    findDepthsParams(paramList, 1, 0);
-                }
-                int pos = findDepthsCompoundStmt(dec.getChildren().get(3), 2, 0);
-                dec.setPosition(pos-1);
-            }
-            declist = declist.getChildren().get(0);
-        }
-    }
-
-    private int findDepthsCompoundStmt(TreeNode compoundStmt, int depth, int position) {
-        int pos = position;
-        for (TreeNode t : compoundStmt.getChildren()) {
-            if (t.getKind() == TreeNodeKind.LOCAL_DECS) {
-                pos = findDepthsLocalDec(t, depth, pos);
-            } else if (t.getKind() == TreeNodeKind.STATEMENT_LIST) {
-                findDepthsStatementList(t, depth, pos);
-            }
-        }
-        compoundStmt.setPosition(pos-position-1);
-        return pos;
-    }
-
-    private void findDepthsStatementList(TreeNode statementList, int depth, int position) {
-        while (statementList.getKind() != TreeNodeKind.EMPTY) {
-            TreeNode stmt = statementList.getChildren().get(1).getChildren().get(0);
-            if (stmt.getKind() == TreeNodeKind.COMPOUND_STMT) {
-                findDepthsCompoundStmt(stmt, depth+1, position);
-            } else if (stmt.getKind() == TreeNodeKind.IF_STMT || stmt.getKind() == TreeNodeKind.WHILE_STMT) {
-                for (TreeNode t : stmt.getChildren()) {
-                    if (t.getKind() == TreeNodeKind.STATEMENT) {
-                        TreeNode s = t.getChildren().get(0);
-                        if (s.getKind() == TreeNodeKind.COMPOUND_STMT) {
-                            findDepthsCompoundStmt(s, depth+1, position);
-                        }
-                    }
-                }
-            }
-            statementList = statementList.getChildren().get(0);
-        }
-    }
-
-    private int findDepthsLocalDec(TreeNode localDecs, int depth, int position) {
-        while (localDecs.getKind() != TreeNodeKind.EMPTY) {
-            TreeNode varDec = localDecs.getChildren().get(1);
-            varDec.setDepth(depth);
-            if (varDec.getKind() == TreeNodeKind.ARRAY_VAR_DEC) {
-                int arraypos = Integer.parseInt(varDec.getChildren().get(2).getValue())-1;
-                varDec.setPosition(position + arraypos);
-                position += arraypos + 1;
-            } else {
-                varDec.setPosition(position++);
-            }
-            localDecs = localDecs.getChildren().get(0);
-        }
-        return position;
-    }
-
-    private void findDepthsParams(TreeNode paramList, int depth, int position) {
-        while (paramList.getKind() != TreeNodeKind.EMPTY) {
-            TreeNode param = paramList.getChildren().get(1);
-            param.setDepth(depth);
-            param.setPosition(position++);
-            paramList = paramList.getChildren().get(0);
+        try {
+            header();
+        } finally {
+            writeCode(code);
+            emitter.flush();
         }
     }
 
     private void header() throws BPLCodeGeneratorException, BPLTypeCheckerException {
-        genCodeGlobalDecs(root.getChildren().get(0));
+        genCodeGlobalDecs(root.getChild(0));
     }
 
     private void genCodeGlobalDecs(TreeNode declist) throws BPLCodeGeneratorException, BPLTypeCheckerException {
-        System.out.printf("%s%10s%n", ".section", ".rodata");
-        System.out.printf("%s%n", ".WriteIntString: .string \"%d \"");
-        System.out.printf("%s%n", ".WritelnString: .string \"\\n\"");
-        System.out.printf("%s%n", ".WriteStringString: .string \"%s \"");
-        System.out.printf("%s%n", ".ReadIntString: .string \"%d\"");
+        emitter.line(".section   .rodata");
+        emitter.line(".WriteIntString: .string \"%d \"");
+        emitter.line(".WritelnString: .string \"\\n\"");
+        emitter.line(".WriteStringString: .string \"%s \"");
+        emitter.line(".ReadIntString: .string \"%d\"");
         ArrayList<TreeNode> funDecs = new ArrayList<TreeNode>();
         TreeNode main = null;
-        while (declist.getKind() != TreeNodeKind.EMPTY) {
-            TreeNode dec = declist.getChildren().get(1).getChildren().get(0);
+        for (TreeNode declaration : declist.getChildren()) {
+            TreeNode dec = declaration.getChild(0);
             if (dec.getKind() == TreeNodeKind.FUN_DEC) {
-                if (dec.getChildren().get(1).getValue().equals("main")) {
+                if (dec.getChild(1).getValue().equals("main")) {
                     main = dec;
                 }
                 funDecs.add(dec);
             } else if (dec.getKind() == TreeNodeKind.ARRAY_VAR_DEC) {
-                String id = dec.getChildren().get(1).getValue();
-                String arrayLen = dec.getChildren().get(2).getValue();
-                System.out.printf("%s%n", ".comm " + id + ", " + 8* Integer.parseInt(arrayLen) + ", 32");
+                String id = dec.getChild(1).getValue();
+                int arrayLen = getArrayLength(dec.getDeclaration());
+                emitter.line(".comm " + id + ", " + 8* arrayLen + ", 32");
             } else {
-                String id = dec.getChildren().get(1).getValue();
-                System.out.printf("%s%n", ".comm " + id + ", 8, 32");
+                String id = dec.getChild(1).getValue();
+                emitter.line(".comm " + id + ", 8, 32");
             }
-            declist = declist.getChildren().get(0);
         }
         genCodeStringLiterals(root);
-        System.out.printf("%s%n", ".text");
+        emitter.line(".text");
 
         if (main == null) {
             throw new BPLCodeGeneratorException("no main function declared");
         } else {
-            System.out.printf("%s%n%n", ".global main ");
+            emitter.line(".global main ");
+            emitter.line("");
         }
 
         for (TreeNode f : funDecs) {
@@ -146,25 +102,42 @@ public class BPLCodeGenerator {
     }
 
     private void genCodeFunction(TreeNode fun) throws BPLTypeCheckerException {
-        String id = fun.getChildren().get(1).getValue();
-        System.out.printf("%s%n", id + ":");
+        String id = fun.getChild(1).getValue();
+        label(id);
 
         // move stack pointer to frame pointer
         genRegReg("movq", sp, fp, "setup fp");
 
         // genCodeStatement, and allocate local variables
-        genCodeCompStmt(fun.getChildren().get(3));
+        genCodeCompStmt(fun.getChild(3));
 
         // deallocate any remaining local variables
         genRegReg("movq", "%rbx", "%rsp", "deallocate any remaining local variables");
 
         // return
         gen("ret", "return from the function");
+
+        writeCode(optimizer == null ? code : optimizer.optimize(code));
+    }
+
+    private void writeCode(List<Instruction> instructions) {
+        for (Instruction instruction : instructions) {
+            emitter.emit(instruction);
+        }
+        code.clear();
     }
 
     private void genCodeCompStmt(TreeNode compStmt) throws BPLTypeCheckerException {
         // allocate local variables
-        int localVarOffset = 8*(compStmt.getPosition()+1);
+        int localVarOffset = 0;
+        for (TreeNode t : compStmt.getChildren()) {
+            if (t.getKind() == TreeNodeKind.LOCAL_DECS) {
+                for (TreeNode varDec : t.getChildren()) {
+                    Declaration local = varDec.getDeclaration();
+                    localVarOffset += 8 * (local.isArray() ? getArrayLength(local) : 1);
+                }
+            }
+        }
         if (localVarOffset > 0) {
             genRegReg("sub", "$"+localVarOffset, "%rsp", "allocate local variables");
         }
@@ -182,18 +155,16 @@ public class BPLCodeGenerator {
     }
 
     private void genCodeStatementList(TreeNode stmtList) throws BPLTypeCheckerException {
-        while (stmtList.getKind() != TreeNodeKind.EMPTY) {
-            TreeNode stmt = stmtList.getChildren().get(1);
+        for (TreeNode stmt : stmtList.getChildren()) {
             genCodeStatement(stmt);
-            stmtList = stmtList.getChildren().get(0);
         }
     }
 
     private void genCodeStatement(TreeNode statement) throws BPLTypeCheckerException {
-        TreeNode stmt = statement.getChildren().get(0);
+        TreeNode stmt = statement.getChild(0);
         if (stmt.getKind() == TreeNodeKind.EXPRESSION_STMT) {
-            if (stmt.getChildren().size() > 0) {
-                genCodeExpression(stmt.getChildren().get(0));
+            if (stmt.getChildCount() > 0) {
+                genCodeExpression(stmt.getChild(0));
             }
         } else if (stmt.getKind() == TreeNodeKind.COMPOUND_STMT) {
             genCodeCompStmt(stmt);
@@ -209,23 +180,23 @@ public class BPLCodeGenerator {
     }
 
     private void genCodeIfStmt(TreeNode ifStmt) throws BPLTypeCheckerException {
-        TreeNode exp = ifStmt.getChildren().get(0);
+        TreeNode exp = ifStmt.getChild(0);
         TreeNode stmt1 = null;
         TreeNode stmt2 = null;
 
-        if (ifStmt.getChildren().size() > 1) {
-            stmt1 = ifStmt.getChildren().get(1);
+        if (ifStmt.getChildCount() > 1) {
+            stmt1 = ifStmt.getChild(1);
         }
 
-        if (ifStmt.getChildren().size() > 2) {
-            stmt2 = ifStmt.getChildren().get(2);
+        if (ifStmt.getChildCount() > 2) {
+            stmt2 = ifStmt.getChild(2);
         }
 
         String label1 = ".L" + nextLabelNum();
         String label2 = ".L" + nextLabelNum();
         String label3 = ".L" + nextLabelNum();
 
-        System.out.printf("%s:%n", label1);
+        label(label1);
         genCodeExpression(exp);
         genRegReg("cmpl", "$0", "%eax", "Test if condition is False");
         genReg("je", label2, "Jump to " + label2 + " if False");
@@ -235,26 +206,26 @@ public class BPLCodeGenerator {
         }
         genReg("jmp", label3, "Jump to " + label3 + " after True Statement");
 
-        System.out.printf("%s:%n", label2);
+        label(label2);
         if (stmt2 != null) {
             genCodeStatement(stmt2);
         }
 
-        System.out.printf("%s:%n", label3);
+        label(label3);
 
     }
 
     private void genCodeWhileStmt(TreeNode whileStmt) throws BPLTypeCheckerException{
-        TreeNode exp = whileStmt.getChildren().get(0);
+        TreeNode exp = whileStmt.getChild(0);
         TreeNode stmt = null;
 
-        if (whileStmt.getChildren().size() > 1) {
-            stmt = whileStmt.getChildren().get(1);
+        if (whileStmt.getChildCount() > 1) {
+            stmt = whileStmt.getChild(1);
         }
         String label1 = ".L" + nextLabelNum();
         String label2 = ".L" + nextLabelNum();
 
-        System.out.printf("%s:%n", label1);
+        label(label1);
         genCodeExpression(exp);
         genRegReg("cmpl", "$0", "%eax", "Test if condition is False");
         genReg("je", label2, "Jump to " + label2 + " if False");
@@ -262,20 +233,20 @@ public class BPLCodeGenerator {
             genCodeStatement(stmt);
         }
         genReg("jmp", label1, "Jump back to " + label1);
-        System.out.printf("%s:%n", label2);
+        label(label2);
     }
 
     private void genCodeReturn(TreeNode retStmt) throws BPLTypeCheckerException{
-        if (retStmt.getChildren().size() > 0) {
-            genCodeExpression(retStmt.getChildren().get(0));
+        if (retStmt.getChildCount() > 0) {
+            genCodeExpression(retStmt.getChild(0));
         }
     }
 
     private void genCodeWrite(TreeNode writeStmt) throws BPLTypeCheckerException {
-        if (writeStmt.getChildren().size() == 0) {
+        if (writeStmt.getChildCount() == 0) {
             genCodeWriteln();
         } else {
-            genCodeWriteExp(writeStmt.getChildren().get(0));
+            genCodeWriteExp(writeStmt.getChild(0));
         }
     }
 
@@ -295,67 +266,161 @@ public class BPLCodeGenerator {
     }
 
     private void genCodeExpression(TreeNode exp) throws BPLTypeCheckerException {
-        if (exp.getChildren().get(0).getKind() == TreeNodeKind.ASSIGN_EXP) {
-            genCodeAssignExp(exp.getChildren().get(0));
-        } else {
-            genCodeCompExp(exp.getChildren().get(0));
+        expressionGenerator.walk(exp);
+    }
+
+    // Generates an EXPRESSION, leaving its value in %rax. Each node's code
+    // is written on entering it, between its operands and on leaving it, in
+    // the order the operands are evaluated. The value of a FUN_CALL is its
+    // arguments, pushed last to first; other nodes have none.
+    private class ExpressionGenerator extends TreeWalker<List<TreeNode>, BPLTypeCheckerException> {
+        @Override
+        protected List<TreeNode> enter(TreeNode node) throws BPLTypeCheckerException {
+            TreeNodeKind kind = node.getKind();
+            if (kind == TreeNodeKind.ARRAY_VAR) {
+                genReg("push", "%rax", "push right hand value on stack");
+            } else if (kind == TreeNodeKind.POINTER_VAR) {
+                genReg("push", "%rax", "push right hand value on stack");
+                genCodeID(node.getChild(0));
+                genReg("pop", "%rdi", "retrieving offset from stack");
+                genRegReg("movq", "%rdi", "0(%rax)", "assigning pointer value");
+            } else if (kind == TreeNodeKind.VAR) {
+                genCodeVarAssignment(node.getChild(0));
+            } else if (kind == TreeNodeKind.ARRAY_FACTOR) {
+                genCodeID(node.getChild(0));
+                genReg("push", "%rax", "Save the starting address of array on stack");
+            } else if (kind == TreeNodeKind.ADDRESS_F) {
+                TreeNode f2 = node.getChild(0);
+                if (f2.getKind() == TreeNodeKind.ID) {
+                    genCodeAddress(f2);
+                } else if (f2.getKind() != TreeNodeKind.ARRAY_FACTOR) {
+                    throw new BPLTypeCheckerException("Invalid type to reference");
+                }
+            } else if (kind == TreeNodeKind.ID) {
+                genCodeID(node);
+            } else if (kind == TreeNodeKind.FUN_CALL) {
+                return node.getChild(1).getChild(0).getChildren();
+            } else if (kind == TreeNodeKind.NUM) {
+                genCodeNum(node);
+            } else if (kind == TreeNodeKind.STR) {
+                genCodeStr(node);
+            }
+            return null;
+        }
+
+        @Override
+        protected TreeNode child(TreeNode node, int i, List<TreeNode> args) {
+            TreeNodeKind kind = node.getKind();
+            if (kind == TreeNodeKind.REL_EXP || isMultiplication(node)) {
+                return i < 2 ? node.getChild(i) : null;
+            } else if (kind == TreeNodeKind.ASSIGN_EXP || kind == TreeNodeKind.ADD_EXP || kind == TreeNodeKind.MUL_EXP) {
+                // right operand first
+                return i < 2 ? node.getChild(1 - i) : null;
+            } else if (kind == TreeNodeKind.EXPRESSION || kind == TreeNodeKind.NEG_F || kind == TreeNodeKind.DEREF_F) {
+                return i == 0 ? node.getChild(0) : null;
+            } else if (kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.ARRAY_FACTOR) {
+                return i == 0 ? node.getChild(1) : null;
+            } else if (kind == TreeNodeKind.ADDRESS_F && node.getChild(0).getKind() == TreeNodeKind.ARRAY_FACTOR) {
+                return i == 0 ? node.getChild(0).getChild(1) : null;
+            } else if (kind == TreeNodeKind.FUN_CALL) {
+                return i < args.size() ? args.get(args.size() - 1 - i) : null;
+            }
+            return null;
+        }
+
+        @Override
+        protected List<TreeNode> combine(TreeNode node, int i, List<TreeNode> args, List<TreeNode> result) {
+            TreeNodeKind kind = node.getKind();
+            if (i == 0 && (kind == TreeNodeKind.REL_EXP || kind == TreeNodeKind.ADD_EXP || isMultiplication(node))) {
+                genReg("push", "%rax", "saving left operand on stack");
+            } else if (i == 0 && kind == TreeNodeKind.MUL_EXP) {
+                genRegReg("movl", "%eax", "%ebp", "put divisor into ebp");
+            } else if (kind == TreeNodeKind.FUN_CALL) {
+                genReg("push", "%rax", "pushing argument");
+            }
+            return args;
+        }
+
+        @Override
+        protected List<TreeNode> exit(TreeNode node, List<TreeNode> args) {
+            TreeNodeKind kind = node.getKind();
+            if (kind == TreeNodeKind.ARRAY_VAR) {
+                genRegReg("imul", "$8", "%rax", "calculating offset");
+                genReg("push", "%rax", "push array offset on stack");
+                genCodeID(node.getChild(0));
+                genReg("pop", "%rdi", "retrieving offset from stack");
+                genRegReg("addq", "%rax", "%rdi", "calculating element address");
+                genReg("pop", "%rax", "retrieve right hand value from stack");
+                genRegReg("movq", "%rax", "0(%rdi)", "assigning array value");
+            } else if (kind == TreeNodeKind.REL_EXP) {
+                genRegReg("cmpl", "%eax", "0(%rsp)", "perform comparison");
+                genCodeRelop(node.getValue());
+            } else if (kind == TreeNodeKind.ADD_EXP) {
+                genCodeAddop(node.getValue());
+            } else if (kind == TreeNodeKind.MUL_EXP) {
+                genCodeMulop(node.getValue());
+            } else if (kind == TreeNodeKind.NEG_F) {
+                genReg("neg", "%eax", "negating the value");
+            } else if (kind == TreeNodeKind.ARRAY_FACTOR) {
+                genRegReg("imul", "$8", "%rax", "multiply index by 8");
+                genReg("pop", "%rsi", "Retrieving base address of array");
+                genRegReg("add", "%rax", "%rsi", "address of desired array index");
+                genRegReg("movl", "0(%rsi)", "%eax", "obtaining array index value");
+            } else if (kind == TreeNodeKind.ADDRESS_F && node.getChild(0).getKind() == TreeNodeKind.ARRAY_FACTOR) {
+                genCodeArrayAddress(node.getChild(0).getChild(0));
+            } else if (kind == TreeNodeKind.DEREF_F) {
+                genRegReg("movq", "0(%rax)", "%rax", "dereference value");
+            } else if (kind == TreeNodeKind.FUN_CALL) {
+                genReg("push", "%rbx", "pushing the frame pointer");
+                call(node.getChild(0).getValue());
+                genReg("pop", "%rbx", "retrieving the frame pointer");
+                genRegReg("add", "$"+(args.size()*8), "%rsp", "removing args from the stack");
+            }
+            return null;
         }
     }
 
-    private void genCodeAssignExp(TreeNode assignExp) throws BPLTypeCheckerException {
-        TreeNode var = assignExp.getChildren().get(0);
-        TreeNode exp = assignExp.getChildren().get(1);
-        genCodeExpression(exp);
-        genCodeVar(var);
-    }
-
-    private void genCodeVar(TreeNode var) throws BPLTypeCheckerException {
-        TreeNode id = var.getChildren().get(0);
-        TreeNode varDec = id.getDec();
-        if (var.getKind() == TreeNodeKind.ARRAY_VAR) {
-            genReg("push", "%rax", "push right hand value on stack");
-            TreeNode exp = var.getChildren().get(1);
-            genCodeExpression(exp);
-            genRegReg("imul", "$8", "%rax", "calculating offset");
-            genReg("push", "%rax", "push array offset on stack");
-            genCodeID(id);
-            genReg("pop", "%rdi", "retrieving offset from stack");
-            genRegReg("addq", "%rax", "%rdi", "calculating element address");
-            genReg("pop", "%rax", "retrieve right hand value from stack");
-            genRegReg("movq", "%rax", "0(%rdi)", "assigning array value");
-        } else if (var.getKind() == TreeNodeKind.POINTER_VAR) {
-          genReg("push", "%rax", "push right hand value on stack");
-          genCodeID(id);
-          genReg("pop", "%rdi", "retrieving offset from stack");
-          genRegReg("movq", "%rdi", "0(%rax)", "assigning pointer value");
+    // a MUL_EXP whose left operand is evaluated first, as * is; / and %
+    // evaluate the divisor first
+    private boolean isMultiplication(TreeNode exp) {
+        return exp.getKind() == TreeNodeKind.MUL_EXP && !exp.getValue().equals("/") && !exp.getValue().equals("%");
+    }
 
+    // stores %rax in the variable id
+    private void genCodeVarAssignment(TreeNode id) {
+        Declaration var = id.getDeclaration();
+        if (isGlobal(var)) {
+            genRegReg("mov", "%rax", id.getValue() , "perform global variable assignment");
+        } else if (var.getStorage() == Declaration.Storage.PARAM) {
+            genRegReg("mov", "%rax", getOffset(var)+"(%rbx)" , "perform param variable assignment");
         } else {
-            if (varDec.getDepth() == 0) {
-                genRegReg("mov", "%rax", id.getValue() , "perform global variable assignment");
-            } else if (varDec.getDepth() == 1) {
-                int offset = 16 + (8 * varDec.getPosition());
-                genRegReg("mov", "%rax", offset+"(%rbx)" , "perform param variable assignment");
-            } else {
-                int offset = -8 + (-8 * varDec.getPosition());
-                genRegReg("mov", "%rax", offset+"(%rbx)" , "perform local variable assignment");
-            }
+            genRegReg("mov", "%rax", getOffset(var)+"(%rbx)" , "perform local variable assignment");
         }
     }
 
-    private void genCodeCompExp(TreeNode compExp) throws BPLTypeCheckerException {
-        if (compExp.getChildren().size() == 1) {
-            genCodeE(compExp.getChildren().get(0));
-        } else {
-            genCodeE(compExp.getChildren().get(0));
-            genReg("push", "%rax", "saving left operand on stack");
-            genCodeE(compExp.getChildren().get(2));
-            genRegReg("cmpl", "%eax", "0(%rsp)", "perform comparison");
-            genCodeRelop(compExp.getChildren().get(1));
+    // a global variable or a function, which is found by its label
+    private boolean isGlobal(Declaration var) {
+        return var.getStorage() == Declaration.Storage.GLOBAL || var.getStorage() == Declaration.Storage.FUNCTION;
+    }
+
+    // the offset from the frame pointer of a parameter or local
+    private int getOffset(Declaration var) {
+        if (var.getStorage() == Declaration.Storage.PARAM) {
+            return 16 + 8*var.getSlot();
         }
+        return -8 + (-8*var.getSlot());
     }
 
-    private void genCodeRelop(TreeNode relop) {
-        String op = relop.getChildren().get(0).getValue();
+    // the length of an array declaration; the checker lets through lengths
+    // too large for an int, which cannot be allocated
+    private int getArrayLength(Declaration array) throws BPLTypeCheckerException {
+        if (array.getArrayLength() < 0) {
+            throw new BPLTypeCheckerException("Array " + array.getName() + " is too large");
+        }
+        return array.getArrayLength();
+    }
+
+    private void genCodeRelop(String op) {
         String lab1 = ".L" + nextLabelNum();
         String lab2 = ".L" + nextLabelNum();
         if (op.equals("<=")) {
@@ -373,25 +438,14 @@ public class BPLCodeGenerator {
         }
         genRegReg("movl", "$1", "%eax", "comparison evals to true");
         genReg("jmp", lab1, "");
-        System.out.printf("%s:%n", lab2);
+        label(lab2);
         genRegReg("movl", "$0", "%eax", "comparison evals to false");
-        System.out.printf("%s:%n", lab1);
+        label(lab1);
         genRegReg("addq", "$8", "%rsp", "popping value on the stack");
     }
 
-    private void genCodeE(TreeNode E) throws BPLTypeCheckerException {
-        if (E.getChildren().size() == 1) {
-            genCodeT(E.getChildren().get(0));
-        } else {
-            genCodeT(E.getChildren().get(2));
-            genReg("push", "%rax", "saving left operand on stack");
-            genCodeE(E.getChildren().get(0));
-            genCodeAddop(E.getChildren().get(1));
-        }
-    }
-
-    private void genCodeAddop(TreeNode op) {
-        if (op.getChildren().get(0).getValue().equals("+")) {
+    private void genCodeAddop(String op) {
+        if (op.equals("+")) {
             genRegReg("addl", "0(%rsp)", "%eax", "performing addition");
         } else {
             genRegReg("subl", "0(%rsp)", "%eax", "performing subtraction");
@@ -399,151 +453,66 @@ public class BPLCodeGenerator {
         genRegReg("addq", "$8", "%rsp", "popping value on the stack");
     }
 
-    private void genCodeT(TreeNode T) throws BPLTypeCheckerException {
-        if (T.getChildren().size() == 1) {
-            genCodeF(T.getChildren().get(0));
-        } else {
-            String op = T.getChildren().get(1).getChildren().get(0).getValue();
-            if (op.equals("/") || op.equals("%")) {
-                genCodeF(T.getChildren().get(2));
-                genRegReg("movl", "%eax", "%ebp", "put divisor into ebp");
-                genCodeT(T.getChildren().get(0));
-                genRegReg("movl", "%eax", "%eax", "put dividend into eax");
-                gen("cltq", "sign-extend to all of rax");
-                gen("cqto", "sign-extend to rdx");
-                genReg("idivl", "%ebp", "perform division");
-                if (op.equals("%")) {
-                    genRegReg("movl", "%edx", "%eax", "put remainder into eax");
-                }
-            } else {
-                genCodeT(T.getChildren().get(0));
-                genReg("push", "%rax", "saving left operand on stack");
-                genCodeF(T.getChildren().get(2));
-                genRegReg("imul", "0(%rsp)", "%eax", "performing multiplication");
-                genRegReg("addq", "$8", "%rsp", "popping value on the stack");
+    // finishes a MUL_EXP once both operands are evaluated
+    private void genCodeMulop(String op) {
+        if (op.equals("/") || op.equals("%")) {
+            genRegReg("movl", "%eax", "%eax", "put dividend into eax");
+            gen("cltq", "sign-extend to all of rax");
+            gen("cqto", "sign-extend to rdx");
+            genReg("idivl", "%ebp", "perform division");
+            if (op.equals("%")) {
+                genRegReg("movl", "%edx", "%eax", "put remainder into eax");
             }
-        }
-    }
-
-    private void genCodeF(TreeNode F) throws BPLTypeCheckerException {
-        if (F.getKind() == TreeNodeKind.NEG_F) {
-            genCodeF(F.getChildren().get(0));
-            genReg("neg", "%eax", "negating the value");
         } else {
-            if (F.getKind() == TreeNodeKind.ADDRESS_F || F.getKind() == TreeNodeKind.DEREF_F) {
-                genCodeFactor(F);
-            } else {
-                genCodeFactor(F.getChildren().get(0));
-            }
+            genRegReg("imul", "0(%rsp)", "%eax", "performing multiplication");
+            genRegReg("addq", "$8", "%rsp", "popping value on the stack");
         }
     }
 
-    private void genCodeFactor(TreeNode factor) throws BPLTypeCheckerException {
-        TreeNode fac = factor.getChildren().get(0);
-        if (factor.getKind() == TreeNodeKind.ARRAY_FACTOR) {
-            genCodeID(factor.getChildren().get(0));
-            genReg("push", "%rax", "Save the starting address of array on stack");
-            genCodeExpression(factor.getChildren().get(1));
-            genRegReg("imul", "$8", "%rax", "multiply index by 8");
-            genReg("pop", "%rsi", "Retrieving base address of array");
-            genRegReg("add", "%rax", "%rsi", "address of desired array index");
-            genRegReg("movl", "0(%rsi)", "%eax", "obtaining array index value");
-        } else if (factor.getKind() == TreeNodeKind.ADDRESS_F) {
-            TreeNode f = factor.getChildren().get(0).getChildren().get(0);
-            TreeNode f2 = factor.getChildren().get(0);
-            if (f2.getKind() != TreeNodeKind.ARRAY_FACTOR && f.getKind() == TreeNodeKind.ID) {
-                TreeNode dec = f.getDec();
-                if (dec.getDepth() == 0) {
-                    String label = dec.getValue();
-                    genRegReg("leaq", label, "%rax", "putting global variable reference into ac");
-                } else if (dec.getDepth() == 1) {
-                    int offset = 16 + 8*(dec.getPosition());
-                    genRegReg("leaq", offset+"(%rbx)", "%rax", "putting param variable reference into ac");
-                } else {
-                    int offset = -8 + (-8*dec.getPosition());
-                    genRegReg("leaq", offset+"(%rbx)", "%rax", "putting local variable reference into ac");
-                }
-            } else if (f2.getKind() == TreeNodeKind.ARRAY_FACTOR) {
-              TreeNode dec = f.getDec();
-              TreeNode exp = f2.getChildren().get(1);
-              genCodeExpression(exp);
-              genRegReg("imul", "$8", "%rax", "multiply index by 8");
-
-              if (dec.getDepth() == 0) {
-                String label = f.getValue();
-                genRegReg("leaq", label, "%rdi", "putting global array variable reference into ac");
-              } else if (dec.getDepth() == 1) {
-                  int offset = 16 + 8*(dec.getPosition());
-                  genRegReg("movq", offset+"(%rbx)", "%rdi", "putting param array variable value into ac");
-              } else {
-                  int offset = -8 + (-8*dec.getPosition());
-                  genRegReg("leaq", offset+"(%rbx)", "%rdi", "putting local array variable value into ac");
-              }
-              genRegReg("addq", "%rdi", "%rax", "adding offset to base address of array ");
-
-            } else {
-                throw new BPLTypeCheckerException("Invalid type to reference");
-            }
-
-        } else if (factor.getKind() == TreeNodeKind.DEREF_F) {
-            genCodeFactor(factor.getChildren().get(0));
-            genRegReg("movq", "0(%rax)", "%rax", "dereference value");
-        } else if (fac.getKind() == TreeNodeKind.ID) {
-            genCodeID(fac);
-        } else if (fac.getKind() == TreeNodeKind.EXPRESSION) {
-            genCodeExpression(fac);
-
-        } else if (fac.getKind() == TreeNodeKind.FUN_CALL) {
-            int numArgs = genCodeArgs(fac.getChildren().get(1).getChildren().get(0));
-            genReg("push", "%rbx", "pushing the frame pointer");
-            call(fac.getChildren().get(0).getValue());
-            genReg("pop", "%rbx", "retrieving the frame pointer");
-            genRegReg("add", "$"+(numArgs*8), "%rsp", "removing args from the stack");
-
-        } else if (fac.getKind() == TreeNodeKind.NUM) {
-            genCodeNum(fac);
-        } else if (fac.getKind() == TreeNodeKind.STR) {
-            genCodeStr(fac);
-        } else if (fac.getKind() == TreeNodeKind.READ) {
-
+    // puts the address of the variable id into %rax
+    private void genCodeAddress(TreeNode id) {
+        Declaration var = id.getDeclaration();
+        if (isGlobal(var)) {
+            String label = var.getName();
+            genRegReg("leaq", label, "%rax", "putting global variable reference into ac");
+        } else if (var.getStorage() == Declaration.Storage.PARAM) {
+            genRegReg("leaq", getOffset(var)+"(%rbx)", "%rax", "putting param variable reference into ac");
+        } else {
+            genRegReg("leaq", getOffset(var)+"(%rbx)", "%rax", "putting local variable reference into ac");
         }
     }
 
-    private int genCodeArgs(TreeNode argList) throws BPLTypeCheckerException{
-        int numArgs = 0;
-        ArrayList<TreeNode> args = new ArrayList<TreeNode>();
-        while (argList.getKind() != TreeNodeKind.EMPTY) {
-            numArgs++;
-            TreeNode exp = argList.getChildren().get(1);
-            args.add(exp);
-            argList = argList.getChildren().get(0);
-        }
+    // adds the base address of the array id to the index in %rax
+    private void genCodeArrayAddress(TreeNode id) {
+        Declaration array = id.getDeclaration();
+        genRegReg("imul", "$8", "%rax", "multiply index by 8");
 
-        for (int i = args.size()-1; i >= 0; i--) {
-            TreeNode exp = args.get(i);
-            genCodeExpression(exp);
-            genReg("push", "%rax", "pushing argument");
+        if (isGlobal(array)) {
+          String label = id.getValue();
+          genRegReg("leaq", label, "%rdi", "putting global array variable reference into ac");
+        } else if (array.getStorage() == Declaration.Storage.PARAM) {
+            genRegReg("movq", getOffset(array)+"(%rbx)", "%rdi", "putting param array variable value into ac");
+        } else {
+            genRegReg("leaq", getOffset(array)+"(%rbx)", "%rdi", "putting local array variable value into ac");
         }
-
-        return numArgs;
+        genRegReg("addq", "%rdi", "%rax", "adding offset to base address of array ");
     }
 
     private void genCodeID(TreeNode id) {
-        TreeNode dec = id.getDec();
+        Declaration var = id.getDeclaration();
         String label = id.getValue();
-        if (dec.getDepth() == 0) {
-            if (dec.getKind() == TreeNodeKind.ARRAY_VAR_DEC) {
+        if (isGlobal(var)) {
+            if (var.isArray()) {
                 genRegReg("leaq", label, "%rax", "putting global array base address into ac");
             } else {
                 genRegReg("movq", label, "%rax", "putting global variable value into ac");
             }
 
-        } else if (dec.getDepth() == 1) {
-            int offset = 16 + 8*(dec.getPosition());
-            genRegReg("movq", offset+"(%rbx)", "%rax", "putting param variable value into ac");
+        } else if (var.getStorage() == Declaration.Storage.PARAM) {
+            genRegReg("movq", getOffset(var)+"(%rbx)", "%rax", "putting param variable value into ac");
         } else {
-            int offset = -8 + (-8*dec.getPosition());
-            if (dec.getKind() == TreeNodeKind.ARRAY_VAR_DEC) {
+            int offset = getOffset(var);
+            if (var.isArray()) {
                 genRegReg("leaq", offset+"(%rbx)", "%rax", "putting local array base address into ac");
             } else {
                 genRegReg("movq", offset+"(%rbx)", "%rax", "putting local variable value into ac");
@@ -569,42 +538,117 @@ public class BPLCodeGenerator {
         call("printf");
     }
 
+    private void label(String label) {
+        code.add(new Instruction(label));
+    }
+
     private void call(String fun) {
-        System.out.printf("\t %s %10s%n", "call " + fun, "");
+        code.add(new Instruction("call", fun, null));
     }
 
     private void genRegReg(String opcode, String r1, String r2, String comment) {
-        System.out.printf("\t %4s %4s, %4s %10s #%s%n", opcode, r1, r2, "", comment);
+        code.add(new Instruction(opcode, r1, r2, comment));
     }
 
     private void genReg(String opcode, String r, String comment) {
-        System.out.printf("\t %4s %4s %10s #%s%n", opcode, r, "", comment);
+        code.add(new Instruction(opcode, r, comment));
     }
 
     private void gen(String opcode, String comment) {
-        System.out.printf("\t %4s %10s #%s%n", opcode, "", comment);
+        code.add(new Instruction(opcode, comment));
     }
 
     private void genCodeStringLiterals(TreeNode root) {
-        if (root.getKind() == TreeNodeKind.STR && root.getValue() != null) {
-            String label = ".S" + nextLabelNum();
-            strMap.put(root.getValue(), label);
-            System.out.printf("%s%n", label + ": .string \"" + root.getValue() + "\"");
-        }
-        for (TreeNode child : root.getChildren()) {
-            genCodeStringLiterals(child);
-        }
+        new TreeWalker<List<TreeNode>, RuntimeException>() {
+            // the value of a node is its children
+            @Override
+            protected List<TreeNode> enter(TreeNode node) {
+                if (node.getKind() == TreeNodeKind.STR && node.getValue() != null) {
+                    String label = ".S" + nextLabelNum();
+                    strMap.put(node.getValue(), label);
+                    emitter.line(label + ": .string \"" + node.getValue() + "\"");
+                }
+                return node.getChildren();
+            }
+
+            // list elements are visited last to first, the order string
+            // labels were numbered in when lists were nested with the rest
+            // first
+            @Override
+            protected TreeNode child(TreeNode node, int i, List<TreeNode> children) {
+                if (i == children.size()) {
+                    return null;
+                }
+                return children.get(isList(node) ? children.size() - 1 - i : i);
+            }
+        }.walk(root);
+    }
+
+    private boolean isList(TreeNode t) {
+        TreeNodeKind kind = t.getKind();
+        return kind == TreeNodeKind.DECLARATION_LIST || kind == TreeNodeKind.LOCAL_DECS || kind == TreeNodeKind.STATEMENT_LIST
+                || kind == TreeNodeKind.PARAM_LIST || kind == TreeNodeKind.ARG_LIST;
     }
 
     private int nextLabelNum() {
         return labelNum++;
     }
 
+    // Usage: java BPLCodeGenerator [<option>...] [--cache <directory>] <file.bpl>
+    //        java BPLCodeGenerator --check <file.bpl>...
+    //        java BPLCodeGenerator [<option>...] --max-errors <n> <file.bpl>
+    // Options: --no-comments writes instructions without their comments,
+    // --no-optimize writes them as generated, without a PeepholeOptimizer,
+    // and --stats prints the number of instructions generated and written
+    // to standard error.
+    // With --cache, checked trees are kept in directory by BPLTreeCache.
+    // With --check, each file is only scanned, parsed and type checked by
+    // BPLValidator; the errors are printed and no assembly is generated.
+    // With --max-errors, parsing and type checking go on past errors and up
+    // to n of them are printed instead of only the first.
     public static void main(String[] args) {
     //BPLCodeGenerator codeGenerator = new BPLCodeGenerator("sample_programs/P1.bpl");
+        if (args.length > 0 && args[0].equals("--check")) {
+            System.exit(check(args) ? 0 : 1);
+        }
+        boolean comments = true;
+        boolean optimize = true;
+        boolean stats = false;
+        int options = 0;
+        while (options < args.length && isOption(args[options])) {
+            comments &= !args[options].equals("--no-comments");
+            optimize &= !args[options].equals("--no-optimize");
+            stats |= args[options].equals("--stats");
+            options++;
+        }
+        args = Arrays.copyOfRange(args, options, args.length);
+        PeepholeOptimizer optimizer = optimize ? new PeepholeOptimizer() : null;
+        // the assembly goes to standard output through its channel, in the
+        // charset System.out would write it in
+        Emitter out = new Emitter(new FileOutputStream(FileDescriptor.out).getChannel(), Charset.defaultCharset(), comments);
         try {
-            BPLCodeGenerator codeGenerator = new BPLCodeGenerator(args[0]);
+            BPLCodeGenerator codeGenerator;
+            if (args.length > 2 && args[0].equals("--cache")) {
+                BPLTreeCache cache = new BPLTreeCache(new File(args[1]));
+                codeGenerator = new BPLCodeGenerator(cache.typeChecker(args[2]), out, optimizer);
+            } else if (args.length > 2 && args[0].equals("--max-errors")) {
+                BPLDiagnostics diagnostics = new BPLDiagnostics(Integer.parseInt(args[1]));
+                BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(args[2]), false, diagnostics);
+                typeChecker.runTypeChecker();
+                if (diagnostics.hasErrors()) {
+                    for (String message : diagnostics.getMessages()) {
+                        System.err.println(message);
+                    }
+                    System.exit(1);
+                }
+                codeGenerator = new BPLCodeGenerator(typeChecker, out, optimizer);
+            } else {
+                codeGenerator = new BPLCodeGenerator(new BPLTypeChecker(args[0], false), out, optimizer);
+            }
             codeGenerator.generate();
+            if (stats && optimizer != null) {
+                System.err.println(optimizer.getInstructionsBefore() + " instructions generated, " + optimizer.getInstructionsAfter() + " after peephole optimization");
+            }
         } catch(Exception e) {
             System.err.println(e);
             System.exit(1);
@@ -625,6 +669,24 @@ public class BPLCodeGenerator {
 
     }
 
+    private static boolean isOption(String arg) {
+        return arg.equals("--no-comments") || arg.equals("--no-optimize") || arg.equals("--stats");
+    }
+
+    // validates args[1..]; false if any file has an error
+    private static boolean check(String[] args) {
+        boolean valid = true;
+        for (int i = 1; i < args.length; i++) {
+            try {
+                new BPLValidator(args[i]).validate();
+            } catch (BPLParserException | BPLTypeCheckerException e) {
+                System.err.println(args[i] + ": " + e.getMessage());
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
     public static void printTree(TreeNode root, int spaces) {
         for (int i = 0; i < spaces; i++) {
             System.out.print("    ");
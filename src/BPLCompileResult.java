@@ -0,0 +1,29 @@
+/* Result of BPLCompiler.compile(): the generated assembly, or the
+ * diagnostics that stopped compilation. getAssembly() is null whenever
+ * getDiagnostics() is not empty.
+*/
+
+import java.util.Collections;
+import java.util.List;
+
+public class BPLCompileResult {
+	private String assembly;
+	private List<String> diagnostics;
+
+	public BPLCompileResult(String assembly, List<String> diagnostics) {
+		this.assembly = assembly;
+		this.diagnostics = Collections.unmodifiableList(diagnostics);
+	}
+
+	public boolean succeeded() {
+		return diagnostics.isEmpty();
+	}
+
+	public String getAssembly() {
+		return assembly;
+	}
+
+	public List<String> getDiagnostics() {
+		return diagnostics;
+	}
+}
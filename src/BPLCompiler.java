@@ -0,0 +1,87 @@
+/* Library entry point that compiles a BPL program held in memory, from a
+ * CharSequence, a Reader, or a ByteBuffer of encoded bytes, and returns a
+ * BPLCompileResult with the assembly or the errors. Nothing is read from or
+ * written to files or System.out, and errors never exit the process. name
+ * only appears in error messages, where the command line compiler shows the
+ * file name.
+ *
+ * Compilation goes on past syntax and type errors, so the result lists all
+ * of them, up to BPLDiagnostics.DEFAULT_MAX_ERRORS or the maxErrors given.
+*/
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class BPLCompiler {
+	public static final String DEFAULT_NAME = "<input>";
+
+	public static BPLCompileResult compile(CharSequence source) {
+		return compile(DEFAULT_NAME, source);
+	}
+
+	public static BPLCompileResult compile(String name, CharSequence source) {
+		return compile(name, source, BPLDiagnostics.DEFAULT_MAX_ERRORS);
+	}
+
+	public static BPLCompileResult compile(String name, CharSequence source, int maxErrors) {
+		char[] chars = source.toString().toCharArray();
+		return compile(name, chars, chars.length, maxErrors);
+	}
+
+	// reads reader to the end; it is not closed
+	public static BPLCompileResult compile(String name, Reader reader) {
+		char[] chars = new char[8192];
+		int length = 0;
+		try {
+			int read;
+			while ((read = reader.read(chars, length, chars.length - length)) >= 0) {
+				length += read;
+				if (length == chars.length) {
+					chars = Arrays.copyOf(chars, length * 2);
+				}
+			}
+		} catch (IOException e) {
+			ArrayList<String> diagnostics = new ArrayList<String>();
+			diagnostics.add("Error: Error reading '" + name + "'");
+			return new BPLCompileResult(null, diagnostics);
+		}
+		return compile(name, chars, length, BPLDiagnostics.DEFAULT_MAX_ERRORS);
+	}
+
+	// decodes the remaining bytes with the default charset, as the command
+	// line compiler does for files; bytes' position is not moved
+	public static BPLCompileResult compile(String name, ByteBuffer bytes) {
+		return compile(name, bytes, Charset.defaultCharset());
+	}
+
+	public static BPLCompileResult compile(String name, ByteBuffer bytes, Charset charset) {
+		CharBuffer chars = charset.decode(bytes.duplicate());
+		return compile(name, chars.array(), chars.limit(), BPLDiagnostics.DEFAULT_MAX_ERRORS);
+	}
+
+	private static BPLCompileResult compile(String name, char[] source, int sourceEnd, int maxErrors) {
+		BPLDiagnostics errors = new BPLDiagnostics(maxErrors);
+		ArrayList<String> diagnostics = new ArrayList<String>();
+		StringWriter assembly = new StringWriter();
+		try {
+			TokenStream tokens = new BPLScanner(name, source, sourceEnd, new SymbolTable()).scan();
+			BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(tokens), false, errors);
+			typeChecker.runTypeChecker();
+			if (errors.hasErrors()) {
+				diagnostics.addAll(errors.getMessages());
+				return new BPLCompileResult(null, diagnostics);
+			}
+			new BPLCodeGenerator(typeChecker, new Emitter(assembly)).generate();
+			return new BPLCompileResult(assembly.toString(), diagnostics);
+		} catch (BPLTypeCheckerException | BPLCodeGeneratorException e) {
+			diagnostics.add(e.getMessage());
+			return new BPLCompileResult(null, diagnostics);
+		}
+	}
+}
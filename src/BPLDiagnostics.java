@@ -0,0 +1,55 @@
+/* Collects the error messages of one compilation so that the parser and
+ * type checker can go on past an error and report the rest in the same run
+ * (see BPLParser.parse(BPLDiagnostics) and the BPLTypeChecker constructor
+ * taking one). At most maxErrors messages are kept; the stage reporting the
+ * last of them stops. A message repeating the one before it, as each
+ * unclosed block gives at the end of the file, is only kept once.
+*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BPLDiagnostics {
+	public static final int DEFAULT_MAX_ERRORS = 100;
+
+	private int maxErrors;
+	private ArrayList<String> messages;
+
+	public BPLDiagnostics() {
+		this(DEFAULT_MAX_ERRORS);
+	}
+
+	public BPLDiagnostics(int maxErrors) {
+		if (maxErrors < 1) {
+			throw new IllegalArgumentException("maxErrors must be at least 1");
+		}
+		this.maxErrors = maxErrors;
+		this.messages = new ArrayList<String>();
+	}
+
+	// Adds message unless the collector is full. Returns false once it is,
+	// and the reporting stage should then stop.
+	public boolean report(String message) {
+		if (!isFull() && (messages.isEmpty() || !messages.get(messages.size() - 1).equals(message))) {
+			messages.add(message);
+		}
+		return !isFull();
+	}
+
+	public boolean isFull() {
+		return messages.size() >= maxErrors;
+	}
+
+	public boolean hasErrors() {
+		return !messages.isEmpty();
+	}
+
+	public int getMaxErrors() {
+		return maxErrors;
+	}
+
+	public List<String> getMessages() {
+		return Collections.unmodifiableList(messages);
+	}
+}
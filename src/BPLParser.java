@@ -1,61 +1,134 @@
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class BPLParser {
-	private BPLScanner scanner;
-	private LinkedList<Token> tokenCache;
+	private static final int PIPE_BATCHES = 16;
+	private static final int PIPE_BATCH_SIZE = 1024;
+	// parseParallel() aims for chunks of at least this many tokens
+	private static final int CHUNK_TOKENS = 1 << 14;
+	static final int REL_PRECEDENCE = 1;
+	static final int ADD_PRECEDENCE = 2;
+	static final int MUL_PRECEDENCE = 3;
+	private static final TreeNodeKind[] BINARY_KINDS = {null, TreeNodeKind.REL_EXP, TreeNodeKind.ADD_EXP, TreeNodeKind.MUL_EXP};
+	// the productions expression() keeps frames for
+	private static final int EXPRESSION = 0;
+	private static final int ASSIGNMENT = 1;
+	private static final int VAR = 2;
+	private static final int BINARY = 3;
+	private static final int UNARY = 4;
+	private static final int FACTOR = 5;
+	private static final int FUN_CALL = 6;
+
+	private TokenStream tokens;
+	private TokenPipe pipe;
+	private SyntaxTree tree;
+	private int tokenIndex;
 	private int currLine;
+	// with diagnostics, errors are reported there and parsing resumes; the
+	// token an error was found at is errorToken
+	private BPLDiagnostics diagnostics;
+	private int errorToken;
+	private boolean scannerFailed;
+	// expression()'s stack of frames, the brackets isAssignment() has open,
+	// and what it found each bracket closed by, from token closeBase on
+	private Frame[] frames;
+	private int frameCount;
+	private int[] openers;
+	private int[] closes;
+	private int closeBase;
 
 	public BPLParser(String inputFileName) {
-		this.scanner = new BPLScanner(inputFileName);
-		this.tokenCache = new LinkedList<Token>();
+		this(inputFileName, false);
+	}
+
+	// With pipelined = true the file is scanned on a thread of its own while
+	// it is parsed, and tokens arrive in batches through a TokenPipe.
+	public BPLParser(String inputFileName, boolean pipelined) {
+		if (pipelined) {
+			this.pipe = new BPLScanner(inputFileName).scanPipelined(PIPE_BATCHES, PIPE_BATCH_SIZE);
+			this.tokens = pipe.getTokens();
+		} else {
+			this.pipe = null;
+			this.tokens = new BPLScanner(inputFileName).scan();
+		}
+		this.tree = null;
+		this.tokenIndex = 0;
+		this.currLine = 1;
+		this.diagnostics = null;
+		this.frames = new Frame[16];
+		this.frameCount = 0;
+		this.openers = new int[16];
+		this.closes = null;
+		this.closeBase = 0;
+	}
+
+	// parses an already scanned TokenStream
+	public BPLParser(TokenStream tokens) {
+		this.tokens = tokens;
+		this.pipe = null;
+		this.tree = null;
+		this.tokenIndex = 0;
 		this.currLine = 1;
+		this.diagnostics = null;
+		this.frames = new Frame[16];
+		this.frameCount = 0;
+		this.openers = new int[16];
+		this.closes = null;
+		this.closeBase = 0;
+	}
+
+	public SymbolTable getSymbolTable() {
+		return tokens.getSymbolTable();
 	}
 
 	private TreeNode program() throws BPLParserException {
-		TreeNode program = new TreeNode(TreeNodeKind.PROGRAM, currLine, null);
+		TreeNode program = node(TreeNodeKind.PROGRAM, currLine, null);
 		TreeNode decList = declaractionList();
 		program.addChild(decList);
 		return program;
 	}
 
 	private TreeNode declaractionList() throws BPLParserException {
-		Token token = getNextToken();
-		cacheToken(token);
-		if (token.getKind() == Kind.T_EOF) {
-			return new TreeNode(TreeNodeKind.EMPTY, currLine, null);
-		}
-		TreeNode decList = new TreeNode(TreeNodeKind.DECLARATION_LIST, currLine, null);
-		TreeNode dec = declaration();
-		TreeNode decList2 = declaractionList();
-		decList.addChild(decList2);
-		decList.addChild(dec);
+		int token = getNextToken();
+		reset(token);
+		if (tokens.getKind(token) == Kind.T_EOF) {
+			return node(TreeNodeKind.EMPTY, currLine, null);
+		}
+		TreeNode decList = node(TreeNodeKind.DECLARATION_LIST, currLine, null);
+		while (tokens.getKind(token) != Kind.T_EOF) {
+			try {
+				TreeNode dec = declaration();
+				decList.addChild(dec);
+				tree.addDeclaration(dec.getId(), token);
+			} catch (BPLParserException e) {
+				recover(e);
+				skipDeclaration(token);
+			}
+			token = getNextToken();
+			reset(token);
+		}
 		return decList;
 	}
 
 	private TreeNode declaration() throws BPLParserException {
-		TreeNode dec = new TreeNode(TreeNodeKind.DECLARATION, currLine, null);
-		Token token1 = getNextToken();
-		if (token1.getKind() != Kind.T_INT && token1.getKind() != Kind.T_VOID && token1.getKind() != Kind.T_STR) {
+		TreeNode dec = node(TreeNodeKind.DECLARATION, currLine, null);
+		int token1 = peek(0);
+		if (tokens.getKind(token1) != Kind.T_INT && tokens.getKind(token1) != Kind.T_VOID && tokens.getKind(token1) != Kind.T_STR) {
 			assertToken(token1, Kind.T_INT, "int, void or string");
 		}
-		Token token2 = getNextToken();
-		if (token2.getKind() == Kind.T_ASTERISK) {
-			cacheToken(token1);
-			cacheToken(token2);
+		int token2 = peek(1);
+		if (tokens.getKind(token2) == Kind.T_ASTERISK) {
 			TreeNode var = varDec();
 			dec.addChild(var);
 		} else {
 			assertToken(token2, Kind.T_ID, "<id>");
-			Token token3 = getNextToken();
-			cacheToken(token1);
-			cacheToken(token2);
-			cacheToken(token3);
-			if (token3.getKind() == Kind.T_LPAREN) {
+			int token3 = peek(2);
+			if (tokens.getKind(token3) == Kind.T_LPAREN) {
 				TreeNode fun = funDec();
 				dec.addChild(fun);
-			} else if (token3.getKind() == Kind.T_SEMICOLON || token3.getKind() == Kind.T_LBRACKET){
+			} else if (tokens.getKind(token3) == Kind.T_SEMICOLON || tokens.getKind(token3) == Kind.T_LBRACKET){
 				TreeNode var = varDec();
 				dec.addChild(var);
 			} else {
@@ -70,18 +143,18 @@ public class BPLParser {
 		TreeNode varDec = null;
 		TreeNode type = typeSpecifier();
 		//varDec.addChild(type);
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_ASTERISK) {
-			varDec = new TreeNode(TreeNodeKind.POINTER_VAR_DEC, line, null);
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_ASTERISK) {
+			varDec = node(TreeNodeKind.POINTER_VAR_DEC, line, null);
 			varDec.addChild(type);
 		} else {
-			cacheToken(token);
+			reset(token);
 		}
 		TreeNode id = id();
 		//varDec.addChild(id);
 		token = getNextToken();
-		if (token.getKind() == Kind.T_LBRACKET) {
-			varDec = new TreeNode(TreeNodeKind.ARRAY_VAR_DEC, line, null);
+		if (tokens.getKind(token) == Kind.T_LBRACKET) {
+			varDec = node(TreeNodeKind.ARRAY_VAR_DEC, line, null);
 			TreeNode num = num();
 			token = getNextToken();
 			assertToken(token, Kind.T_RBRACKET, "]");
@@ -91,7 +164,7 @@ public class BPLParser {
 			token = getNextToken();
 		}
 		if (varDec == null) {
-			varDec = new TreeNode(TreeNodeKind.VAR_DEC, line, null);
+			varDec = node(TreeNodeKind.VAR_DEC, line, null);
 			varDec.addChild(type);
 			varDec.addChild(id);
 		} else if (varDec.getKind() == TreeNodeKind.POINTER_VAR_DEC) {
@@ -103,37 +176,44 @@ public class BPLParser {
 	}
 
 	private TreeNode localDecs() throws BPLParserException {
-		Token token = getNextToken();
-		cacheToken(token);
-		if (token.getKind() != Kind.T_INT && token.getKind() != Kind.T_VOID && token.getKind() != Kind.T_STR) {
-			return new TreeNode(TreeNodeKind.EMPTY, currLine, null);
-		}
-		TreeNode localDecs = new TreeNode(TreeNodeKind.LOCAL_DECS, currLine, null);
-		TreeNode varDec = varDec();
-		TreeNode localDecs2 = localDecs();
-		localDecs.addChild(localDecs2);
-		localDecs.addChild(varDec);
+		int token = getNextToken();
+		reset(token);
+		if (tokens.getKind(token) != Kind.T_INT && tokens.getKind(token) != Kind.T_VOID && tokens.getKind(token) != Kind.T_STR) {
+			return node(TreeNodeKind.EMPTY, currLine, null);
+		}
+		TreeNode localDecs = node(TreeNodeKind.LOCAL_DECS, currLine, null);
+		while (tokens.getKind(token) == Kind.T_INT || tokens.getKind(token) == Kind.T_VOID || tokens.getKind(token) == Kind.T_STR) {
+			try {
+				TreeNode varDec = varDec();
+				localDecs.addChild(varDec);
+			} catch (BPLParserException e) {
+				recover(e);
+				skipStatement();
+			}
+			token = getNextToken();
+			reset(token);
+		}
 		return localDecs;
 	}
 
 	private TreeNode statement() throws BPLParserException {
-		TreeNode statement = new TreeNode(TreeNodeKind.STATEMENT, currLine, null);
-		Token token = getNextToken();
+		TreeNode statement = node(TreeNodeKind.STATEMENT, currLine, null);
+		int token = getNextToken();
 		TreeNode stmt = null;
-		if (token.getKind() == Kind.T_LBRACE) {
-			cacheToken(token);
+		if (tokens.getKind(token) == Kind.T_LBRACE) {
+			reset(token);
 			stmt = compoundStatement();
-		} else if (token.getKind() == Kind.T_WHILE) {
+		} else if (tokens.getKind(token) == Kind.T_WHILE) {
 			stmt = whileStatement();
-		} else if (token.getKind() == Kind.T_IF){
+		} else if (tokens.getKind(token) == Kind.T_IF){
 			stmt = ifStatement();
-		} else if (token.getKind() == Kind.T_RETURN) {
+		} else if (tokens.getKind(token) == Kind.T_RETURN) {
 			stmt = returnStatement();
-		} else if (token.getKind() == Kind.T_WRITE || token.getKind() == Kind.T_WRITELN) {
-			cacheToken(token);
+		} else if (tokens.getKind(token) == Kind.T_WRITE || tokens.getKind(token) == Kind.T_WRITELN) {
+			reset(token);
 			stmt = writeStatement();
 		} else {
-			cacheToken(token);
+			reset(token);
 			stmt = expressionStatement();
 		}
 		statement.addChild(stmt);
@@ -141,15 +221,15 @@ public class BPLParser {
 	}
 
 	private TreeNode typeSpecifier() throws BPLParserException {
-		TreeNode typeSpecifier = new TreeNode(TreeNodeKind.TYPE_SPECIFIER, currLine, null);
-		Token token = getNextToken();
+		TreeNode typeSpecifier = node(TreeNodeKind.TYPE_SPECIFIER, currLine, null);
+		int token = getNextToken();
 		TreeNode type = null;
-		if (token.getKind() == Kind.T_INT) {
-			type = new TreeNode(TreeNodeKind.INT, currLine, null);
-		} else if (token.getKind() == Kind.T_VOID) {
-			type = new TreeNode(TreeNodeKind.VOID, currLine, null);
-		} else if (token.getKind() == Kind.T_STR) {
-			type = new TreeNode(TreeNodeKind.STR, currLine, null);
+		if (tokens.getKind(token) == Kind.T_INT) {
+			type = node(TreeNodeKind.INT, currLine, null);
+		} else if (tokens.getKind(token) == Kind.T_VOID) {
+			type = node(TreeNodeKind.VOID, currLine, null);
+		} else if (tokens.getKind(token) == Kind.T_STR) {
+			type = node(TreeNodeKind.STR, currLine, null);
 		} else {
 			assertToken(token, Kind.T_INT, "int, void or string");
 		}
@@ -158,12 +238,12 @@ public class BPLParser {
 	}
 
 	private TreeNode funDec() throws BPLParserException {
-		TreeNode funDec = new TreeNode(TreeNodeKind.FUN_DEC, currLine, null);
+		TreeNode funDec = node(TreeNodeKind.FUN_DEC, currLine, null);
 		TreeNode type = typeSpecifier();
 		funDec.addChild(type);
 		TreeNode id = id();
 		funDec.addChild(id);
-		Token token = getNextToken();
+		int token = getNextToken();
 		assertToken(token, Kind.T_LPAREN, "(");
 		TreeNode params = params();
 		token = getNextToken();
@@ -177,13 +257,13 @@ public class BPLParser {
 	}
 
 	private TreeNode params() throws BPLParserException {
-		TreeNode params = new TreeNode(TreeNodeKind.PARAMS, currLine, null);
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_VOID) {
-			TreeNode v = new TreeNode(TreeNodeKind.VOID, currLine, token.getValue());
+		TreeNode params = node(TreeNodeKind.PARAMS, currLine, null);
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_VOID) {
+			TreeNode v = node(TreeNodeKind.VOID, currLine, tokens.getValue(token));
 			params.addChild(v);
 		} else {
-			cacheToken(token);
+			reset(token);
 			TreeNode paramList = paramList();
 			params.addChild(paramList);
 		}
@@ -191,23 +271,24 @@ public class BPLParser {
 	}
 
 	private TreeNode paramList() throws BPLParserException {
-		Token token = getNextToken();
-		cacheToken(token);
-		if (token.getKind() == Kind.T_RPAREN) {
-			return new TreeNode(TreeNodeKind.EMPTY, currLine, null);
+		int token = getNextToken();
+		reset(token);
+		if (tokens.getKind(token) == Kind.T_RPAREN) {
+			return node(TreeNodeKind.EMPTY, currLine, null);
 		}
-		TreeNode paramList = new TreeNode(TreeNodeKind.PARAM_LIST, currLine, null);
-		TreeNode param = param();
-		token = getNextToken();
-		if (token.getKind() == Kind.T_RPAREN) {
-			cacheToken(token);
-		} else {
-			assertToken(token, Kind.T_COMMA, ",");
+		TreeNode paramList = node(TreeNodeKind.PARAM_LIST, currLine, null);
+		while (tokens.getKind(token) != Kind.T_RPAREN) {
+			TreeNode param = param();
+			paramList.addChild(param);
+			token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_RPAREN) {
+				reset(token);
+			} else {
+				assertToken(token, Kind.T_COMMA, ",");
+			}
+			token = getNextToken();
+			reset(token);
 		}
-		TreeNode paramList2 = paramList();
-
-		paramList.addChild(paramList2);
-		paramList.addChild(param);
 		return paramList;
 	}
 
@@ -215,23 +296,23 @@ public class BPLParser {
 		int line = currLine;
 		TreeNode param = null;
 		TreeNode type = typeSpecifier();
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_ASTERISK) {
-			param = new TreeNode(TreeNodeKind.POINTER_PARAM, line, null);
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_ASTERISK) {
+			param = node(TreeNodeKind.POINTER_PARAM, line, null);
 		} else {
-			cacheToken(token);
+			reset(token);
 		}
 		TreeNode id = id();
 		token = getNextToken();
-		if (token.getKind() == Kind.T_LBRACKET) {
-			param = new TreeNode(TreeNodeKind.ARRAY_PARAM, line, null);
+		if (tokens.getKind(token) == Kind.T_LBRACKET) {
+			param = node(TreeNodeKind.ARRAY_PARAM, line, null);
 			token = getNextToken();
 			assertToken(token, Kind.T_RBRACKET, "]");
 		} else {
-			cacheToken(token);
+			reset(token);
 		}
 		if (param == null) {
-			param = new TreeNode(TreeNodeKind.PARAM, line, null);
+			param = node(TreeNodeKind.PARAM, line, null);
 		}
 		param.addChild(type);
 		param.addChild(id);
@@ -239,19 +320,19 @@ public class BPLParser {
 	}
 
 	private TreeNode compoundStatement() throws BPLParserException {
-		Token token = getNextToken();
+		int token = getNextToken();
 		assertToken(token, Kind.T_LBRACE, "{");
 		token = getNextToken();
-		TreeNode compoundStmt = new TreeNode(TreeNodeKind.COMPOUND_STMT, currLine, null);
+		TreeNode compoundStmt = node(TreeNodeKind.COMPOUND_STMT, currLine, null);
 		// Local decs start with Type specifier
-		if (token.getKind() == Kind.T_INT || token.getKind() == Kind.T_VOID || token.getKind() == Kind.T_STR) {
-			cacheToken(token);
+		if (tokens.getKind(token) == Kind.T_INT || tokens.getKind(token) == Kind.T_VOID || tokens.getKind(token) == Kind.T_STR) {
+			reset(token);
 			TreeNode localDecs = localDecs();
 			compoundStmt.addChild(localDecs);
 			token = getNextToken();
 		}
-		if (token.getKind() != Kind.T_RBRACE) {
-			cacheToken(token);
+		if (tokens.getKind(token) != Kind.T_RBRACE) {
+			reset(token);
 			TreeNode statementList = statementList();
 			token = getNextToken();
 			compoundStmt.addChild(statementList);
@@ -261,8 +342,8 @@ public class BPLParser {
 	}
 
 	private TreeNode whileStatement() throws BPLParserException {
-		TreeNode whileStmt = new TreeNode(TreeNodeKind.WHILE_STMT, currLine, null);
-		Token token = getNextToken();
+		TreeNode whileStmt = node(TreeNodeKind.WHILE_STMT, currLine, null);
+		int token = getNextToken();
 		assertToken(token, Kind.T_LPAREN, "(");
 		TreeNode expression = expression();
 		token = getNextToken();
@@ -274,8 +355,8 @@ public class BPLParser {
 	}
 
 	private TreeNode ifStatement() throws BPLParserException {
-		TreeNode ifStmt = new TreeNode(TreeNodeKind.IF_STMT, currLine, null);
-		Token token = getNextToken();
+		TreeNode ifStmt = node(TreeNodeKind.IF_STMT, currLine, null);
+		int token = getNextToken();
 		assertToken(token, Kind.T_LPAREN, "(");
 		TreeNode expression = expression();
 		token = getNextToken();
@@ -284,8 +365,8 @@ public class BPLParser {
 		ifStmt.addChild(expression);
 		ifStmt.addChild(stmt);
 		token = getNextToken();
-		if (token.getKind() != Kind.T_ELSE) {
-			cacheToken(token);
+		if (tokens.getKind(token) != Kind.T_ELSE) {
+			reset(token);
 			return ifStmt;
 		}
 		TreeNode elseStmt = statement();
@@ -294,12 +375,12 @@ public class BPLParser {
 	}
 
 	private TreeNode returnStatement() throws BPLParserException {
-		TreeNode returnStmt = new TreeNode(TreeNodeKind.RETURN_STMT, currLine, null);
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_SEMICOLON) {
+		TreeNode returnStmt = node(TreeNodeKind.RETURN_STMT, currLine, null);
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_SEMICOLON) {
 			return returnStmt;
 		}
-		cacheToken(token);
+		reset(token);
 		TreeNode expression = expression();
 		token = getNextToken();
 		assertToken(token, Kind.T_SEMICOLON, ";");
@@ -308,10 +389,10 @@ public class BPLParser {
 	}
 
 	private TreeNode writeStatement() throws BPLParserException {
-		TreeNode writeStmt = new TreeNode(TreeNodeKind.WRITE_STMT, currLine, null);
-		Token token = getNextToken();
+		TreeNode writeStmt = node(TreeNodeKind.WRITE_STMT, currLine, null);
+		int token = getNextToken();
 
-		if (token.getKind() == Kind.T_WRITE) {
+		if (tokens.getKind(token) == Kind.T_WRITE) {
 			token = getNextToken();
 			assertToken(token, Kind.T_LPAREN, "(");
 			TreeNode expression = expression();
@@ -332,33 +413,43 @@ public class BPLParser {
 	}
 
 	private TreeNode statementList() throws BPLParserException {
-		Token token = getNextToken();
-		cacheToken(token);
-		if (token.getKind() == Kind.T_EOF) {
+		int token = getNextToken();
+		reset(token);
+		if (tokens.getKind(token) == Kind.T_EOF) {
 			assertToken(token, Kind.T_RBRACE, "}");
 		}
 
-		if (token.getKind() == Kind.T_RBRACE) {
-			//cacheToken(token);
-			return new TreeNode(TreeNodeKind.EMPTY, currLine, null);
+		if (tokens.getKind(token) == Kind.T_RBRACE) {
+			//reset(token);
+			return node(TreeNodeKind.EMPTY, currLine, null);
+		}
+		TreeNode statementList = node(TreeNodeKind.STATEMENT_LIST, currLine, null);
+		while (tokens.getKind(token) != Kind.T_RBRACE) {
+			try {
+				TreeNode statement = statement();
+				statementList.addChild(statement);
+			} catch (BPLParserException e) {
+				recover(e);
+				skipStatement();
+			}
+			token = getNextToken();
+			reset(token);
+			if (tokens.getKind(token) == Kind.T_EOF) {
+				assertToken(token, Kind.T_RBRACE, "}");
+			}
 		}
-		TreeNode statementList = new TreeNode(TreeNodeKind.STATEMENT_LIST, currLine, null);
-		TreeNode statement = statement();
-		TreeNode statementList2 = statementList();
-		statementList.addChild(statementList2);
-		statementList.addChild(statement);
 		return statementList;
 	}
 
 	private TreeNode expressionStatement() throws BPLParserException {
-		TreeNode expressionStmt = new TreeNode(TreeNodeKind.EXPRESSION_STMT, currLine, null);
-		Token token = getNextToken();
+		TreeNode expressionStmt = node(TreeNodeKind.EXPRESSION_STMT, currLine, null);
+		int token = getNextToken();
 		// check if next token is ;
-		if (token.getKind() == Kind.T_SEMICOLON) {
+		if (tokens.getKind(token) == Kind.T_SEMICOLON) {
 			return expressionStmt;
 		}
 		// check if expression is followed by a ;
-		cacheToken(token);
+		reset(token);
 		TreeNode expression = expression();
 		token = getNextToken();
 		assertToken(token, Kind.T_SEMICOLON, ";");
@@ -366,404 +457,921 @@ public class BPLParser {
 		return expressionStmt;
 	}
 
-	private TreeNode expression() throws BPLParserException {
-		TreeNode expression = new TreeNode(TreeNodeKind.EXPRESSION, currLine, null);
-		boolean isComp = false;
-		Stack<Token> parenStack = new Stack<Token>();
-		ArrayList<Token> seenTokens = new ArrayList<Token>();
-		Token token = getNextToken();
-		seenTokens.add(token);
-		while (token.getKind() != Kind.T_EQ || !parenStack.isEmpty()) {
-			if (token.getKind() == Kind.T_SEMICOLON) {
-				// COMP_EXP
-				isComp = true;
+	// Expressions are parsed without recursion, so they may nest as deep as
+	// the heap allows. Each production below that can hold another
+	// expression keeps a Frame on the frames stack while it waits for one,
+	// and step() takes the top frame one step further each time: it either
+	// pushes a frame for the next part, or returns the node its frame
+	// built. The steps read the same tokens and build the
+	// same nodes, in the same order and on the same lines, as the recursive
+	// descent they stand for, given with each production.
+	//
+	// A step takes the first step of a frame it pushes itself, through
+	// start(), when the frame's production cannot lead back to its own: an
+	// ASSIGNMENT's VAR, an EXPRESSION's operator, an operator's operands,
+	// and the FACTOR of & or *. Operands that hold no other expression are
+	// then built without going back to expression(), and the Java stack is
+	// never deeper than that chain. An EXPRESSION, or a UNARY under a -, is
+	// always left to expression().
+
+	// Whether the expression starting at the next token is an assignment: a
+	// = comes before the first ; and the first , ) or ] outside the brackets
+	// opened in the expression. The next token is left where it was and the
+	// current line at that of the token the scan stopped at.
+	//
+	// The closing token of a bracket inside another, or the ; the scan
+	// stopped at inside it, is kept in closes once found. The scans of the
+	// expressions nested in the outer bracket skip the inner one in one
+	// step, so an expression nested n deep is not scanned again at each of
+	// the n levels.
+	private boolean isAssignment() throws BPLParserException {
+		int mark = mark();
+		if (closes == null) {
+			closeBase = mark;
+		}
+		int open = 0;
+		boolean assignment = false;
+		int token = getNextToken();
+		while (true) {
+			Kind kind = tokens.getKind(token);
+			if (kind == Kind.T_EQ && open == 0) {
+				assignment = true;
 				break;
-			} else if (token.getKind() == Kind.T_COMMA && parenStack.isEmpty()) {
-				// COMP_EXP
-				isComp = true;
+			} else if (kind == Kind.T_SEMICOLON || kind == Kind.T_EOF) {
+				while (open > 1) {
+					setClose(openers[--open], token);
+				}
+				break;
+			} else if (kind == Kind.T_COMMA && open == 0) {
 				break;
-			} else if (token.getKind() == Kind.T_RPAREN || token.getKind() == Kind.T_RBRACKET) {
-				if (parenStack.isEmpty()) {
-					// COMP_EXP
-					isComp = true;
+			} else if (kind == Kind.T_RPAREN || kind == Kind.T_RBRACKET) {
+				if (open == 0) {
 					break;
 				}
-				// take matching paren/bracket off stack
-				if (token.getKind() == Kind.T_RPAREN) {
-					assertToken(parenStack.pop(), Kind.T_LPAREN, "]");
-				} else { //token.getKind() == Kind.T_RBRACKET
-					assertToken(parenStack.pop(), Kind.T_LBRACKET, ")");
+				// take the matching paren/bracket off the stack
+				int opener = openers[--open];
+				if (kind == Kind.T_RPAREN) {
+					assertToken(opener, Kind.T_LPAREN, "]");
+				} else {
+					assertToken(opener, Kind.T_LBRACKET, ")");
+				}
+				if (open > 0) {
+					setClose(opener, token);
 				}
-			} else if (token.getKind() == Kind.T_LPAREN || token.getKind() == Kind.T_LBRACKET) {
-				parenStack.push(token);
+			} else if (kind == Kind.T_LPAREN || kind == Kind.T_LBRACKET) {
+				int close = getClose(token);
+				if (close >= 0) {
+					reset(close);
+					token = getNextToken();
+					if (tokens.getKind(token) == Kind.T_RPAREN || tokens.getKind(token) == Kind.T_RBRACKET) {
+						token = getNextToken();
+					}
+					continue;
+				}
+				if (open == openers.length) {
+					openers = Arrays.copyOf(openers, open * 2);
+				}
+				openers[open++] = token;
 			}
 			token = getNextToken();
-			seenTokens.add(token);
 		}
-		for (Token t : seenTokens) {
-			cacheToken(t);
+		reset(mark);
+		return assignment;
+	}
+
+	// the token a scan stopped at for the bracket opened by opener, -1 if
+	// none has
+	private int getClose(int opener) {
+		int i = opener - closeBase;
+		return closes == null || i < 0 || i >= closes.length ? -1 : closes[i] - 1;
+	}
+
+	private void setClose(int opener, int token) {
+		if (closes == null) {
+			closes = new int[64];
+		}
+		int i = opener - closeBase;
+		if (i < 0) {
+			return;
 		}
+		if (i >= closes.length) {
+			closes = Arrays.copyOf(closes, Math.max(closes.length * 2, i + 1));
+		}
+		closes[i] = token + 1;
+	}
+
+	private TreeNode expression() throws BPLParserException {
+		int base = frameCount;
+		try {
+			push(EXPRESSION, 0);
+			int result = -1;
+			while (true) {
+				int top = frameCount;
+				int node = step(frames[top - 1], result);
+				if (frameCount > top) {
+					continue;
+				}
+				frameCount--;
+				if (frameCount == base) {
+					return tree.getNode(node);
+				}
+				result = node;
+			}
+		} finally {
+			// an error leaves frames behind; drop them
+			frameCount = base;
+		}
+	}
 
-		if (isComp) {
-			TreeNode compExp = compExp();
-			expression.addChild(compExp);
-		} else { // found VAR = EXP
-			TreeNode assignExp = assignmentExpression();
-			expression.addChild(assignExp);
+	// starts a frame for production, with minPrecedence for a BINARY one
+	private void push(int production, int minPrecedence) {
+		if (frameCount == frames.length) {
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		}
+		Frame frame = frames[frameCount];
+		if (frame == null) {
+			frame = new Frame();
+			frames[frameCount] = frame;
 		}
-		return expression;
+		frame.production = production;
+		frame.step = 0;
+		frame.minPrecedence = minPrecedence;
+		frame.node = -1;
+		frame.left = -1;
+		frameCount++;
 	}
 
-	private TreeNode assignmentExpression() throws BPLParserException {
-		TreeNode assignExp = new TreeNode(TreeNodeKind.ASSIGN_EXP, currLine, null);
-		TreeNode var = var();
-		Token token = getNextToken();
-		assertToken(token, Kind.T_EQ, "=");
-		TreeNode expression = expression();
-		assignExp.addChild(var);
-		assignExp.addChild(expression);
-		return assignExp;
+	// the frame push() started last
+	private Frame top() {
+		return frames[frameCount - 1];
 	}
 
-	private TreeNode var() throws BPLParserException {
-		int line = currLine;
-		TreeNode var = null;
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_ASTERISK) {
-			var = new TreeNode(TreeNodeKind.POINTER_VAR, line, null);
-		} else {
-			cacheToken(token);
+	// Ends the top frame if its first step returned node, and returns node:
+	// -1 if the frame is waiting for another it pushed.
+	private int start(int node) {
+		if (node >= 0) {
+			frameCount--;
 		}
-		TreeNode id = id();
-		token = getNextToken();
+		return node;
+	}
 
-		if (token.getKind() == Kind.T_LBRACKET) {
-			var = new TreeNode(TreeNodeKind.ARRAY_VAR, line, null);
-			TreeNode exp = expression();
-			token = getNextToken();
-			assertToken(token, Kind.T_RBRACKET, "]");
-			var.addChild(id);
-			var.addChild(exp);
-		} else {
-			cacheToken(token);
+	// Takes frame one step, result being the node of the frame it pushed
+	// last. Returns the node the frame built, or -1 if it pushed another.
+	private int step(Frame frame, int result) throws BPLParserException {
+		switch (frame.production) {
+		case EXPRESSION:
+			return expressionStep(frame, result);
+		case ASSIGNMENT:
+			return assignmentStep(frame, result);
+		case VAR:
+			return varStep(frame, result);
+		case BINARY:
+			return binaryStep(frame, result);
+		case UNARY:
+			return unaryStep(frame, result);
+		case FACTOR:
+			return factorStep(frame, result);
+		default:
+			return funCallStep(frame, result);
 		}
+	}
+
+	// EXPRESSION: ASSIGN_EXP if isAssignment(), else BINARY(REL_PRECEDENCE)
+	private int expressionStep(Frame frame, int result) throws BPLParserException {
+		if (frame.step == 0) {
+			frame.node = tree.add(TreeNodeKind.EXPRESSION, currLine, null);
+			frame.step = 1;
+			if (isAssignment()) {
+				push(ASSIGNMENT, 0);
+				result = start(assignmentStep(top(), -1));
+			} else {
+				push(BINARY, REL_PRECEDENCE);
+				result = start(binaryStep(top(), -1));
+			}
+			if (result < 0) {
+				return -1;
+			}
+		}
+		tree.addChild(frame.node, result);
+		return frame.node;
+	}
 
-		if (var == null) {
-			var = new TreeNode(TreeNodeKind.VAR, line, null);
+	// ASSIGN_EXP: VAR = EXPRESSION
+	private int assignmentStep(Frame frame, int result) throws BPLParserException {
+		if (frame.step == 0) {
+			frame.node = tree.add(TreeNodeKind.ASSIGN_EXP, currLine, null);
+			frame.step = 1;
+			push(VAR, 0);
+			result = start(varStep(top(), -1));
+			if (result < 0) {
+				return -1;
+			}
 		}
-		if (var.getKind() != TreeNodeKind.ARRAY_VAR) {
-			var.addChild(id);
+		if (frame.step == 1) {
+			frame.left = result;
+			int token = getNextToken();
+			assertToken(token, Kind.T_EQ, "=");
+			frame.step = 2;
+			push(EXPRESSION, 0);
+			return -1;
 		}
-		return var;
+		tree.addChild(frame.node, frame.left);
+		tree.addChild(frame.node, result);
+		return frame.node;
 	}
 
-	private TreeNode compExp() throws BPLParserException {
-		TreeNode comExp = new TreeNode(TreeNodeKind.COMP_EXP, currLine, null);
-		TreeNode E = E();
-		Token token = getNextToken();
-		Kind tokenKind = token.getKind();
-		// E RELOP E
-		if (tokenKind == Kind.T_LEQ || tokenKind == Kind.T_LESS || tokenKind == Kind.T_DOUBLEEQ
-				|| tokenKind == Kind.T_NEQ || tokenKind == Kind.T_GREATER || tokenKind == Kind.T_GEQ) {
-			cacheToken(token);
-			TreeNode relop = relop();
-			TreeNode E2 = E();
-			comExp.addChild(E);
-			comExp.addChild(relop);
-			comExp.addChild(E2);
-		} else {
-			cacheToken(token);
-			comExp.addChild(E);
-		}
-		return comExp;
-	}
-
-	private TreeNode E() throws BPLParserException {
-		TreeNode E = new TreeNode(TreeNodeKind.E, currLine, null);
-		TreeNode T = T();
-		E.addChild(T);
-		Token token = getNextToken();
-		while (token.getKind() == Kind.T_PLUS || token.getKind() == Kind.T_MINUS) {
-			cacheToken(token);
-			TreeNode addop = addop();
-			TreeNode T2 = T();
-			TreeNode E2 = new TreeNode(TreeNodeKind.E, currLine, null);
-			E2.addChild(E);
-			E2.addChild(addop);
-			E2.addChild(T2);
-			E = E2;
+	// VAR: <id>, POINTER_VAR: * <id>, or ARRAY_VAR: <id> [ EXPRESSION ], all
+	// on the line current when they start
+	private int varStep(Frame frame, int result) throws BPLParserException {
+		if (frame.step == 0) {
+			frame.line = currLine;
+			int token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_ASTERISK) {
+				frame.node = tree.add(TreeNodeKind.POINTER_VAR, frame.line, null);
+			} else {
+				reset(token);
+			}
+			frame.left = id().getId();
 			token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_LBRACKET) {
+				frame.node = tree.add(TreeNodeKind.ARRAY_VAR, frame.line, null);
+				frame.step = 1;
+				push(EXPRESSION, 0);
+				return -1;
+			}
+			reset(token);
+			if (frame.node < 0) {
+				frame.node = tree.add(TreeNodeKind.VAR, frame.line, null);
+			}
+			tree.addChild(frame.node, frame.left);
+			return frame.node;
 		}
-		cacheToken(token);
-		return E;
-	}
-
-	private TreeNode T() throws BPLParserException {
-		TreeNode T = new TreeNode(TreeNodeKind.T, currLine, null);
-		TreeNode F = F();
-		T.addChild(F);
-		Token token = getNextToken();
-		while (token.getKind() == Kind.T_ASTERISK || token.getKind() == Kind.T_FSLASH || token.getKind() == Kind.T_PERCENT) {
-			cacheToken(token);
-			TreeNode mulop = mulop();
-			TreeNode F2 = F();
-			TreeNode T2 = new TreeNode(TreeNodeKind.T, currLine, null);
-			T2.addChild(T);
-			T2.addChild(mulop);
-			T2.addChild(F2);
-			T = T2;
-			token = getNextToken();
+		int token = getNextToken();
+		assertToken(token, Kind.T_RBRACKET, "]");
+		tree.addChild(frame.node, frame.left);
+		tree.addChild(frame.node, result);
+		return frame.node;
+	}
+
+	// Parses the operators of precedence minPrecedence and up by precedence
+	// climbing, giving one REL_EXP, ADD_EXP or MUL_EXP node per operator with
+	// the operator as its value and its operands as children, and operands
+	// as leaves. Sums and products are left associative; a comparison takes
+	// sums as operands and cannot be an operand of another comparison.
+	//
+	// A comparison is on the line current when it starts, a sum on the line
+	// of the token after its right operand and a product on the line its
+	// right operand ends on. The type checker reports errors on these lines.
+	//
+	// The left operand so far is frame.left, and the operator waiting for
+	// its right one frame.token.
+	private int binaryStep(Frame frame, int result) throws BPLParserException {
+		if (frame.step == 0) {
+			frame.line = currLine;
+			frame.step = 1;
+			push(UNARY, 0);
+			result = start(unaryStep(top(), -1));
+			if (result < 0) {
+				return -1;
+			}
 		}
-		cacheToken(token);
-		return T;
-	}
-
-	private TreeNode F() throws BPLParserException {
-		TreeNode F = null;
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_MINUS) {
-			F = new TreeNode(TreeNodeKind.NEG_F, currLine, null);
-			TreeNode F2 = F();
-			F.addChild(F2);
-			//TreeNode fac = factor();
-			//F.addChild(fac);
-		} else if (token.getKind() == Kind.T_AMPERSAND) {
-			F = new TreeNode(TreeNodeKind.ADDRESS_F, currLine, null);
-			TreeNode fac = factor();
-			F.addChild(fac);
-		} else if (token.getKind() == Kind.T_ASTERISK) {
-			F = new TreeNode(TreeNodeKind.DEREF_F, currLine, null);
-			TreeNode fac = factor();
-			F.addChild(fac);
-		} else {
-			F = new TreeNode(TreeNodeKind.F, currLine, null);
-			cacheToken(token);
-			TreeNode factor = factor();
-			F.addChild(factor);
+		while (true) {
+			if (frame.step == 1) {
+				frame.left = result;
+			} else {
+				int precedence = precedence(tokens.getKind(frame.token));
+				int exp = tree.add(BINARY_KINDS[precedence], precedence == REL_PRECEDENCE ? frame.line : currLine, tokens.getValue(frame.token));
+				tree.addChild(exp, frame.left);
+				tree.addChild(exp, result);
+				if (precedence == REL_PRECEDENCE) {
+					return exp;
+				}
+				frame.left = exp;
+			}
+			int token = getNextToken();
+			int precedence = precedence(tokens.getKind(token));
+			if (precedence < frame.minPrecedence) {
+				reset(token);
+				return frame.left;
+			}
+			frame.token = token;
+			frame.step = 2;
+			if (precedence == MUL_PRECEDENCE) {
+				push(UNARY, 0);
+				result = start(unaryStep(top(), -1));
+			} else {
+				push(BINARY, precedence + 1);
+				result = start(binaryStep(top(), -1));
+			}
+			if (result < 0) {
+				return -1;
+			}
+		}
+	}
+
+	private static int precedence(Kind kind) {
+		if (kind == Kind.T_LEQ || kind == Kind.T_LESS || kind == Kind.T_DOUBLEEQ
+				|| kind == Kind.T_NEQ || kind == Kind.T_GREATER || kind == Kind.T_GEQ) {
+			return REL_PRECEDENCE;
+		} else if (kind == Kind.T_PLUS || kind == Kind.T_MINUS) {
+			return ADD_PRECEDENCE;
+		} else if (kind == Kind.T_ASTERISK || kind == Kind.T_FSLASH || kind == Kind.T_PERCENT) {
+			return MUL_PRECEDENCE;
 		}
-		return F;
+		return 0;
 	}
 
-	private TreeNode factor() throws BPLParserException {
-		TreeNode factor = null;
-		Token token = getNextToken();
+	// NEG_F: - UNARY, ADDRESS_F: & FACTOR, DEREF_F: * FACTOR, or a FACTOR
+	private int unaryStep(Frame frame, int result) throws BPLParserException {
+		if (frame.step == 0) {
+			int token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_MINUS) {
+				frame.node = tree.add(TreeNodeKind.NEG_F, currLine, null);
+				frame.step = 1;
+				push(UNARY, 0);
+				return -1;
+			} else if (tokens.getKind(token) == Kind.T_AMPERSAND || tokens.getKind(token) == Kind.T_ASTERISK) {
+				frame.node = tree.add(tokens.getKind(token) == Kind.T_AMPERSAND ? TreeNodeKind.ADDRESS_F : TreeNodeKind.DEREF_F, currLine, null);
+				frame.step = 1;
+				push(FACTOR, 0);
+				result = start(factorStep(top(), -1));
+				if (result < 0) {
+					return -1;
+				}
+			} else {
+				// the frame goes on as the operand's
+				reset(token);
+				frame.production = FACTOR;
+				return factorStep(frame, -1);
+			}
+		}
+		tree.addChild(frame.node, result);
+		return frame.node;
+	}
 
-		if (token.getKind() == Kind.T_READ) {
-			factor = new TreeNode(TreeNodeKind.FACTOR, currLine, null);
+	// an operand: READ, NUM, STR, ID, ARRAY_FACTOR: <id> [ EXPRESSION ],
+	// FUN_CALL or ( EXPRESSION )
+	private int factorStep(Frame frame, int result) throws BPLParserException {
+		if (frame.step == 1) {
+			int token = getNextToken();
+			assertToken(token, Kind.T_RBRACKET, "]");
+			int factor = tree.add(TreeNodeKind.ARRAY_FACTOR, currLine, null);
+			tree.addChild(factor, frame.left);
+			tree.addChild(factor, result);
+			return factor;
+		} else if (frame.step == 2) {
+			int token = getNextToken();
+			assertToken(token, Kind.T_RPAREN, ")");
+			return result;
+		}
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_READ) {
 			token = getNextToken();
 			assertToken(token, Kind.T_LPAREN, "(");
 			token = getNextToken();
 			assertToken(token, Kind.T_RPAREN, ")");
-			factor.addChild(new TreeNode(TreeNodeKind.READ, currLine, null));
-		} else if (token.getKind() == Kind.T_NUM) {
-			factor = new TreeNode(TreeNodeKind.FACTOR, currLine, null);
-			cacheToken(token);
-			TreeNode num = num();
-			factor.addChild(num);
-		} else if (token.getKind() == Kind.T_STRING) {
-			factor = new TreeNode(TreeNodeKind.FACTOR, currLine, null);
-			cacheToken(token);
-			TreeNode string = string();
-			factor.addChild(string);
-		} else if (token.getKind() == Kind.T_ID) {
-			Token token2 = getNextToken();
-			cacheToken(token2);
-			if (token2.getKind() == Kind.T_LBRACKET) {
-				cacheToken(token);
-				TreeNode id = id();
+			return tree.add(TreeNodeKind.READ, currLine, null);
+		} else if (tokens.getKind(token) == Kind.T_NUM) {
+			reset(token);
+			return num().getId();
+		} else if (tokens.getKind(token) == Kind.T_STRING) {
+			reset(token);
+			return string().getId();
+		} else if (tokens.getKind(token) == Kind.T_ID) {
+			int token2 = getNextToken();
+			reset(token);
+			if (tokens.getKind(token2) == Kind.T_LBRACKET) {
+				frame.left = id().getId();
 				token = getNextToken();
 				assertToken(token, Kind.T_LBRACKET, "[");
-				TreeNode exp = expression();
-				token2 = getNextToken();
-				assertToken(token2, Kind.T_RBRACKET, "]");
-				factor = new TreeNode(TreeNodeKind.ARRAY_FACTOR, currLine, null);
-				factor.addChild(id);
-				factor.addChild(exp);
-			} else if (token2.getKind() == Kind.T_LPAREN) { // funCall
-				cacheToken(token);
-				factor = new TreeNode(TreeNodeKind.FACTOR, currLine, null);
-				TreeNode funCall = funCall();
-				factor.addChild(funCall);
-			} else {
-				factor = new TreeNode(TreeNodeKind.FACTOR, currLine, null);
-				cacheToken(token);
-				TreeNode id = id();
-				factor.addChild(id);
-			}
-		} else if (token.getKind() == Kind.T_LPAREN) {
-			factor = new TreeNode(TreeNodeKind.FACTOR, currLine, null);
-			TreeNode exp = expression();
-			token = getNextToken();
-			assertToken(token, Kind.T_RPAREN, ")");
-			//cacheToken(token);
-			factor.addChild(exp);
-		} else {
-			throw new BPLParserException("Parser Error: Expected " + "<EXPRESSION>" + " but got " + token.getKind() + " on line " + token.getLine());
+				frame.step = 1;
+				push(EXPRESSION, 0);
+				return -1;
+			} else if (tokens.getKind(token2) == Kind.T_LPAREN) {
+				frame.production = FUN_CALL;
+				return funCallStep(frame, -1);
+			}
+			return id().getId();
+		} else if (tokens.getKind(token) == Kind.T_LPAREN) {
+			frame.step = 2;
+			push(EXPRESSION, 0);
+			return -1;
 		}
-		//System.out.println("Current Token: " + token);
-		//printCache();
-		return factor;
+		errorToken = token;
+		throw new BPLParserException("Parser Error: Expected " + "<EXPRESSION>" + " but got " + tokens.getKind(token) + " on line " + tokens.getLine(token));
 	}
 
-	private TreeNode funCall() throws BPLParserException {
-		TreeNode funCall = new TreeNode(TreeNodeKind.FUN_CALL, currLine, null);
-		TreeNode id = id();
-		Token token = getNextToken();
-		assertToken(token, Kind.T_LPAREN, "(");
-		TreeNode args = args();
-		token = getNextToken();
-		assertToken(token, Kind.T_RPAREN, ")");
-		funCall.addChild(id);
-		funCall.addChild(args);
-		return funCall;
-	}
-
-	private TreeNode args() throws BPLParserException {
-		TreeNode args = new TreeNode(TreeNodeKind.ARGS, currLine, null);
-		Token token = getNextToken();
-		if (token.getKind() == Kind.T_RPAREN) {
-			TreeNode empty = new TreeNode(TreeNodeKind.EMPTY, currLine, null);
-			args.addChild(empty);
-			cacheToken(token);
+	// FUN_CALL: <id> ( ARGS ), where ARGS holds EMPTY or an ARG_LIST of
+	// EXPRESSIONs separated by commas; the ARG_LIST is frame.left
+	private int funCallStep(Frame frame, int result) throws BPLParserException {
+		int token;
+		if (frame.step == 0) {
+			frame.node = tree.add(TreeNodeKind.FUN_CALL, currLine, null);
+			tree.addChild(frame.node, id().getId());
+			token = getNextToken();
+			assertToken(token, Kind.T_LPAREN, "(");
+			int args = tree.add(TreeNodeKind.ARGS, currLine, null);
+			tree.addChild(frame.node, args);
+			token = getNextToken();
+			reset(token);
+			if (tokens.getKind(token) == Kind.T_RPAREN) {
+				tree.addChild(args, tree.add(TreeNodeKind.EMPTY, currLine, null));
+			} else {
+				frame.left = tree.add(TreeNodeKind.ARG_LIST, currLine, null);
+				tree.addChild(args, frame.left);
+			}
 		} else {
-			cacheToken(token);
-			TreeNode argList = argList();
-			args.addChild(argList);
+			tree.addChild(frame.left, result);
+			token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_RPAREN) {
+				reset(token);
+			} else {
+				assertToken(token, Kind.T_COMMA, ",");
+			}
+			token = getNextToken();
+			reset(token);
 		}
-		return args;
-	}
-
-	private TreeNode argList() throws BPLParserException {
-		Token token = getNextToken();
-		cacheToken(token);
-		if (token.getKind() == Kind.T_RPAREN) {
-			return new TreeNode(TreeNodeKind.EMPTY, currLine, null);
+		if (tokens.getKind(token) != Kind.T_RPAREN) {
+			frame.step = 1;
+			push(EXPRESSION, 0);
+			return -1;
 		}
-		TreeNode argList = new TreeNode(TreeNodeKind.ARG_LIST, currLine, null);
-		TreeNode exp = expression();
 		token = getNextToken();
-		if (token.getKind() == Kind.T_RPAREN) {
-			cacheToken(token);
-		} else {
-			assertToken(token, Kind.T_COMMA, ",");
-		}
-		TreeNode argList2 = argList();
-		argList.addChild(argList2);
-		argList.addChild(exp);
-		return argList;
+		assertToken(token, Kind.T_RPAREN, ")");
+		return frame.node;
 	}
 
 	private TreeNode id() throws BPLParserException {
-		Token token = getNextToken();
+		int token = getNextToken();
 		assertToken(token, Kind.T_ID, "<id>");
-		return new TreeNode(TreeNodeKind.ID, currLine, token.getValue());
+		return tree.getNode(tree.addId(currLine, tokens.getSymbol(token)));
 	}
 
 	private TreeNode num() throws BPLParserException {
-		Token token = getNextToken();
+		int token = getNextToken();
 		assertToken(token, Kind.T_NUM, "<num>");
-		return new TreeNode(TreeNodeKind.NUM, currLine, token.getValue());
+		return tree.getNode(tree.addNum(currLine, tokens.getValue(token)));
 	}
 
 	private TreeNode string() throws BPLParserException {
-		Token token = getNextToken();
+		int token = getNextToken();
 		assertToken(token, Kind.T_STRING, "<string>");
-		return new TreeNode(TreeNodeKind.STR, currLine, token.getValue());
+		return node(TreeNodeKind.STR, currLine, tokens.getValue(token));
 	}
 
-	private TreeNode relop() throws BPLParserException {
-		TreeNode relop = new TreeNode(TreeNodeKind.RELOP, currLine, null);
-		Token token = getNextToken();
-		Kind tokenKind = token.getKind();
-		if (tokenKind == Kind.T_LEQ || tokenKind == Kind.T_LESS || tokenKind == Kind.T_DOUBLEEQ
-				|| tokenKind == Kind.T_NEQ || tokenKind == Kind.T_GREATER || tokenKind == Kind.T_GEQ) {
-			TreeNode eqRelOp = new TreeNode(TreeNodeKind.EQ_REL_OP, currLine, token.getValue());
-			relop.addChild(eqRelOp);
-		} else {
-			assertToken(token, Kind.T_LEQ, "<=, <, ==, !=, >, >=");
+	// adds a node to the tree and returns a view of it
+	private TreeNode node(TreeNodeKind kind, int line, String value) {
+		return tree.getNode(tree.add(kind, line, value));
+	}
+
+	private boolean assertToken(int t, Kind expectedKind, String expectedString) throws BPLParserException {
+		if (tokens.getKind(t) != expectedKind) {
+			errorToken = t;
+			throw new BPLParserException("Parser Error: Expected " + expectedString + " but got " + tokens.getKind(t) + " on line " + tokens.getLine(t));
 		}
-		return relop;
+		return true;
 	}
 
-	private TreeNode addop() throws BPLParserException {
-		TreeNode addop = new TreeNode(TreeNodeKind.ADDOP, currLine, null);
-		Token token = getNextToken();
-		Kind tokenKind = token.getKind();
-		if (tokenKind == Kind.T_PLUS || tokenKind == Kind.T_MINUS) {
-			TreeNode arthmop = new TreeNode(TreeNodeKind.ARITHM_OP, currLine, token.getValue());
-			addop.addChild(arthmop);
-		} else {
-			assertToken(token, Kind.T_PLUS, "+, -");
+	// Reports e to diagnostics, if there are any, for parsing to resume at
+	// the next statement or declaration. Throws e if there are none, if the
+	// scanner stopped so there are no more tokens, or if diagnostics is full.
+	private void recover(BPLParserException e) throws BPLParserException {
+		if (diagnostics == null || scannerFailed || !diagnostics.report(e.getMessage())) {
+			throw e;
 		}
-		return addop;
 	}
 
-	private TreeNode mulop() throws BPLParserException {
-		TreeNode mulop = new TreeNode(TreeNodeKind.MULOP, currLine, null);
-		Token token = getNextToken();
-		Kind tokenKind = token.getKind();
-		if (tokenKind == Kind.T_ASTERISK || tokenKind == Kind.T_FSLASH
-				|| tokenKind == Kind.T_PERCENT) {
-			TreeNode arthmop = new TreeNode(TreeNodeKind.ARITHM_OP, currLine, token.getValue());
-			mulop.addChild(arthmop);
-		} else {
-			assertToken(token, Kind.T_ASTERISK, "*, /, %");
+	// Skips from the token at fault to the end of its statement: past the
+	// next ; or the block that starts before one, or up to the } closing
+	// the enclosing block.
+	private void skipStatement() throws BPLParserException {
+		reset(errorToken);
+		int depth = 0;
+		while (true) {
+			int token = peek(0);
+			Kind kind = tokens.getKind(token);
+			if (kind == Kind.T_EOF || (kind == Kind.T_RBRACE && depth == 0)) {
+				return;
+			}
+			getNextToken();
+			if (kind == Kind.T_SEMICOLON && depth == 0) {
+				return;
+			} else if (kind == Kind.T_LBRACE) {
+				depth++;
+			} else if (kind == Kind.T_RBRACE && --depth == 0) {
+				return;
+			}
 		}
-		return mulop;
 	}
 
-	private boolean assertToken(Token t, Kind expectedKind, String expectedString) throws BPLParserException {
-		if (t.getKind() != expectedKind) {
-			throw new BPLParserException("Parser Error: Expected " + expectedString + " but got " + t.getKind() + " on line " + t.getLine());
+	// Skips from the token at fault in the declaration starting at start to
+	// the next type outside braces, which starts the next declaration.
+	private void skipDeclaration(int start) throws BPLParserException {
+		reset(Math.max(errorToken, start + 1));
+		int depth = 0;
+		while (true) {
+			int token = peek(0);
+			Kind kind = tokens.getKind(token);
+			if (kind == Kind.T_EOF || (depth == 0 && (kind == Kind.T_INT || kind == Kind.T_VOID || kind == Kind.T_STR))) {
+				return;
+			}
+			getNextToken();
+			if (kind == Kind.T_LBRACE) {
+				depth++;
+			} else if (kind == Kind.T_RBRACE && depth > 0) {
+				depth--;
+			}
+		}
+	}
+
+	// Parses like parse(), but reports each syntax error to diagnostics and
+	// goes on: a statement or local declaration in error is skipped up to
+	// its ; or the end of its block, and a top-level declaration up to the
+	// next one. Returns the tree of what parsed, or null if diagnostics
+	// filled up or the scanner stopped on an error.
+	public TreeNode parse(BPLDiagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+		try {
+			return parse();
+		} catch (BPLParserException e) {
+			if (!diagnostics.isFull()) {
+				diagnostics.report(e.getMessage());
+			}
+			return null;
+		} finally {
+			this.diagnostics = null;
 		}
-		return true;
 	}
 
 	public TreeNode parse() throws BPLParserException {
 		//getNextToken();
-		TreeNode node = program();
-		if (getNextToken().getKind() != Kind.T_EOF) {
-			return null;
+		tree = new SyntaxTree(tokens.getSymbolTable(), Math.max(16, tokens.size() / 2 * 3));
+		try {
+			TreeNode node = program();
+			if (tokens.getKind(getNextToken()) != Kind.T_EOF) {
+				return null;
+			}
+			return node;
+		} finally {
+			if (pipe != null) {
+				pipe.cancel();
+			}
 		}
-		return node;
 	}
 
-	private Token getNextToken() throws BPLParserException {
-		if (tokenCache.size() > 0) {
-			Token token = tokenCache.remove();
-			currLine = token.getLine();
-			return token;
+	// Brings program, the tree parsed from previous, up to date with tokens,
+	// which BPLScanner.rescan() returned for previous and the same edit:
+	// removed characters at offset replaced with inserted. The tree is
+	// changed in place and its root returned, unless it is compacted (see
+	// below); previous must not be used with it again.
+	//
+	// Tokens that end before the edit and those matching previous's last
+	// tokens, shifted by the edit, are unchanged. Parsing restarts at the
+	// first token of the top-level declaration holding the first changed
+	// token, with the state parse() had there, and goes on one declaration
+	// at a time until it reaches the first token of an old declaration made
+	// only of unchanged tokens. From there on parse() would build the same
+	// declarations as before, so they are kept as they are, node numbers
+	// included, with their lines moved by the lines the edit added. Only
+	// the declarations parsed again are new; the nodes of those they replace
+	// stay in the tree's arena unused until they outnumber half the nodes in
+	// use. The nodes in use are then copied into a new tree, as parsing would
+	// leave them, whose root is returned instead, so the arena stays within
+	// one and a half times the tree and compacting costs a constant share of
+	// the parsing that filled it.
+	//
+	// Errors are those parse() gives on tokens, which is called instead when
+	// the scanner stopped on an error or there are no declarations before or
+	// after the edit.
+	public static TreeNode reparse(TreeNode program, TokenStream previous, TokenStream tokens, int offset, int removed, String inserted) throws BPLParserException {
+		SyntaxTree tree = program.getTree();
+		int count = tree.getDeclarationCount();
+		if (tokens.getError() != null || count == 0 || tokens.size() == 1) {
+			return new BPLParser(tokens).parse();
+		}
+		int tokenShift = tokens.size() - previous.size();
+		int shift = inserted.length() - removed;
+		int prefix = previous.countEndingBefore(offset);
+		int suffix = 0;
+		while (suffix < Math.min(previous.size(), tokens.size()) - prefix) {
+			int old = previous.size() - 1 - suffix;
+			int token = old + tokenShift;
+			if (previous.getSpanStart(old) < offset + removed || previous.getKind(old) != tokens.getKind(token)
+					|| previous.getSpanStart(old) + shift != tokens.getSpanStart(token) || previous.getLength(old) != tokens.getLength(token)) {
+				break;
+			}
+			suffix++;
+		}
+
+		// declarations [first, reused) are parsed again, the first holding
+		// token prefix and reused the first one past the changed tokens
+		int first = 0;
+		while (first + 1 < count && tree.getDeclarationToken(first + 1) <= prefix) {
+			first++;
+		}
+		int reused = first;
+		while (reused < count && tree.getDeclarationToken(reused) < previous.size() - suffix) {
+			reused++;
+		}
+
+		int[] nodes = new int[count + 16];
+		int[] starts = new int[count + 16];
+		int size = 0;
+		for (int i = 0; i < first; i++) {
+			nodes[size] = tree.getDeclarationNode(i);
+			starts[size] = tree.getDeclarationToken(i);
+			size++;
 		}
+		BPLParser parser = new BPLParser(tokens);
+		parser.tree = tree;
+		parser.tokenIndex = tree.getDeclarationToken(first);
+		parser.reset(parser.getNextToken());
+		while (true) {
+			while (reused < count && tree.getDeclarationToken(reused) + tokenShift < parser.tokenIndex) {
+				reused++;
+			}
+			if (reused < count && tree.getDeclarationToken(reused) + tokenShift == parser.tokenIndex) {
+				break;
+			}
+			if (tokens.getKind(parser.tokenIndex) == Kind.T_EOF) {
+				break;
+			}
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+			}
+			starts[size] = parser.tokenIndex;
+			nodes[size] = parser.declaration().getId();
+			size++;
+			parser.reset(parser.getNextToken());
+		}
+
+		int lineShift = reused < count ? tokens.getLine(tree.getDeclarationToken(reused) + tokenShift) - previous.getLine(tree.getDeclarationToken(reused)) : 0;
+		if (size + count - reused > nodes.length) {
+			nodes = Arrays.copyOf(nodes, size + count - reused);
+			starts = Arrays.copyOf(starts, size + count - reused);
+		}
+		for (int i = reused; i < count; i++) {
+			nodes[size] = tree.getDeclarationNode(i);
+			starts[size] = tree.getDeclarationToken(i) + tokenShift;
+			if (lineShift != 0) {
+				tree.shiftLines(nodes[size], lineShift);
+			}
+			size++;
+		}
+		for (int i = first; i < reused; i++) {
+			tree.release(tree.getDeclarationNode(i));
+		}
+		TreeNode decList = program.getChild(0);
+		decList.setLine(tokens.getLine(0));
+		tree.setDeclarations(decList.getId(), nodes, starts, size);
+		if (tree.getReleasedCount() > (tree.size() - tree.getReleasedCount()) / 2) {
+			return tree.compact().getNode(0);
+		}
+		return program;
+	}
+
+	public TreeNode parseParallel() throws BPLParserException {
+		int chunkCount = Math.min(tokens.size() / CHUNK_TOKENS, 4 * ForkJoinPool.commonPool().getParallelism());
+		return parseParallel(ForkJoinPool.commonPool(), Math.max(1, chunkCount));
+	}
+
+	// Parses the same tree as parse(), splitting the top-level declarations
+	// into up to chunkCount chunks parsed on pool. A declaration ends at a ';'
+	// or a '}' outside any braces, which a pass over the tokens finds without
+	// parsing. Each chunk is parsed from its first token into a SyntaxTree of
+	// its own. The chunk trees are then given ranges of nodes of one tree, in
+	// order, and copied into them on pool.
+	//
+	// The chunks match the declarations parse() finds only if the program
+	// parses. If a chunk fails, or its declarations do not end where the
+	// chunk does, the program is parsed again with parse() for its error.
+	public TreeNode parseParallel(ForkJoinPool pool, int chunkCount) throws BPLParserException {
+		if (pipe != null) {
+			throw new IllegalStateException("parseParallel() needs a scanned TokenStream");
+		}
+		if (tokens.getError() != null) {
+			return parse();
+		}
+		int[] bounds = declarationBounds(chunkCount);
+		if (bounds.length < 2) {
+			return parse();
+		}
+		Chunk[] chunks = new Chunk[bounds.length - 1];
+		pool.invoke(new ChunkParse(this, bounds, chunks, 0, chunks.length));
+		int nodes = 2;
+		for (Chunk chunk : chunks) {
+			if (chunk.tree == null) {
+				return parse();
+			}
+			nodes += chunk.tree.size();
+		}
+
+		tree = new SyntaxTree(tokens.getSymbolTable(), nodes);
+		TreeNode program = node(TreeNodeKind.PROGRAM, 1, null);
+		TreeNode decList = node(TreeNodeKind.DECLARATION_LIST, tokens.getLine(0), null);
+		program.addChild(decList);
+		for (Chunk chunk : chunks) {
+			chunk.shift = tree.reserve(chunk.tree.size());
+			chunk.stringMap = tree.internStrings(chunk.tree);
+		}
+		pool.invoke(new ChunkCopy(tree, chunks, 0, chunks.length));
+		for (Chunk chunk : chunks) {
+			for (int i = 0; i < chunk.declarationCount; i++) {
+				tree.addChild(decList.getId(), chunk.declarations[i] + chunk.shift);
+				tree.addDeclaration(chunk.declarations[i] + chunk.shift, chunk.declarationTokens[i]);
+			}
+		}
+		return program;
+	}
+
+	// Splits the tokens before the closing T_EOF at declaration ends into at
+	// most chunkCount chunks; chunk i is tokens [bounds[i], bounds[i+1]).
+	// Returns a single bound if there are no tokens before T_EOF.
+	private int[] declarationBounds(int chunkCount) {
+		int end = tokens.size() - 1;
+		int[] bounds = new int[chunkCount + 1];
+		int chunks = 0;
+		int depth = 0;
+		for (int i = 0; i < end && chunks < chunkCount - 1; i++) {
+			Kind kind = tokens.getKind(i);
+			if (kind == Kind.T_LBRACE) {
+				depth++;
+			} else if (kind == Kind.T_RBRACE) {
+				depth--;
+			}
+			boolean declarationEnd = depth == 0 && (kind == Kind.T_SEMICOLON || kind == Kind.T_RBRACE);
+			if (declarationEnd && i + 1 < end && i + 1 >= (long) end * (chunks + 1) / chunkCount) {
+				bounds[++chunks] = i + 1;
+			}
+		}
+		if (end > 0) {
+			bounds[++chunks] = end;
+		}
+		return Arrays.copyOf(bounds, chunks + 1);
+	}
+
+	// Parses the declarations in tokens [start, end) into a tree of their
+	// own, as parse() would parse them starting at start. The chunk has no
+	// tree if that fails or the last declaration does not end at end.
+	private Chunk parseChunk(int start, int end) {
+		BPLParser parser = new BPLParser(tokens);
+		parser.tree = new SyntaxTree(tokens.getSymbolTable(), Math.max(16, (end - start) / 2 * 3));
+		parser.tokenIndex = start;
+		Chunk chunk = new Chunk();
 		try {
-			scanner.getNextToken();
-		} catch (BPLScannerException e) {
-			throw new BPLParserException("Parser Error: " + e.getMessage());
+			parser.reset(parser.getNextToken());
+			while (parser.tokenIndex < end) {
+				int token = parser.tokenIndex;
+				chunk.add(parser.declaration().getId(), token);
+				parser.reset(parser.getNextToken());
+			}
+			if (parser.tokenIndex == end) {
+				chunk.tree = parser.tree;
+			}
+		} catch (BPLParserException | RuntimeException e) {
+			// parse() finds the error
 		}
-		currLine = scanner.nextToken.getLine();
-		return scanner.nextToken;
+		return chunk;
 	}
 
-	private void cacheToken(Token t) throws BPLParserException {
-		int index = 0;
-		int size = tokenCache.size();
-		for (; index < size; index++) {
-			if (tokenCache.get(index).getID() > t.getID()) {
-				break;
+	// The top-level declarations parsed from one chunk, roots in
+	// declarations and first tokens in declarationTokens, and where
+	// parseParallel() copies them: node n of tree becomes node n + shift, and
+	// string i string stringMap[i].
+	private static class Chunk {
+		private SyntaxTree tree;
+		private int[] declarations = new int[16];
+		private int[] declarationTokens = new int[16];
+		private int declarationCount;
+		private int shift;
+		private int[] stringMap;
+
+		private void add(int declaration, int token) {
+			if (declarationCount == declarations.length) {
+				declarations = Arrays.copyOf(declarations, declarationCount * 2);
+				declarationTokens = Arrays.copyOf(declarationTokens, declarationCount * 2);
 			}
+			declarations[declarationCount] = declaration;
+			declarationTokens[declarationCount] = token;
+			declarationCount++;
 		}
-		tokenCache.add(index, t);
 	}
 
-	private void printCache() {
-		System.out.println("Current Token Cache:");
-		for (Token t : tokenCache) {
-			System.out.println(t);
+	// a production expression() is part way through: step() says how far,
+	// and the other fields are what it has read and built so far
+	private static class Frame {
+		private int production;
+		private int step;
+		private int minPrecedence;
+		private int line;
+		private int token;
+		private int node;
+		private int left;
+	}
+
+	// parses chunks [low, high), splitting the range in half until it is a
+	// single chunk
+	@SuppressWarnings("serial")
+	private static class ChunkParse extends RecursiveAction {
+		private BPLParser parser;
+		private int[] bounds;
+		private Chunk[] chunks;
+		private int low;
+		private int high;
+
+		private ChunkParse(BPLParser parser, int[] bounds, Chunk[] chunks, int low, int high) {
+			this.parser = parser;
+			this.bounds = bounds;
+			this.chunks = chunks;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		protected void compute() {
+			if (high - low > 1) {
+				int mid = (low + high) >>> 1;
+				invokeAll(new ChunkParse(parser, bounds, chunks, low, mid), new ChunkParse(parser, bounds, chunks, mid, high));
+			} else {
+				chunks[low] = parser.parseChunk(bounds[low], bounds[low+1]);
+			}
+		}
+	}
+
+	// copies chunks [low, high) into tree, splitting the range in half until
+	// it is a single chunk
+	@SuppressWarnings("serial")
+	private static class ChunkCopy extends RecursiveAction {
+		private SyntaxTree tree;
+		private Chunk[] chunks;
+		private int low;
+		private int high;
+
+		private ChunkCopy(SyntaxTree tree, Chunk[] chunks, int low, int high) {
+			this.tree = tree;
+			this.chunks = chunks;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		protected void compute() {
+			if (high - low > 1) {
+				int mid = (low + high) >>> 1;
+				invokeAll(new ChunkCopy(tree, chunks, low, mid), new ChunkCopy(tree, chunks, mid, high));
+			} else {
+				tree.copyAt(chunks[low].tree, chunks[low].shift, chunks[low].stringMap);
+			}
 		}
 	}
 
-	private void printStack(Stack<Token> stack) {
-		for (Token t : stack) {
-			System.out.println(t);
+	// Tokens are read by index from the TokenStream, so lookahead needs no
+	// buffer of its own: peek(k) is an index past tokenIndex, a mark is a
+	// value of tokenIndex, and pushing tokens back is resetting to the first
+	// of them. Each of these is O(1).
+
+	// Returns the index of the next token in the TokenStream. Reading past
+	// T_EOF keeps returning T_EOF.
+	private int getNextToken() throws BPLParserException {
+		int token = peek(0);
+		if (tokens.getKind(token) != Kind.T_EOF) {
+			tokenIndex++;
+		}
+		currLine = tokens.getLine(token);
+		return token;
+	}
+
+	// Returns the index of the token k places after the next one without
+	// reading it. Looking past T_EOF returns T_EOF.
+	private int peek(int k) throws BPLParserException {
+		int token = tokenIndex + k;
+		while (token >= tokens.size() && pipe != null && pipe.take()) {
+			// wait for the scanner thread's next batch
+		}
+		if (token >= tokens.size()) {
+			if (tokens.getError() != null) {
+				// the scanner stopped on an error before this token
+				scannerFailed = true;
+				throw new BPLParserException("Parser Error: " + tokens.getError().getMessage());
+			}
+			token = tokens.size() - 1;
+		}
+		return token;
+	}
+
+	private int mark() {
+		return tokenIndex;
+	}
+
+	// makes the token at mark the next one read
+	private void reset(int mark) {
+		tokenIndex = mark;
+	}
+
+	private void printStack(Stack<Integer> stack) {
+		for (int t : stack) {
+			System.out.println(tokens.getToken(t));
 		}
 	}
 
@@ -1,50 +1,90 @@
 /* Scanner for BPL that is initialized with the FileName as a parameter.
  * Call hasNextToken() to check if there exists a next token.
  * public instance variable nextToken stores the next Token in the file.
+ * Alternatively, scan() reads every remaining token into a TokenStream
+ * without allocating a Token per token.
+ * 
+ * By default the whole file is mapped once into a single char buffer and
+ * scanned by offset, keeping the line number as a counter. Passing
+ * lineBuffered = true reads the file one line at a time through
+ * BufferedReader.readLine() instead.
+ * 
+ * rescan() updates a TokenStream after an edit to its source, scanning only
+ * the tokens near the edit. scanParallel() splits the whole-file buffer into
+ * chunks of lines and scans them on a ForkJoinPool. scanPipelined() scans
+ * on a thread of its own, handing tokens over in batches through a TokenPipe.
  * 
  * Name: Aaron (Shang Wei) Young
  * CSCI 331 Compilers Spring 2016
 */
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.lang.StringBuilder;
-import java.util.HashMap;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class BPLScanner {
 	private BufferedReader bufferedReader;
 	private String inputFileName;
 	public Token nextToken;
 	private int currLineNum;
-	private String currLine;
+	private char[] buffer;
+	private int bufferEnd;
+	private int lineEnd;
+	private int nextLineStart;
 	private int currIndex;
-	private StringBuilder currTokenValue;
-	private HashMap<String, Kind> keywordMap;
-	private HashMap<String, Kind> symbolMap;
+	private boolean lineBuffered;
 	private boolean isEOF;
 	private boolean inComment;
+	private SymbolTable symbols;
 	
-	public BPLScanner(String inputFileName) {
-		this.inputFileName = inputFileName;
-		this.bufferedReader = getBufferedReader();
-		this.nextToken = null;
-		this.currLineNum = 0;
-		this.currLine = "";
-		this.currIndex = 0;
-		this.currTokenValue = new StringBuilder();
-		this.isEOF = false;
-		this.inComment = false;
-		this.keywordMap = new HashMap<String, Kind>();
-		this.symbolMap = new HashMap<String, Kind>();
+	// the most recently scanned token, see scanToken()
+	private Kind tokenKind;
+	private int tokenStart;
+	private int tokenLength;
+	private int tokenSymbol;
+	
+	// scanParallel() aims for chunks of at least this many chars
+	private static final int CHUNK_SIZE = 1 << 18;
+	
+	// ASCII fast path for the Character.isLetter/isDigit/isWhitespace checks
+	private static final int ASCII = 128;
+	private static final byte LETTER = 1;
+	private static final byte DIGIT = 2;
+	private static final byte UNDERSCORE = 4;
+	private static final byte SPACE = 8;
+	private static final byte[] CHAR_CLASS = new byte[ASCII];
+	
+	// token values for keywords and symbols, indexed by Kind.ordinal()
+	private static final String[] LEXEMES = new String[Kind.values().length];
+	
+	static {
+		for (char c = 0; c < ASCII; c++) {
+			if (Character.isLetter(c)) {
+				CHAR_CLASS[c] |= LETTER;
+			}
+			if (Character.isDigit(c)) {
+				CHAR_CLASS[c] |= DIGIT;
+			}
+			if (Character.isWhitespace(c)) {
+				CHAR_CLASS[c] |= SPACE;
+			}
+		}
+		CHAR_CLASS['_'] |= UNDERSCORE;
 		
 		String[] keywords = {"int", "void", "string", "if", "else", "while", "return", "write", "writeln", "read"};
 		Kind[] keywordKinds = {Kind.T_INT, Kind.T_VOID, Kind.T_STR, Kind.T_IF, Kind.T_ELSE, Kind.T_WHILE, 
 				Kind.T_RETURN, Kind.T_WRITE, Kind.T_WRITELN, Kind.T_READ};
 		
 		for (int i = 0; i < keywords.length; i++) {
-			keywordMap.put(keywords[i], keywordKinds[i]);
+			LEXEMES[keywordKinds[i].ordinal()] = keywords[i];
 		}
 		
 		String[] symbols = {";", ",", "[", "]", "{", "}", "(", ")", "<", "<=", "==", "!=", ">=", ">", "+", "-", "*", 
@@ -54,39 +94,73 @@ public class BPLScanner {
 				Kind.T_PLUS, Kind.T_MINUS, Kind.T_ASTERISK, Kind.T_FSLASH, Kind.T_EQ, Kind.T_PERCENT, Kind.T_AMPERSAND};
 		
 		for (int i = 0; i < symbols.length; i++) {
-			symbolMap.put(symbols[i], symbolKinds[i]);
+			LEXEMES[symbolKinds[i].ordinal()] = symbols[i];
+		}
+		LEXEMES[Kind.T_EOF.ordinal()] = "EOF";
+	}
+	
+	public BPLScanner(String inputFileName) {
+		this(inputFileName, false);
+	}
+	
+	public BPLScanner(String inputFileName, boolean lineBuffered) {
+		this(inputFileName, lineBuffered, new SymbolTable());
+	}
+	
+	public BPLScanner(String inputFileName, boolean lineBuffered, SymbolTable symbols) {
+		this.inputFileName = inputFileName;
+		this.symbols = symbols;
+		this.lineBuffered = lineBuffered;
+		if (lineBuffered) {
+			this.bufferedReader = getBufferedReader();
+			this.buffer = new char[0];
+			this.bufferEnd = 0;
+		} else {
+			loadBuffer();
 		}
+		this.nextToken = null;
+		this.currLineNum = 0;
+		this.lineEnd = 0;
+		this.nextLineStart = 0;
+		this.currIndex = 0;
+		this.isEOF = false;
+		this.inComment = false;
+	}
+	
+	// scans source[0, sourceEnd) in whole-file mode; inputFileName is only
+	// used in error messages
+	public BPLScanner(String inputFileName, char[] source, int sourceEnd, SymbolTable symbols) {
+		this.inputFileName = inputFileName;
+		this.symbols = symbols;
+		this.lineBuffered = false;
+		this.buffer = source;
+		this.bufferEnd = sourceEnd;
+		this.nextToken = null;
+		this.currLineNum = 0;
+		this.lineEnd = 0;
+		this.nextLineStart = 0;
+		this.currIndex = 0;
+		this.isEOF = false;
+		this.inComment = false;
 	}
 	
 	// constructor for testing
 	public BPLScanner(int currLineNum, String currLine, int currIndex) {
 		this.nextToken = null;
 		this.currLineNum = currLineNum;
-		this.currLine = currLine;
+		this.buffer = currLine.toCharArray();
+		this.bufferEnd = buffer.length;
+		this.lineEnd = buffer.length;
+		this.nextLineStart = buffer.length + 1;
 		this.currIndex = currIndex;
-		this.currTokenValue = new StringBuilder();
+		this.lineBuffered = false;
+		this.symbols = new SymbolTable();
 		this.isEOF = false;
 		this.inComment = false;
-		this.keywordMap = new HashMap<String, Kind>();
-		this.symbolMap = new HashMap<String, Kind>();
-		
-		String[] keywords = {"int", "void", "string", "if", "else", "while", "return", "write", "writeln", "read"};
-		Kind[] keywordKinds = {Kind.T_INT, Kind.T_VOID, Kind.T_STR, Kind.T_IF, Kind.T_ELSE, Kind.T_WHILE, 
-				Kind.T_RETURN, Kind.T_WRITE, Kind.T_WRITELN, Kind.T_READ};
-		
-		for (int i = 0; i < keywords.length; i++) {
-			keywordMap.put(keywords[i], keywordKinds[i]);
-		}
-		
-		String[] symbols = {";", ",", "[", "]", "{", "}", "(", ")", "<", "<=", "==", "!=", ">=", ">", "+", "-", "*", 
-				"/", "=", "%", "&"};
-		Kind[] symbolKinds = {Kind.T_SEMICOLON, Kind.T_COMMA, Kind.T_LBRACKET, Kind.T_RBRACKET, Kind.T_LBRACE, Kind.T_RBRACE, 
-				Kind.T_LPAREN, Kind.T_RPAREN, Kind.T_LESS, Kind.T_LEQ, Kind.T_DOUBLEEQ, Kind.T_NEQ, Kind.T_GEQ, Kind.T_GREATER,
-				Kind.T_PLUS, Kind.T_MINUS, Kind.T_ASTERISK, Kind.T_FSLASH, Kind.T_EQ, Kind.T_PERCENT, Kind.T_AMPERSAND};
-		
-		for (int i = 0; i < symbols.length; i++) {
-			symbolMap.put(symbols[i], symbolKinds[i]);
-		}
+	}
+	
+	public SymbolTable getSymbolTable() {
+		return symbols;
 	}
 	
 	// TODO: hasNextToken
@@ -94,118 +168,495 @@ public class BPLScanner {
 		return !isEOF;
 	}
 	
+	// Skips whitespace, blank lines and comments up to the start of the next
+	// token. This loops rather than recursing, so long runs of blank lines or
+	// comments cost no stack.
 	private void findNextChar() throws BPLScannerException {
-		if (!isEOF && endOfLine() || currLineNum == 0) {
+		if (currLineNum == 0) {
 			readNextLine();
 		}
-		
-		while (!isEOF && !endOfLine() && isCurrSpace()) {
+		while (!isEOF) {
 			if (endOfLine()) {
 				readNextLine();
-			}
-			while (!isEOF && !endOfLine() && isCurrSpace()) {
+			} else if (isCurrSpace()) {
 				currIndex++;
+				while (!endOfLine() && isCurrSpace()) {
+					currIndex++;
+				}
+			} else if (isNextComment()) {
+				skipComment();
+			} else if (isNextEndComment()) {
+				throw new BPLScannerException("Scanner Error: at BPLScanner.getNextToken: Single closing comments without opening comments (" + inputFileName + ":"+ currLineNum + ")");
+			} else {
+				return;
+			}
+		}
+	}
+	
+	// Moves past the */ closing the comment whose /* was just consumed, or to
+	// the end of the input if the comment is never closed. In whole-file mode
+	// the closing */ is found with one search over the rest of the buffer, and
+	// the line counter is then advanced to the line it is on.
+	private void skipComment() {
+		inComment = true;
+		int end = indexOfEndComment(currIndex, lineBuffered ? lineEnd : bufferEnd);
+		while (end < 0 && lineBuffered && !isEOF) {
+			readNextLine();
+			end = indexOfEndComment(currIndex, lineEnd);
+		}
+		while (!isEOF && (end < 0 || end >= lineEnd)) {
+			readNextLine();
+		}
+		if (end >= 0) {
+			currIndex = end + 2;
+			inComment = false;
+		}
+	}
+	
+	// index of the first */ that lies entirely within buffer[from, limit), or
+	// -1. Looks at every other character and only steps by one after a '*'.
+	private int indexOfEndComment(int from, int limit) {
+		int i = from + 1;
+		while (i < limit) {
+			char c = buffer[i];
+			if (c == '/') {
+				if (buffer[i-1] == '*') {
+					return i - 1;
+				}
+				i += 2;
+			} else if (c == '*') {
+				i++;
+			} else {
+				i += 2;
 			}
 		}
+		return -1;
+	}
+	
+	
+	public void getNextToken() throws BPLScannerException {
+		scanToken();
+		if (tokenKind == Kind.T_ID) {
+			nextToken = new Token(Kind.T_ID, symbols.getName(tokenSymbol), currLineNum, tokenSymbol);
+		} else if (tokenKind == Kind.T_NUM || tokenKind == Kind.T_STRING) {
+			nextToken = new Token(tokenKind, new String(buffer, tokenStart, tokenLength), currLineNum);
+		} else {
+			nextToken = new Token(tokenKind, getLexeme(tokenKind), currLineNum);
+		}
+	}
+	
+	// Scans the rest of the input into a TokenStream, ending with the T_EOF
+	// token or with the first scanner error. Offsets in the stream index the
+	// whole-file buffer, so this is not available in lineBuffered mode.
+	public TokenStream scan() {
+		if (lineBuffered) {
+			throw new IllegalStateException("scan() needs the whole-file buffer");
+		}
+		TokenStream tokens = new TokenStream(buffer, bufferEnd, symbols, Math.max(16, bufferEnd / 4));
+		try {
+			do {
+				scanToken();
+				tokens.add(tokenKind, tokenStart, tokenLength, currLineNum, tokenSymbol);
+			} while (tokenKind != Kind.T_EOF);
+		} catch (BPLScannerException e) {
+			tokens.setError(e);
+		}
+		return tokens;
+	}
+	
+	// Scans the rest of the input on a new thread, publishing the tokens in
+	// batches of batchSize through a ring of ringSize batches. The caller takes
+	// them with the returned pipe's take().
+	public TokenPipe scanPipelined(int ringSize, int batchSize) {
+		if (lineBuffered) {
+			throw new IllegalStateException("scanPipelined() needs the whole-file buffer");
+		}
+		final TokenPipe pipe = new TokenPipe(buffer, bufferEnd, symbols, ringSize, batchSize);
+		Thread thread = new Thread("BPLScanner " + inputFileName) {
+			@Override
+			public void run() {
+				try {
+					do {
+						scanToken();
+						if (!pipe.add(tokenKind, tokenStart, tokenLength, currLineNum, tokenSymbol)) {
+							return;
+						}
+					} while (tokenKind != Kind.T_EOF);
+					pipe.finish(null);
+				} catch (BPLScannerException e) {
+					pipe.finish(e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return pipe;
+	}
+	
+	// Returns the tokens of previous's source after the removed characters at
+	// offset are replaced with inserted. The edit is made to previous's
+	// SourceText, which the new stream takes over: previous keeps its kinds,
+	// spans, lines and symbols, as BPLParser.reparse() needs, but not its
+	// text. Tokens that end before the edit never looked at the edited text,
+	// so scanning restarts after the last of them. Such a point is never
+	// inside a comment. Scanning stops as soon as a new token starts where an
+	// old token past the edit starts, now shifted by the edit: both were
+	// scanned outside a comment from the same text, so the rest of the old
+	// stream is shared with its offsets and lines shifted.
+	//
+	// Neither the text nor the tokens on either side are copied: the gap of
+	// the SourceText is moved to the restart point, leaving the text to scan
+	// in one piece after it, and the new stream shares previous's chunks (see
+	// TokenStream.append()). An edit costs the size of the edit, the tokens
+	// around it and the distance from the last edit, and a step per range of
+	// previous, not the size of the file.
+	public static TokenStream rescan(String inputFileName, TokenStream previous, int offset, int removed, String inserted) {
+		SourceText text = previous.getText();
+		int editEnd = offset + removed;
+		int shift = inserted.length() - removed;
+		int restart = previous.countEndingBefore(offset);
+		int from = restart > 0 ? previous.getSpanEnd(restart - 1) : 0;
+		text.replace(offset, removed, inserted);
+		text.moveGap(from);
+		// text offsets from there on are indices in chars less gap
+		char[] chars = text.getChars();
+		int gap = text.getGapEnd() - from;
+		
+		SymbolTable symbols = previous.getSymbolTable();
+		TokenStream tokens = new TokenStream(text, symbols, 16);
+		tokens.append(previous, 0, restart, 0, 0);
+		BPLScanner scanner = new BPLScanner(inputFileName, chars, chars.length, symbols);
+		if (restart > 0) {
+			scanner.seek(from + gap, previous.getLine(restart - 1));
+		} else {
+			scanner.nextLineStart = gap;
+		}
 		
-		if (!isEOF && !endOfLine() && isNextComment()) {
-			inComment = true;
-			while(!isEOF && inComment) {
-				if (endOfLine()) {
-					readNextLine();
+		int old = restart;
+		try {
+			do {
+				scanner.scanToken();
+				Kind kind = scanner.tokenKind;
+				int tokenStart = scanner.tokenStart - gap;
+				int start = kind == Kind.T_STRING ? tokenStart - 1 : tokenStart;
+				while (old < previous.size() && (previous.getSpanStart(old) < editEnd || previous.getSpanStart(old) + shift < start)) {
+					old++;
+				}
+				if (old < previous.size() && previous.getSpanStart(old) + shift == start 
+						&& previous.getKind(old) == kind && previous.getLength(old) == scanner.tokenLength) {
+					int lineShift = scanner.currLineNum - previous.getLine(old);
+					// a copied error message would carry the old line number
+					if (previous.getError() == null || lineShift == 0) {
+						tokens.append(previous, old, previous.size(), shift, lineShift);
+						tokens.setError(previous.getError());
+						return tokens;
+					}
 				}
-				while (!isEOF && !endOfLine() && inComment) {
-					if (isCurrStar()) {
-						inComment = !isNextEndComment();
+				tokens.add(kind, tokenStart, scanner.tokenLength, scanner.currLineNum, scanner.tokenSymbol);
+			} while (scanner.tokenKind != Kind.T_EOF);
+		} catch (BPLScannerException e) {
+			tokens.setError(e);
+		}
+		return tokens;
+	}
+	
+	public TokenStream scanParallel() {
+		int chunkCount = Math.min(bufferEnd / CHUNK_SIZE, 4 * ForkJoinPool.commonPool().getParallelism());
+		return scanParallel(ForkJoinPool.commonPool(), Math.max(1, chunkCount));
+	}
+	
+	// Scans the whole file into the same TokenStream as scan() would, using up
+	// to chunkCount chunks of whole lines scanned on pool. A chunk boundary can
+	// only fall inside a comment, since no token or string spans lines, so
+	// each chunk is scanned twice: once starting outside a comment and once
+	// starting inside one. The chunks are then chained in order, each picking
+	// the scan that matches how the chunk before it ended, and their tokens are
+	// given line numbers and re-interned symbols for the whole file.
+	public TokenStream scanParallel(ForkJoinPool pool, int chunkCount) {
+		if (lineBuffered) {
+			throw new IllegalStateException("scanParallel() needs the whole-file buffer");
+		}
+		int[] bounds = chunkBounds(chunkCount);
+		Chunk[][] chunks = new Chunk[bounds.length - 1][2];
+		pool.invoke(new ChunkScan(this, bounds, chunks, 0, chunks.length));
+		
+		TokenStream tokens = new TokenStream(buffer, bufferEnd, symbols, Math.max(16, bufferEnd / 4));
+		boolean comment = false;
+		int line = 1;
+		for (int i = 0; i < chunks.length; i++) {
+			Chunk chunk = chunks[i][comment ? 1 : 0];
+			if (chunk.getError() != null) {
+				// the error message has a line number counted from the chunk
+				chunk = scanChunk(bounds[i], bounds[i+1], line, comment, null);
+				tokens.appendInterned(chunk.tokens, 0, chunk.tokens.size(), 0);
+				tokens.setError(chunk.getError());
+				return tokens;
+			}
+			tokens.appendInterned(chunk.tokens, 0, chunk.tokens.size(), line - 1);
+			if (chunk.tail != null) {
+				tokens.appendInterned(chunk.tail.tokens, chunk.tailFrom, chunk.tail.tokens.size(), line - 1);
+			}
+			comment = chunk.endsInComment;
+			line += chunk.lineCount;
+		}
+		return tokens;
+	}
+	
+	// splits the buffer after line ends into at most chunkCount non-empty chunks;
+	// chunk i is [bounds[i], bounds[i+1])
+	private int[] chunkBounds(int chunkCount) {
+		int[] bounds = new int[chunkCount + 1];
+		int chunks = 0;
+		for (int k = 1; k < chunkCount; k++) {
+			int i = Math.max(bounds[chunks], (int) ((long) bufferEnd * k / chunkCount));
+			while (i < bufferEnd && buffer[i] != '\n' && buffer[i] != '\r') {
+				i++;
+			}
+			if (i + 1 < bufferEnd && buffer[i] == '\r' && buffer[i+1] == '\n') {
+				i++;
+			}
+			i++;
+			if (i < bufferEnd && i > bounds[chunks]) {
+				bounds[++chunks] = i;
+			}
+		}
+		bounds[++chunks] = bufferEnd;
+		return Arrays.copyOf(bounds, chunks + 1);
+	}
+	
+	// Scans buffer[start, end) with its first line numbered line, into a
+	// TokenStream with its own symbol table. The stream only ends with T_EOF
+	// for the last chunk of the file. When outside is the scan of the same
+	// chunk starting outside a comment, scanning stops at the first token that
+	// starts where one of outside's tokens starts: from there on the two scans
+	// are the same, so the rest is shared with outside.
+	private Chunk scanChunk(int start, int end, int line, boolean startsInComment, Chunk outside) {
+		BPLScanner scanner = new BPLScanner(inputFileName, buffer, end, new SymbolTable());
+		scanner.seek(start, line);
+		TokenStream tokens = new TokenStream(buffer, bufferEnd, scanner.symbols, outside == null ? Math.max(16, (end - start) / 4) : 16);
+		int shared = 0;
+		try {
+			if (startsInComment) {
+				scanner.skipComment();
+			}
+			scanner.scanToken();
+			while (scanner.tokenKind != Kind.T_EOF || end == bufferEnd) {
+				if (outside != null) {
+					TokenStream other = outside.tokens;
+					while (shared < other.size() && other.getStart(shared) < scanner.tokenStart) {
+						shared++;
 					}
-					if (inComment) {
-						currIndex++;
+					if (shared < other.size() && other.getStart(shared) == scanner.tokenStart 
+							&& other.getKind(shared) == scanner.tokenKind && other.getLength(shared) == scanner.tokenLength) {
+						return new Chunk(tokens, outside, shared, outside.endsInComment, outside.lineCount);
 					}
 				}
+				tokens.add(scanner.tokenKind, scanner.tokenStart, scanner.tokenLength, scanner.currLineNum, scanner.tokenSymbol);
+				if (scanner.tokenKind == Kind.T_EOF) {
+					break;
+				}
+				scanner.scanToken();
 			}
+		} catch (BPLScannerException e) {
+			tokens.setError(e);
 		}
-		if (!isEOF && !endOfLine() && !inComment && isNextEndComment()) {
-			throw new BPLScannerException("Scanner Error: at BPLScanner.getNextToken: Single closing comments without opening comments (" + inputFileName + ":"+ currLineNum + ")");
+		return new Chunk(tokens, null, 0, scanner.inComment, scanner.currLineNum - line);
+	}
+	
+	// The scan of one chunk from one starting comment state: its tokens,
+	// followed by those of tail from index tailFrom on if tail is not null.
+	private static class Chunk {
+		private TokenStream tokens;
+		private Chunk tail;
+		private int tailFrom;
+		private boolean endsInComment;
+		private int lineCount;
+		
+		private Chunk(TokenStream tokens, Chunk tail, int tailFrom, boolean endsInComment, int lineCount) {
+			this.tokens = tokens;
+			this.tail = tail;
+			this.tailFrom = tailFrom;
+			this.endsInComment = endsInComment;
+			this.lineCount = lineCount;
 		}
-		if (!isEOF && (endOfLine() || isCurrSpace() || isNextComment())) {
-			findNextChar();
+		
+		private BPLScannerException getError() {
+			return tail != null ? tail.tokens.getError() : tokens.getError();
+		}
+	}
+	
+	// scans chunks [low, high) in both comment states, splitting the range in
+	// half until it is a single chunk
+	@SuppressWarnings("serial")
+	private static class ChunkScan extends RecursiveAction {
+		private BPLScanner scanner;
+		private int[] bounds;
+		private Chunk[][] chunks;
+		private int low;
+		private int high;
+		
+		private ChunkScan(BPLScanner scanner, int[] bounds, Chunk[][] chunks, int low, int high) {
+			this.scanner = scanner;
+			this.bounds = bounds;
+			this.chunks = chunks;
+			this.low = low;
+			this.high = high;
 		}
 		
+		@Override
+		protected void compute() {
+			if (high - low > 1) {
+				int mid = (low + high) >>> 1;
+				invokeAll(new ChunkScan(scanner, bounds, chunks, low, mid), new ChunkScan(scanner, bounds, chunks, mid, high));
+			} else {
+				Chunk outside = scanner.scanChunk(bounds[low], bounds[low+1], 1, false, null);
+				chunks[low][0] = outside;
+				chunks[low][1] = scanner.scanChunk(bounds[low], bounds[low+1], 1, true, outside);
+			}
+		}
 	}
 	
+	public static String getLexeme(Kind kind) {
+		return LEXEMES[kind.ordinal()];
+	}
 	
-	public void getNextToken() throws BPLScannerException {
-		
+	// Scans the next token into tokenKind, tokenStart, tokenLength and
+	// tokenSymbol. The token is on line currLineNum.
+	private void scanToken() throws BPLScannerException {
 		findNextChar();
-		if (!isEOF) {
-			if (isCurrLetter()) {
-				while (!endOfLine() && (isCurrLetterOrDigit() || isCurrUnderScore())) {
-					currTokenValue.append(currChar());
+		tokenSymbol = -1;
+		if (isEOF) {
+			tokenKind = Kind.T_EOF;
+			tokenStart = bufferEnd;
+			tokenLength = 0;
+		} else {
+			int start = currIndex;
+			char c = currChar();
+			currIndex++;
+			if (isLetter(c)) {
+				while (!endOfLine() && isIdentifierChar(currChar())) {
 					currIndex++;
 				}
-				if (keywordMap.containsKey(currTokenValue.toString())) {
-					nextToken = new Token(keywordMap.get(currTokenValue.toString()), currTokenValue.toString(), currLineNum);
-					currTokenValue = new StringBuilder();
-				} else {
-					nextToken = new Token(Kind.T_ID, currTokenValue.toString(), currLineNum);
-					currTokenValue = new StringBuilder();
+				setToken(keywordKind(start, currIndex - start), start);
+				if (tokenKind == Kind.T_ID) {
+					tokenSymbol = symbols.intern(buffer, start, tokenLength);
 				}
-				
-			} else if (isCurrDigit()) {
-				while (!endOfLine() && isCurrDigit()) {
-					currTokenValue.append(currChar());
+			} else if (isDigit(c)) {
+				while (!endOfLine() && isDigit(currChar())) {
 					currIndex++;
 				}
-				nextToken = new Token(Kind.T_NUM, currTokenValue.toString(), currLineNum);
-				currTokenValue = new StringBuilder();
-			} else {
-				currTokenValue.append(currChar());
-				currIndex++;
-				if (!endOfLine()) {
-					currTokenValue.append(currChar());
+				setToken(Kind.T_NUM, start);
+			} else if (c == '\"') {
+				while (!endOfLine() && !isCurrQuote()) {
 					currIndex++;
 				}
-				if (symbolMap.containsKey(currTokenValue.toString())) {
-					nextToken = new Token(symbolMap.get(currTokenValue.toString()), currTokenValue.toString(), currLineNum);
-					currTokenValue = new StringBuilder();
+				if (!endOfLine()) {
+					setToken(Kind.T_STRING, start + 1);
+					currIndex++;
 				} else {
-					if (currTokenValue.length() == 2) {
-						currTokenValue.setLength(currTokenValue.length()-1);
-						currIndex--;
-					}
-					if (symbolMap.containsKey(currTokenValue.toString())) {
-						nextToken = new Token(symbolMap.get(currTokenValue.toString()), currTokenValue.toString(), currLineNum);
-						currTokenValue = new StringBuilder();
-					} else if (currTokenValue.toString().equals("\"")){
-						currTokenValue.setLength(0);
-						while (!endOfLine() && !isCurrQuote()) {
-							currTokenValue.append(currChar());
-							currIndex++;
-						}
-						
-						if (!endOfLine()) {
-							currIndex++;
-							nextToken = new Token(Kind.T_STRING, currTokenValue.toString(), currLineNum);
-							currTokenValue = new StringBuilder();
-						} else {
-							String errorSource = currTokenValue.toString();
-							currTokenValue = new StringBuilder();
-							throw new BPLScannerException("Scanner Error: at BPLScanner.getNextToken: Unclosed quotes or unallowed multi-line string (" + inputFileName + ":"+ errorSource + ":" + currLineNum + ")");
-						}
-					} else {
-						String errorSource = currTokenValue.toString();
-						currTokenValue = new StringBuilder();
-						throw new BPLScannerException("Scanner Error: at BPLScanner.getNextToken: Invalid Symbol (" + inputFileName + ":"+ errorSource + ":" +currLineNum + ")");
-					}
+					String errorSource = new String(buffer, start + 1, currIndex - start - 1);
+					throw new BPLScannerException("Scanner Error: at BPLScanner.getNextToken: Unclosed quotes or unallowed multi-line string (" + inputFileName + ":"+ errorSource + ":" + currLineNum + ")");
+				}
+			} else {
+				Kind kind = symbolKind(c);
+				if (kind == null) {
+					throw new BPLScannerException("Scanner Error: at BPLScanner.getNextToken: Invalid Symbol (" + inputFileName + ":"+ c + ":" +currLineNum + ")");
+				}
+				setToken(kind, start);
+			}
+		}
+	}
+	
+	// the token runs from start up to currIndex
+	private void setToken(Kind kind, int start) {
+		tokenKind = kind;
+		tokenStart = start;
+		tokenLength = currIndex - start;
+	}
+	
+	// Symbol DFA: c has already been consumed, and the second character of
+	// <=, ==, != and >= is consumed only when it completes the symbol.
+	private Kind symbolKind(char c) {
+		switch (c) {
+		case ';': return Kind.T_SEMICOLON;
+		case ',': return Kind.T_COMMA;
+		case '[': return Kind.T_LBRACKET;
+		case ']': return Kind.T_RBRACKET;
+		case '{': return Kind.T_LBRACE;
+		case '}': return Kind.T_RBRACE;
+		case '(': return Kind.T_LPAREN;
+		case ')': return Kind.T_RPAREN;
+		case '+': return Kind.T_PLUS;
+		case '-': return Kind.T_MINUS;
+		case '*': return Kind.T_ASTERISK;
+		case '/': return Kind.T_FSLASH;
+		case '%': return Kind.T_PERCENT;
+		case '&': return Kind.T_AMPERSAND;
+		case '<': return isNextEquals() ? Kind.T_LEQ : Kind.T_LESS;
+		case '>': return isNextEquals() ? Kind.T_GEQ : Kind.T_GREATER;
+		case '=': return isNextEquals() ? Kind.T_DOUBLEEQ : Kind.T_EQ;
+		case '!': return isNextEquals() ? Kind.T_NEQ : null;
+		default: return null;
+		}
+	}
+	
+	private boolean isNextEquals() {
+		if (!endOfLine() && currChar() == '=') {
+			currIndex++;
+			return true;
+		}
+		return false;
+	}
+	
+	// Keyword DFA: switches on the first character and length, then compares
+	// the remaining characters in place.
+	private Kind keywordKind(int start, int length) {
+		switch (buffer[start]) {
+		case 'e':
+			return matches(start, length, "else") ? Kind.T_ELSE : Kind.T_ID;
+		case 'i':
+			if (length == 2) {
+				return matches(start, length, "if") ? Kind.T_IF : Kind.T_ID;
+			}
+			return matches(start, length, "int") ? Kind.T_INT : Kind.T_ID;
+		case 'r':
+			if (length == 4) {
+				return matches(start, length, "read") ? Kind.T_READ : Kind.T_ID;
+			}
+			return matches(start, length, "return") ? Kind.T_RETURN : Kind.T_ID;
+		case 's':
+			return matches(start, length, "string") ? Kind.T_STR : Kind.T_ID;
+		case 'v':
+			return matches(start, length, "void") ? Kind.T_VOID : Kind.T_ID;
+		case 'w':
+			if (length == 5) {
+				if (buffer[start + 1] == 'h') {
+					return matches(start, length, "while") ? Kind.T_WHILE : Kind.T_ID;
 				}
+				return matches(start, length, "write") ? Kind.T_WRITE : Kind.T_ID;
 			}
+			return matches(start, length, "writeln") ? Kind.T_WRITELN : Kind.T_ID;
+		default:
+			return Kind.T_ID;
 		}
 	}
 	
+	private boolean matches(int start, int length, String keyword) {
+		if (length != keyword.length()) {
+			return false;
+		}
+		for (int i = 1; i < length; i++) {
+			if (buffer[start + i] != keyword.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	private boolean isNextComment() {
 		boolean isComment = false;
-		if (currIndex + 1 < currLine.length()) {
-			isComment = (currChar() == '/') && (currLine.charAt(currIndex+1) == '*');
+		if (currIndex + 1 < lineEnd) {
+			isComment = (currChar() == '/') && (buffer[currIndex+1] == '*');
 		}
 		if (isComment) {
 			currIndex += 2;
@@ -216,8 +667,8 @@ public class BPLScanner {
 	
 	private boolean isNextEndComment() {
 		boolean isEnd = false;
-		if (currIndex +1 < currLine.length()) {
-			isEnd = isCurrStar() && (currLine.charAt(currIndex+1) == '/');
+		if (currIndex +1 < lineEnd) {
+			isEnd = (currChar() == '*') && (buffer[currIndex+1] == '/');
 		}
 		if (isEnd) {
 			currIndex += 2;
@@ -226,56 +677,104 @@ public class BPLScanner {
 		return false;
 	}
 	
-	private boolean isCurrStar() {
-		return currChar() == '*';
-	}
-	
 	private boolean isCurrQuote() {
 		return currChar() == '\"';
 	}
 	
-	private boolean isCurrUnderScore() {
-		return currChar() == '_';
-	}
-	
-	private boolean isCurrDigit() {
-		return Character.isDigit(currChar());
+	private boolean isCurrSpace() {
+		char c = currChar();
+		return c < ASCII ? (CHAR_CLASS[c] & SPACE) != 0 : Character.isWhitespace(c);
 	}
 	
-	private boolean isCurrSpace() {
-		return Character.isWhitespace(currChar());
+	private static boolean isLetter(char c) {
+		return c < ASCII ? (CHAR_CLASS[c] & LETTER) != 0 : Character.isLetter(c);
 	}
 	
-	private char currChar() {
-		return currLine.charAt(currIndex);
+	private static boolean isDigit(char c) {
+		return c < ASCII ? (CHAR_CLASS[c] & DIGIT) != 0 : Character.isDigit(c);
 	}
 	
-	private boolean endOfLine() {
-		return currIndex >= currLine.length();
+	private static boolean isIdentifierChar(char c) {
+		return c < ASCII ? (CHAR_CLASS[c] & (LETTER | DIGIT | UNDERSCORE)) != 0 : Character.isLetterOrDigit(c);
 	}
 	
-	private boolean isCurrLetter() {
-		return Character.isLetter(currLine.charAt(currIndex));
+	private char currChar() {
+		return buffer[currIndex];
 	}
 	
-	private boolean isCurrLetterOrDigit() {
-		return Character.isLetterOrDigit(currLine.charAt(currIndex));
+	private boolean endOfLine() {
+		return currIndex >= lineEnd;
 	}
 	
 	private void readNextLine() {
-		if (currLine != null) {
-			try {
-				currLine = bufferedReader.readLine();
-			} catch (IOException e) {
-				System.out.println("Error: Error reading file '" + inputFileName + "'");
-				System.exit(1);
+		if (!isEOF) {
+			if (lineBuffered) {
+				readBufferedLine();
+			} else {
+				findNextLine();
 			}
 			currLineNum++;
-			currIndex = 0;
 		}
-		if (currLine == null) {
-			nextToken = new Token(Kind.T_EOF, "EOF", currLineNum);
+	}
+	
+	// lineBuffered mode: replaces the buffer with the next line of the file
+	private void readBufferedLine() {
+		String line = null;
+		try {
+			line = bufferedReader.readLine();
+		} catch (IOException e) {
+			System.out.println("Error: Error reading file '" + inputFileName + "'");
+			System.exit(1);
+		}
+		if (line == null) {
 			isEOF = true;
+			return;
+		}
+		buffer = line.toCharArray();
+		bufferEnd = buffer.length;
+		lineEnd = bufferEnd;
+		currIndex = 0;
+	}
+	
+	// whole-file mode: continues scanning from index, outside any comment, on
+	// line number line
+	private void seek(int index, int line) {
+		nextLineStart = index;
+		findNextLine();
+		currLineNum = line;
+	}
+	
+	// whole-file mode: moves currIndex and lineEnd to the next line in the buffer.
+	// \n, \r and \r\n all end a line, as they do for BufferedReader.readLine().
+	private void findNextLine() {
+		if (nextLineStart >= bufferEnd) {
+			isEOF = true;
+			return;
+		}
+		currIndex = nextLineStart;
+		int i = nextLineStart;
+		while (i < bufferEnd && buffer[i] != '\n' && buffer[i] != '\r') {
+			i++;
+		}
+		lineEnd = i;
+		if (i + 1 < bufferEnd && buffer[i] == '\r' && buffer[i+1] == '\n') {
+			i++;
+		}
+		nextLineStart = i + 1;
+	}
+	
+	private void loadBuffer() {
+		try (FileInputStream in = new FileInputStream(inputFileName)) {
+			FileChannel channel = in.getChannel();
+			CharBuffer chars = Charset.defaultCharset().decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			buffer = chars.array();
+			bufferEnd = chars.limit();
+		} catch (FileNotFoundException e) {
+			System.out.println("Error: Unable to open file '" + inputFileName + "'");
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Error reading file '" + inputFileName + "'");
+			System.exit(1);
 		}
 	}
 	
@@ -0,0 +1,147 @@
+/* On-disk cache of type checked parse trees, so that compiling a file that
+ * has been compiled before skips scanning, parsing and type checking. Each
+ * tree is kept in a file of its own in the cache directory, named by the
+ * SHA-256 of COMPILER_VERSION and the bytes of the source, and holds the
+ * root's node index followed by SyntaxTree.writeTo() of the tree with the
+ * types, declaration links and descriptors the type checker set. A hit
+ * maps the file and rebuilds the tree from the mapping.
+ *
+ * The cache only ever saves work: sources that fail to compile are not
+ * stored, and a file that is missing, unreadable, truncated or written in
+ * another byte order or format is a miss. Files are written under a
+ * temporary name and renamed into place, so compilers sharing a directory
+ * never read a file still being written.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class BPLTreeCache {
+	// change whenever the parser or type checker changes the trees they build
+	public static final String COMPILER_VERSION = "BPLCompiler tree 4";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private File directory;
+
+	public BPLTreeCache(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	// hex SHA-256 of COMPILER_VERSION followed by the remaining bytes of
+	// source, whose position is not moved
+	public static String key(ByteBuffer source) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+		digest.update(COMPILER_VERSION.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(source.duplicate());
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	// the checked tree stored under key, or null if there is none
+	public TreeNode load(String key) {
+		File file = file(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(ByteOrder.nativeOrder());
+			int root = mapped.getInt();
+			SyntaxTree tree = SyntaxTree.readFrom(mapped);
+			if (tree == null || mapped.hasRemaining() || root < 0 || root >= tree.size()
+					|| tree.getKind(root) != TreeNodeKind.PROGRAM) {
+				return null;
+			}
+			return tree.getNode(root);
+		} catch (IOException | RuntimeException e) {
+			// unreadable or damaged: compile as if it were not there
+			return null;
+		}
+	}
+
+	// Stores the checked tree root under key. Failing to write is not an
+	// error; the tree is simply not cached.
+	public void store(String key, TreeNode root) {
+		SyntaxTree tree = root.getTree();
+		ByteBuffer bytes = ByteBuffer.allocate(4 + tree.serializedSize()).order(ByteOrder.nativeOrder());
+		bytes.putInt(root.getId());
+		tree.writeTo(bytes);
+		bytes.flip();
+		File temp = null;
+		try {
+			directory.mkdirs();
+			temp = File.createTempFile(key, ".tmp", directory);
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+			Files.move(temp.toPath(), file(key).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	// Returns a type checker holding the checked tree for the file: from the
+	// cache if it has one for the file's contents, otherwise scanned, parsed
+	// and checked, then stored. Errors are those of
+	// new BPLTypeChecker(inputFileName, false).runTypeChecker().
+	public BPLTypeChecker typeChecker(String inputFileName) throws BPLParserException, BPLTypeCheckerException {
+		ByteBuffer source;
+		try (FileChannel channel = FileChannel.open(new File(inputFileName).toPath(), StandardOpenOption.READ)) {
+			source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			// reported as the scanner reports it
+			BPLTypeChecker typeChecker = new BPLTypeChecker(inputFileName, false);
+			typeChecker.runTypeChecker();
+			return typeChecker;
+		}
+		String key = key(source);
+		TreeNode root = load(key);
+		if (root != null) {
+			return new BPLTypeChecker(root);
+		}
+		CharBuffer chars = Charset.defaultCharset().decode(source);
+		TokenStream tokens = new BPLScanner(inputFileName, chars.array(), chars.limit(), new SymbolTable()).scan();
+		BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(tokens), false);
+		typeChecker.runTypeChecker();
+		if (typeChecker.getRoot() != null) {
+			store(key, typeChecker.getRoot());
+		}
+		return typeChecker;
+	}
+
+	private File file(String key) {
+		return new File(directory, key + ".ast");
+	}
+}
@@ -1,25 +1,199 @@
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class BPLTypeChecker {
   private boolean debug;
-  private HashMap<String, TreeNode> globalDecs;
+  private TreeNode[] globalDecs;
+  // by symbol ID, the index among the declarations of the one in globalDecs
+  private int[] globalOrder;
+  // the declaration being checked; globals declared after it are not in
+  // scope
+  private int declarationIndex;
   private BPLParser parser;
   private TreeNode root;
+  private boolean checked;
+  private BPLDiagnostics diagnostics;
+  private ExpressionChecker expressionChecker;
+  // the locals and parameters in scope, by symbol ID
+  private ScopeStack<TreeNode> scopes;
+  // the frame slot of the next local declared in the function being checked
+  private int nextSlot;
+  // the declarations of the checked tree before an edit, or null
+  private DependencyGraph previous;
+  // by node of previous, the node copyChecked() copied it to
+  private int[] counterparts;
+  // the strings and symbols of previous in this tree; see SyntaxTree
+  private int[] stringMap;
+  private int[] symbolMap;
+  // by symbol ID, 1 + the index of the last declaration found to refer to
+  // that global, and the globals the function being checked refers to
+  private int[] referencedBy;
+  private ArrayList<String> dependencies;
+  // the type errors reported and gone past so far
+  private int recovered;
 
   public BPLTypeChecker(String inputFileName, boolean debug) throws BPLTypeCheckerException, BPLParserException {
+    this(new BPLParser(inputFileName), debug);
+  }
+
+  // parses with parser; runTypeChecker() then checks the tree
+  public BPLTypeChecker(BPLParser parser, boolean debug) throws BPLParserException {
+    // the symbol table is complete once parsing is done
+    this(parser, parser.parse(), parser.getSymbolTable().size(), null);
     this.debug = debug;
-    this.globalDecs = new HashMap<String, TreeNode>();
-    parser = new BPLParser(inputFileName);
-    root = null;
+  }
 
-    root = parser.parse();
+  // Parses with parser.parse(diagnostics); runTypeChecker() then reports
+  // each type error to diagnostics too, skipping the rest of the statement
+  // or declaration it is in, and throws nothing. getRoot() is null if
+  // parsing stopped early.
+  public BPLTypeChecker(BPLParser parser, boolean debug, BPLDiagnostics diagnostics) {
+    this(parser, parser.parse(diagnostics), parser.getSymbolTable().size(), diagnostics);
+    this.debug = debug;
   }
 
+  // Checks root, parsed from a source after an edit, with what checking
+  // previous, the tree of the source before it, found. runTypeChecker()
+  // checks the global declarations and each function whose declaration
+  // changed or which depends on a global that changed its signature or is
+  // no longer declared before it (see DependencyGraph). The other functions
+  // are not checked again: their nodes get the types and links they had in
+  // previous. A function that had a type error in previous is always
+  // checked again. previous is only read.
+  public BPLTypeChecker(TreeNode previous, TreeNode root) {
+    this(new DependencyGraph(previous), root, null);
+  }
+
+  // As above, with the graph of the tree before the edit, and type errors
+  // reported to diagnostics if it is not null. When root is that tree
+  // edited by BPLParser.reparse(), the graph must be made before reparsing;
+  // a function reparse() left as it was then keeps its types and links as
+  // they are, so checking costs nothing for it, while one depending on a
+  // global reparse() replaced is checked again.
+  public BPLTypeChecker(DependencyGraph previous, TreeNode root, BPLDiagnostics diagnostics) {
+    this(null, root, root == null ? 0 : root.getTree().getSymbolTable().size(), diagnostics);
+    this.previous = previous;
+  }
+
+  // for a tree that has already been checked, such as one from BPLTreeCache
+  public BPLTypeChecker(TreeNode root) {
+    this(null, root, 0, null);
+    this.checked = true;
+  }
+
+  // checks declarations of checker's tree against its globals, reporting
+  // to diagnostics; see runTypeCheckerParallel()
+  private BPLTypeChecker(BPLTypeChecker checker, BPLDiagnostics diagnostics) {
+    this(checker.parser, checker.root, checker.globalDecs, checker.globalOrder, diagnostics);
+  }
+
+  // for a tree whose symbol IDs are below symbols
+  private BPLTypeChecker(BPLParser parser, TreeNode root, int symbols, BPLDiagnostics diagnostics) {
+    this(parser, root, new TreeNode[symbols], new int[symbols], diagnostics);
+  }
+
+  // The state every constructor starts from: root unchecked, with the
+  // globals in globalDecs and globalOrder, and nothing to reuse. The
+  // constructors above set what differs.
+  private BPLTypeChecker(BPLParser parser, TreeNode root, TreeNode[] globalDecs, int[] globalOrder, BPLDiagnostics diagnostics) {
+    this.debug = false;
+    this.parser = parser;
+    this.root = root;
+    this.globalDecs = globalDecs;
+    this.globalOrder = globalOrder;
+    this.scopes = new ScopeStack<TreeNode>(globalDecs.length);
+    this.checked = false;
+    this.diagnostics = diagnostics;
+    this.expressionChecker = new ExpressionChecker();
+    this.previous = null;
+    this.counterparts = null;
+    this.stringMap = null;
+    this.symbolMap = null;
+    this.referencedBy = new int[globalDecs.length];
+    this.dependencies = new ArrayList<String>();
+    this.recovered = 0;
+  }
+
+  // checks the tree once; later calls do nothing
   public void runTypeChecker() throws BPLTypeCheckerException {
+    if (checked) {
+      return;
+    }
     if (root != null) {
-      findReferences(root.getChildren().get(0));
+      try {
+        findReferences(root.getChild(0));
+      } catch (BPLTypeCheckerException e) {
+        if (diagnostics == null) {
+          throw e;
+        }
+        // diagnostics is full
+      }
     }
+    checked = true;
+  }
+
+  public void runTypeCheckerParallel() throws BPLTypeCheckerException {
+    runTypeCheckerParallel(ForkJoinPool.commonPool());
+  }
+
+  // Checks the tree as runTypeChecker() does, with the declarations split
+  // into chunks checked on pool, each with locals of its own. The globals
+  // are collected first and only read while the chunks are checked. Each
+  // chunk keeps its errors, which are reported or thrown in source order
+  // once all are checked, so the outcome is that of runTypeChecker(). The
+  // debug trace is written by runTypeChecker() on this thread, which also
+  // checks against a previous tree.
+  public void runTypeCheckerParallel(ForkJoinPool pool) throws BPLTypeCheckerException {
+    if (checked || root == null || debug || previous != null) {
+      runTypeChecker();
+      return;
+    }
+    List<TreeNode> decs = root.getChild(0).getChildren();
+    collectGlobals(decs);
+    // setting a node's value to a name then only reads the string table
+    root.getTree().internSymbolNames();
+    int chunkCount = Math.max(1, Math.min(decs.size(), 4 * pool.getParallelism()));
+    CheckChunk[] chunks = new CheckChunk[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      chunks[i] = new CheckChunk();
+      chunks[i].start = (int) ((long) decs.size() * i / chunkCount);
+      chunks[i].end = (int) ((long) decs.size() * (i + 1) / chunkCount);
+      if (diagnostics != null) {
+        // one more than fits, in case the first repeats the last reported
+        chunks[i].diagnostics = new BPLDiagnostics(diagnostics.getMaxErrors() + 1);
+      }
+    }
+    pool.invoke(new ChunkCheck(this, decs, chunks, 0, chunkCount));
+
+    for (CheckChunk chunk : chunks) {
+      if (chunk.diagnostics != null) {
+        for (String message : chunk.diagnostics.getMessages()) {
+          if (!diagnostics.report(message)) {
+            checked = true;
+            return;
+          }
+        }
+      }
+      if (chunk.failure != null) {
+        throw chunk.failure;
+      }
+      if (chunk.error != null && diagnostics == null) {
+        throw chunk.error;
+      }
+    }
+    checked = true;
+  }
+
+  // reports e if errors are being collected and there is room for more,
+  // else throws it
+  private void recover(BPLTypeCheckerException e) throws BPLTypeCheckerException {
+    if (diagnostics == null || !diagnostics.report(e.getMessage())) {
+      throw e;
+    }
+    recovered++;
   }
 
   public TreeNode getRoot() {
@@ -27,29 +201,313 @@ public class BPLTypeChecker {
   }
 
   private void findReferences(TreeNode declist) throws BPLTypeCheckerException {
-    while (!isEmpty(declist)) {
-      TreeNode dec = getDec(declist);
-      if (isVarDec(dec)) {
-        addVarDecToGlobalDecs(dec);
-      } else {
-        addFunDecToGlobalDecs(dec);
+    List<TreeNode> decs = declist.getChildren();
+    collectGlobals(decs);
+    for (int i = 0; i < decs.size(); i++) {
+      if (previous == null || !reuseDeclaration(decs.get(i).getChild(0), i)) {
+        findReferencesDeclaration(decs.get(i), i);
+      }
+    }
+  }
+
+  // Gives dec, declaration index, the types and links the function of the
+  // same name has in previous, if dec is a function that checks as that one
+  // did: it is the first global of its name, it was parsed from the same
+  // tokens, and each global it depends on is declared before it as in
+  // previous. In place, that is the same declaration node; otherwise, one
+  // with the same signature. Returns whether it did.
+  private boolean reuseDeclaration(TreeNode dec, int index) {
+    if (dec.getKind() != TreeNodeKind.FUN_DEC || globalOrder[getDecSymbol(dec)] != index) {
+      return false;
+    }
+    int old = previous.indexOf(getDecId(dec));
+    if (old < 0) {
+      return false;
+    }
+    boolean inPlace = previous.getDeclaration(old).equals(dec);
+    String[] dependencies = previous.getDependencies(old);
+    if (dependencies == null) {
+      // not checked, or checked with errors; in place, it may still hold
+      // what checking it set before the errors
+      if (inPlace) {
+        clearChecked(dec);
+      }
+      return false;
+    }
+    SymbolTable symbolTable = root.getTree().getSymbolTable();
+    for (String name : dependencies) {
+      int symbol = symbolTable.lookup(name);
+      if (symbol < 0 || symbol >= globalDecs.length || globalDecs[symbol] == null || globalOrder[symbol] > index
+          || !isSameGlobal(globalDecs[symbol], previous.indexOf(name), inPlace)) {
+        if (inPlace) {
+          clearChecked(dec);
+        }
+        return false;
+      }
+    }
+    if (inPlace) {
+      return true;
+    }
+    if (!copyChecked(previous.getDeclaration(old), dec)) {
+      clearChecked(dec);
+      return false;
+    }
+    dec.getDeclaration().setDependencies(dependencies);
+    return true;
+  }
+
+  // whether references to global check and link as those to declaration
+  // old of previous did
+  private boolean isSameGlobal(TreeNode global, int old, boolean inPlace) {
+    if (inPlace) {
+      return global.equals(previous.getDeclaration(old));
+    }
+    return global.getDeclaration().hasSameSignature(previous.getDescriptor(old));
+  }
+
+  // Gives the nodes under b what checking gave those under a, as long as
+  // they have the same kinds, values and shape; lines and the values the
+  // checker sets are not compared. Returns false, part way through, if
+  // they differ. Links to globals go to those of this tree, and links to
+  // parameters and locals to their counterparts under b, whose descriptors
+  // depend on nothing outside and are shared. b keeps the descriptor
+  // collectGlobals() made for it.
+  private boolean copyChecked(TreeNode a, TreeNode b) {
+    SyntaxTree from = a.getTree();
+    SyntaxTree to = b.getTree();
+    if (counterparts == null) {
+      counterparts = new int[from.size()];
+      stringMap = to.internStrings(from);
+      symbolMap = to.mapSymbols(from);
+    }
+    int[] stack = new int[128];
+    int top = 0;
+    stack[top++] = a.getId();
+    stack[top++] = b.getId();
+    while (top > 0) {
+      int y = stack[--top];
+      int x = stack[--top];
+      TreeNodeKind kind = from.getKind(x);
+      if (kind != to.getKind(y)) {
+        return false;
+      }
+      if (hasCheckedValue(kind)) {
+        to.copyValue(y, from, x, stringMap);
+      } else if (!to.hasSameValue(y, from, x, stringMap, symbolMap)) {
+        return false;
+      }
+      to.setType(y, from.getType(x));
+      Declaration declaration = from.getDeclaration(x);
+      int dec = from.getDec(x);
+      if (dec >= 0) {
+        if (declaration.getStorage() == Declaration.Storage.GLOBAL || declaration.getStorage() == Declaration.Storage.FUNCTION) {
+          // a VAR, ARRAY_VAR or POINTER_VAR is named by its first child
+          int id = kind == TreeNodeKind.ID ? x : from.getFirstChild(x);
+          TreeNode global = globalDecs[symbolMap[from.getSymbol(id)]];
+          to.setDec(y, global.getId());
+          to.setDeclaration(y, global.getDeclaration());
+        } else {
+          to.setDec(y, counterparts[dec]);
+          to.setDeclaration(y, declaration);
+        }
+      } else if (declaration != null && x != a.getId()) {
+        // declarations come before the references to them, as the
+        // children are walked in order
+        counterparts[x] = y;
+        to.setDeclaration(y, declaration);
+      }
+      int i = from.getFirstChild(x);
+      int j = to.getFirstChild(y);
+      int first = top;
+      for (; i >= 0 && j >= 0; i = from.getNextSibling(i), j = to.getNextSibling(j)) {
+        if (top + 2 > stack.length) {
+          stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top++] = i;
+        stack[top++] = j;
+      }
+      if (i >= 0 || j >= 0) {
+        return false;
+      }
+      reversePairs(stack, first, top);
+    }
+    return true;
+  }
+
+  // reverses the order of the pairs in stack[start, end)
+  private void reversePairs(int[] stack, int start, int end) {
+    for (int i = start, j = end - 2; i < j; i += 2, j -= 2) {
+      int x = stack[i];
+      int y = stack[i + 1];
+      stack[i] = stack[j];
+      stack[i + 1] = stack[j + 1];
+      stack[j] = x;
+      stack[j + 1] = y;
+    }
+  }
+
+  // undoes copyChecked() on the nodes under b, leaving them as parsed and
+  // b with its own descriptor
+  private void clearChecked(TreeNode b) {
+    SyntaxTree tree = b.getTree();
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = b.getId();
+    while (top > 0) {
+      int node = stack[--top];
+      if (hasCheckedValue(tree.getKind(node))) {
+        tree.setValue(node, null);
+      }
+      tree.setType(node, null);
+      tree.setDec(node, -1);
+      if (node != b.getId()) {
+        tree.setDeclaration(node, null);
+      }
+      for (int child = tree.getFirstChild(node); child >= 0; child = tree.getNextSibling(child)) {
+        if (top == stack.length) {
+          stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top++] = child;
+      }
+    }
+  }
+
+  // the kinds whose value findReferencesID() or the expression checker sets
+  private boolean hasCheckedValue(TreeNodeKind kind) {
+    return kind == TreeNodeKind.VAR || kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.POINTER_VAR
+        || kind == TreeNodeKind.ADDRESS_F || kind == TreeNodeKind.DEREF_F;
+  }
+
+  // The first phase: the first declaration of each global name, with its
+  // index among the declarations and its descriptor. Any later one is an
+  // error, reported by the second phase in its place.
+  private void collectGlobals(List<TreeNode> decs) {
+    for (int i = 0; i < decs.size(); i++) {
+      TreeNode dec = decs.get(i).getChild(0);
+      int symbol = getDecSymbol(dec);
+      if (globalDecs[symbol] == null) {
+        globalDecs[symbol] = dec;
+        globalOrder[symbol] = i;
+        // one BPLParser.reparse() left as it was checked keeps its own
+        if (dec.getDeclaration() == null && dec.getKind() == TreeNodeKind.FUN_DEC) {
+          dec.setDeclaration(new Declaration(getDecId(dec), findVarType(dec), Declaration.Storage.FUNCTION, -1, 0, getParamTypes(dec)));
+        } else if (dec.getDeclaration() == null) {
+          dec.setDeclaration(new Declaration(getDecId(dec), findVarType(dec), Declaration.Storage.GLOBAL, -1, getArrayLength(dec), null));
+        }
+      }
+    }
+  }
+
+  // the types of the parameters of funDec, in order
+  private Type[] getParamTypes(TreeNode funDec) {
+    // EMPTY and VOID have no children
+    TreeNode paramList = funDec.getChild(2).getChild(0);
+    Type[] params = new Type[paramList.getChildCount()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = getParamType(paramList.getChild(i));
+    }
+    return params;
+  }
+
+  // the length of an ARRAY_VAR_DEC, -1 if it is not an int, and 0 for other
+  // declarations
+  private int getArrayLength(TreeNode varDec) {
+    if (varDec.getKind() != TreeNodeKind.ARRAY_VAR_DEC) {
+      return 0;
+    }
+    try {
+      return varDec.getChild(2).getNumber();
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // The second phase, for declaration index: the global it declares comes
+  // into scope, and a function's body is checked. Declarations are checked
+  // in any order, but each only sees the globals declared up to it.
+  private void findReferencesDeclaration(TreeNode dec, int index) throws BPLTypeCheckerException {
+    declarationIndex = index;
+    try {
+      addGlobalDec(dec, index);
+      if (!isVarDec(dec)) {
         findReferencesFunDec(dec);
       }
-      declist = getDecList(declist);
+    } catch (BPLTypeCheckerException e) {
+      recover(e);
+    }
+  }
+
+  // declarations [start, end) and their errors; failure is an exception
+  // other than a type error
+  private static class CheckChunk {
+    private int start;
+    private int end;
+    private BPLDiagnostics diagnostics;
+    private BPLTypeCheckerException error;
+    private RuntimeException failure;
+  }
+
+  // checks chunks [low, high), splitting the range in half until it is a
+  // single chunk
+  @SuppressWarnings("serial")
+  private static class ChunkCheck extends RecursiveAction {
+    private BPLTypeChecker checker;
+    private List<TreeNode> decs;
+    private CheckChunk[] chunks;
+    private int low;
+    private int high;
+
+    private ChunkCheck(BPLTypeChecker checker, List<TreeNode> decs, CheckChunk[] chunks, int low, int high) {
+      this.checker = checker;
+      this.decs = decs;
+      this.chunks = chunks;
+      this.low = low;
+      this.high = high;
+    }
+
+    @Override
+    protected void compute() {
+      if (high - low > 1) {
+        int mid = (low + high) >>> 1;
+        invokeAll(new ChunkCheck(checker, decs, chunks, low, mid), new ChunkCheck(checker, decs, chunks, mid, high));
+        return;
+      }
+      CheckChunk chunk = chunks[low];
+      BPLTypeChecker chunkChecker = new BPLTypeChecker(checker, chunk.diagnostics);
+      try {
+        for (int i = chunk.start; i < chunk.end; i++) {
+          chunkChecker.findReferencesDeclaration(decs.get(i), i);
+        }
+      } catch (BPLTypeCheckerException e) {
+        // the first error, or the one that filled diagnostics
+        chunk.error = e;
+      } catch (RuntimeException e) {
+        chunk.failure = e;
+      }
     }
   }
 
   private void findReferencesFunDec(TreeNode dec) throws BPLTypeCheckerException {
-    TreeNode funDec = dec.getChildren().get(0);
+    TreeNode funDec = dec.getChild(0);
     Type funRtnType = findFunRtnType(funDec);
-    LinkedList<TreeNode> localDecs = new LinkedList<TreeNode>();
-    findReferencesParams(funDec, localDecs);
-    TreeNode compStmt = funDec.getChildren().get(3);
-    findReferencesCompoundStmt(compStmt, localDecs, funRtnType);
+    nextSlot = 0;
+    dependencies.clear();
+    int errors = recovered;
+    // parameters are in a scope of their own around the body
+    scopes.push();
+    try {
+      findReferencesParams(funDec, scopes);
+      TreeNode compStmt = funDec.getChild(3);
+      findReferencesCompoundStmt(compStmt, scopes, funRtnType);
+    } finally {
+      scopes.pop();
+    }
+    // only a body without errors is reused after an edit
+    funDec.getDeclaration().setDependencies(recovered == errors ? dependencies.toArray(new String[dependencies.size()]) : null);
   }
 
   private Type findFunRtnType(TreeNode funDec) {
-    TreeNodeKind type = funDec.getChildren().get(0).getChildren().get(0).getKind();
+    TreeNodeKind type = funDec.getChild(0).getChild(0).getKind();
     Type t = Type.VOID;
     if (type == TreeNodeKind.INT) {
       t = Type.INT;
@@ -59,35 +517,44 @@ public class BPLTypeChecker {
     return t;
   }
 
-  private void findReferencesCompoundStmt(TreeNode compStmt, LinkedList<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
-    for (TreeNode t : compStmt.getChildren()) {
-      if (t.getKind() == TreeNodeKind.LOCAL_DECS) {
-        findReferencesLocalDecs(t, localDecs);
-      } else if (t.getKind() == TreeNodeKind.STATEMENT_LIST) {
-        findReferencesStmtList(t, localDecs, funRtnType);
+  // the locals of compStmt are in scope until its end, and their frame
+  // slots are free again after it
+  private void findReferencesCompoundStmt(TreeNode compStmt, ScopeStack<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
+    int blockSlot = nextSlot;
+    localDecs.push();
+    try {
+      for (TreeNode t : compStmt.getChildren()) {
+        if (t.getKind() == TreeNodeKind.LOCAL_DECS) {
+          findReferencesLocalDecs(t, localDecs);
+        } else if (t.getKind() == TreeNodeKind.STATEMENT_LIST) {
+          findReferencesStmtList(t, localDecs, funRtnType);
+        }
       }
+    } finally {
+      localDecs.pop();
+      nextSlot = blockSlot;
     }
   }
 
-  private void findReferencesLocalDecs(TreeNode local_decs, LinkedList<TreeNode> localDecs) {
-    while (!isEmpty(local_decs)) {
-      TreeNode varDec = getDec(local_decs);
+  private void findReferencesLocalDecs(TreeNode local_decs, ScopeStack<TreeNode> localDecs) {
+    for (TreeNode varDec : local_decs.getChildren()) {
       addVarDecToLocalDecs(varDec, localDecs);
-      local_decs = getDecList(local_decs);
     }
   }
 
-  private void findReferencesStmtList(TreeNode stmtList, LinkedList<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
-    while (!isEmpty(stmtList)) {
-      TreeNode stmt = getDec(stmtList);
-      findReferencesStmt(stmt, localDecs, funRtnType);
-      stmtList = getDecList(stmtList);
+  private void findReferencesStmtList(TreeNode stmtList, ScopeStack<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
+    for (TreeNode stmt : stmtList.getChildren()) {
+      try {
+        findReferencesStmt(stmt, localDecs, funRtnType);
+      } catch (BPLTypeCheckerException e) {
+        recover(e);
+      }
     }
   }
 
-  private void findReferencesStmt(TreeNode statement, LinkedList<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
+  private void findReferencesStmt(TreeNode statement, ScopeStack<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
     Type stmtType = Type.NONE;
-    TreeNode stmt = statement.getChildren().get(0);
+    TreeNode stmt = statement.getChild(0);
     if (stmt.getKind() == TreeNodeKind.EXPRESSION_STMT) {
       findReferencesExpStmt(stmt, localDecs);
     } else if (stmt.getKind() == TreeNodeKind.COMPOUND_STMT) {
@@ -107,228 +574,239 @@ public class BPLTypeChecker {
     }
   }
 
-  private void findReferencesExpStmt(TreeNode expStmt, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    if (expStmt.getChildren().size() == 0) {
+  private void findReferencesExpStmt(TreeNode expStmt, ScopeStack<TreeNode> localDecs) throws BPLTypeCheckerException {
+    if (expStmt.getChildCount() == 0) {
       return;
     }
-    findReferencesExpression(expStmt.getChildren().get(0), localDecs);
+    findReferencesExpression(expStmt.getChild(0), localDecs);
   }
 
-  private void findReferencesIfStmt(TreeNode ifStmt, LinkedList<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
-    Type conditionType = findReferencesExpression(ifStmt.getChildren().get(0), localDecs);
+  private void findReferencesIfStmt(TreeNode ifStmt, ScopeStack<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
+    Type conditionType = findReferencesExpression(ifStmt.getChild(0), localDecs);
     if (debug) {
       System.out.println("If Condition assigned type " + conditionType + " on line " + ifStmt.getLine());
     }
     assertType(conditionType, Type.INT, ifStmt.getLine());
-    findReferencesStmt(ifStmt.getChildren().get(1), localDecs, funRtnType);
-    if (ifStmt.getChildren().size() > 2) {
-      findReferencesStmt(ifStmt.getChildren().get(2), localDecs, funRtnType);
+    findReferencesStmt(ifStmt.getChild(1), localDecs, funRtnType);
+    if (ifStmt.getChildCount() > 2) {
+      findReferencesStmt(ifStmt.getChild(2), localDecs, funRtnType);
     }
   }
 
-  private void findReferencesWhileStmt(TreeNode whileStmt, LinkedList<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
-    Type conditionType = findReferencesExpression(whileStmt.getChildren().get(0), localDecs);
+  private void findReferencesWhileStmt(TreeNode whileStmt, ScopeStack<TreeNode> localDecs, Type funRtnType) throws BPLTypeCheckerException {
+    Type conditionType = findReferencesExpression(whileStmt.getChild(0), localDecs);
     if (debug) {
       System.out.println("While Condition assigned type " + conditionType + " on line " + whileStmt.getLine());
     }
     assertType(conditionType, Type.INT, whileStmt.getLine());
-    findReferencesStmt(whileStmt.getChildren().get(1), localDecs, funRtnType);
+    findReferencesStmt(whileStmt.getChild(1), localDecs, funRtnType);
   }
 
-  private Type findReferencesReturnStmt(TreeNode returnStmt, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    if (returnStmt.getChildren().size() == 0) {
+  private Type findReferencesReturnStmt(TreeNode returnStmt, ScopeStack<TreeNode> localDecs) throws BPLTypeCheckerException {
+    if (returnStmt.getChildCount() == 0) {
       return Type.VOID;
     }
-    Type rtnType = findReferencesExpression(returnStmt.getChildren().get(0), localDecs);
+    Type rtnType = findReferencesExpression(returnStmt.getChild(0), localDecs);
     return rtnType;
   }
 
-  private void findReferencesWriteStmt(TreeNode writeStmt, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    if (writeStmt.getChildren().size() == 0) {
+  private void findReferencesWriteStmt(TreeNode writeStmt, ScopeStack<TreeNode> localDecs) throws BPLTypeCheckerException {
+    if (writeStmt.getChildCount() == 0) {
       return;
     }
-    Type expType = findReferencesExpression(writeStmt.getChildren().get(0), localDecs);
+    Type expType = findReferencesExpression(writeStmt.getChild(0), localDecs);
     Type[] expected = {Type.INT, Type.STRING};
     assertType(expType, expected, writeStmt.getLine());
   }
 
-  private Type findReferencesExpression(TreeNode exp, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type expressionType = Type.NONE;
-    if (exp.getChildren().get(0).getKind() == TreeNodeKind.ASSIGN_EXP) {
-      expressionType = findReferencesAssignExp(exp.getChildren().get(0), localDecs);
-    } else {
-      expressionType = findReferencesCompExp(exp.getChildren().get(0), localDecs);
-    }
-    exp.setType(expressionType);
-
-    return expressionType;
-  }
-
-  private Type findReferencesCompExp(TreeNode compExp, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type compExpType = Type.NONE;
-    if (compExp.getChildren().size() == 1) {
-      compExpType = findReferencesE(compExp.getChildren().get(0), localDecs);
-    } else {
-      Type E1Type = findReferencesE(compExp.getChildren().get(0), localDecs);
-      assertType(E1Type, Type.INT, compExp.getLine());
-      Type E2Type = findReferencesE(compExp.getChildren().get(2), localDecs);
-      assertType(E2Type, Type.INT, compExp.getLine());
-      if (debug) {
-        System.out.println(compExp.getChildren().get(1).getChildren().get(0).getValue() + " assigned Type " + Type.INT + " on line " + compExp.getLine());
+  private Type findReferencesExpression(TreeNode exp, ScopeStack<TreeNode> localDecs) throws BPLTypeCheckerException {
+    expressionChecker.localDecs = localDecs;
+    return expressionChecker.walk(exp);
+  }
+
+  // Types an EXPRESSION and everything under it, linking each ID to its
+  // declaration. The value of a node is the type found for it so far, and
+  // every check is made at the point the recursive checker made it, so
+  // errors and debug output come in the same order.
+  //
+  // REL_EXP, ADD_EXP and MUL_EXP take int operands and give an int.
+  private class ExpressionChecker extends TreeWalker<Type, BPLTypeCheckerException> {
+    private ScopeStack<TreeNode> localDecs;
+
+    @Override
+    protected Type enter(TreeNode node) throws BPLTypeCheckerException {
+      TreeNodeKind kind = node.getKind();
+      if (kind == TreeNodeKind.VAR || kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.POINTER_VAR) {
+        TreeNode ID = node.getChild(0);
+        Type varType = findReferencesID(node, localDecs, ID);
+        ID.setDec(node.getDec());
+        ID.setDeclaration(node.getDeclaration());
+        return varType;
+      } else if (kind == TreeNodeKind.ARRAY_FACTOR) {
+        Type idType = findReferencesID(node.getChild(0), localDecs, node.getChild(0));
+        Type[] expected = {Type.INT_ARRAY, Type.STRING_ARRAY};
+        assertType(idType, expected, node.getLine());
+        return idType;
+      } else if (kind == TreeNodeKind.ID) {
+        return findReferencesID(node, localDecs, node);
+      } else if (kind == TreeNodeKind.FUN_CALL) {
+        Type funRtnType = findReferencesID(node.getChild(0), localDecs, node.getChild(0));
+        if (node.getChild(0).getDeclaration().getStorage() != Declaration.Storage.FUNCTION) {
+          throw new BPLTypeCheckerException("TypeChecker Error: " + node.getChild(0).getValue() + " is not a function");
+        }
+        return funRtnType;
+      } else if (kind == TreeNodeKind.NUM || kind == TreeNodeKind.READ) {
+        return Type.INT;
+      } else if (kind == TreeNodeKind.STR) {
+        return Type.STRING;
       }
-      compExpType = Type.INT;
-    }
-    return compExpType;
-  }
-
-  private Type findReferencesE(TreeNode E, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type EType = Type.NONE;
-    if (E.getChildren().size() == 1) {
-      EType = findReferencesT(E.getChildren().get(0), localDecs);
-    } else {
-      Type E1 = findReferencesE(E.getChildren().get(0), localDecs);
-      assertType(E1, Type.INT, E.getLine());
-      Type T = findReferencesT(E.getChildren().get(2), localDecs);
-      assertType(T, Type.INT, E.getLine());
-      if (debug) {
-        System.out.println(E.getChildren().get(1).getChildren().get(0).getValue() + " assigned Type " + Type.INT + " on line " + E.getLine());
+      return Type.NONE;
+    }
+
+    @Override
+    protected TreeNode child(TreeNode node, int i, Type value) {
+      TreeNodeKind kind = node.getKind();
+      if (kind == TreeNodeKind.ASSIGN_EXP || isBinaryExp(node)) {
+        return i < 2 ? node.getChild(i) : null;
+      } else if (kind == TreeNodeKind.EXPRESSION || kind == TreeNodeKind.NEG_F
+          || kind == TreeNodeKind.ADDRESS_F || kind == TreeNodeKind.DEREF_F) {
+        return i == 0 ? node.getChild(0) : null;
+      } else if (kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.ARRAY_FACTOR) {
+        // the index; the ID was looked up on entry
+        return i == 0 ? node.getChild(1) : null;
+      } else if (kind == TreeNodeKind.FUN_CALL) {
+        // EMPTY has no children, so no arguments are an empty list
+        TreeNode argList = node.getChild(1).getChild(0);
+        if (i < argList.getChildCount() && i < node.getChild(0).getDeclaration().getParamCount()) {
+          return argList.getChild(i);
+        }
       }
-      EType = Type.INT;
-    }
-    return EType;
-  }
-
-  private Type findReferencesT(TreeNode T, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type TType = Type.NONE;
-    if (T.getChildren().size() == 1) {
-      TType = findReferencesF(T.getChildren().get(0), localDecs);
-    } else {
-      Type T1 = findReferencesT(T.getChildren().get(0), localDecs);
-      assertType(T1, Type.INT, T.getLine());
-      Type F = findReferencesF(T.getChildren().get(2), localDecs);
-      assertType(F, Type.INT, T.getLine());
-      if (debug) {
-        System.out.println(T.getChildren().get(1).getChildren().get(0).getValue() + " assigned Type " + Type.INT + " on line " + T.getLine());
+      return null;
+    }
+
+    @Override
+    protected Type combine(TreeNode node, int i, Type value, Type result) throws BPLTypeCheckerException {
+      TreeNodeKind kind = node.getKind();
+      if (kind == TreeNodeKind.EXPRESSION || kind == TreeNodeKind.ADDRESS_F || kind == TreeNodeKind.DEREF_F) {
+        return result;
+      } else if (kind == TreeNodeKind.ASSIGN_EXP) {
+        if (i == 0) {
+          return result;
+        }
+        // value is the type of the variable, result that of the expression
+        if (value == Type.INT_PTR) {
+          assertType(result, Type.INT_ADDRESS, node.getLine());
+        } else if (value == Type.STRING_PTR) {
+          assertType(result, Type.STRING_ADDRESS, node.getLine());
+        } else {
+          assertType(result, value, node.getLine());
+          node.setType(result);
+        }
+        return result;
+      } else if (isBinaryExp(node) || kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.ARRAY_FACTOR) {
+        assertType(result, Type.INT, node.getLine());
+        return value;
+      } else if (kind == TreeNodeKind.NEG_F) {
+        assertType(result, Type.INT, node.getLine());
+        return result;
+      } else if (kind == TreeNodeKind.FUN_CALL) {
+        TreeNode args = node.getChild(1);
+        assertType(result, node.getChild(0).getDeclaration().getParamType(i), args.getLine());
       }
-      TType = Type.INT;
-    }
-    return TType;
-  }
-
-  private Type findReferencesF(TreeNode F, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type FType = Type.NONE;
-    if (F.getKind() == TreeNodeKind.NEG_F) {
-      Type F1 = findReferencesF(F.getChildren().get(0), localDecs);
-      assertType(F1, Type.INT, F.getLine());
-      FType = F1;
-    } else {
-      if (F.getKind() == TreeNodeKind.ADDRESS_F || F.getKind() == TreeNodeKind.DEREF_F) {
-        FType = findReferencesFactor(F, localDecs);
-      } else {
-        FType = findReferencesFactor(F.getChildren().get(0), localDecs);
+      return value;
+    }
+
+    @Override
+    protected Type exit(TreeNode node, Type value) throws BPLTypeCheckerException {
+      TreeNodeKind kind = node.getKind();
+      Type type = value;
+      if (kind == TreeNodeKind.EXPRESSION) {
+        node.setType(type);
+      } else if (isBinaryExp(node)) {
+        if (debug) {
+          System.out.println(node.getValue() + " assigned Type " + Type.INT + " on line " + node.getLine());
+        }
+        type = Type.INT;
+      } else if (kind == TreeNodeKind.VAR || kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.POINTER_VAR) {
+        String id = node.getChild(0).getValue();
+        if (kind == TreeNodeKind.ARRAY_VAR) {
+          if (type == Type.INT_ARRAY) {
+            type = Type.INT;
+          } else if (type == Type.STRING_ARRAY) {
+            type = Type.STRING;
+          }
+          if (debug) {
+            System.out.println( id + "[<expression>]" + " assigned Type " + type + " on line " + node.getLine());
+          }
+        } else if (kind == TreeNodeKind.POINTER_VAR) {
+          if (type == Type.INT_PTR) {
+            type = Type.INT;
+          } else if (type == Type.STRING_PTR) {
+            type = Type.STRING;
+          }
+          if (debug) {
+            System.out.println("*" + id + " assigned Type " + type + " on line " + node.getLine());
+          }
+        }
+        node.setType(type);
+      } else if (kind == TreeNodeKind.ARRAY_FACTOR) {
+        if (type == Type.INT_ARRAY) {
+          type = Type.INT;
+        } else if (type == Type.STRING_ARRAY) {
+          type = Type.STRING;
+        }
+        if (debug) {
+          System.out.println(node.getChild(0).getValue() + "[<expression>]" + " assigned Type " + type + " on line " + node.getLine());
+        }
+      } else if (kind == TreeNodeKind.ADDRESS_F) {
+        Type[] expected = {Type.INT, Type.STRING};
+        assertType(type, expected, node.getLine());
+        if (type == Type.INT) {
+          type = Type.INT_ADDRESS;
+        } else if (type == Type.STRING) {
+          type = Type.STRING_ADDRESS;
+        }
+        node.setValue(getOperandName(node.getChild(0)));
+        if (debug) {
+          System.out.println("&" + node.getValue() + " assigned Type " + type + " on line " + node.getLine());
+        }
+      } else if (kind == TreeNodeKind.DEREF_F) {
+        Type[] expected = {Type.INT_PTR, Type.STRING_PTR};
+        assertType(type, expected, node.getLine());
+        if (type == Type.INT_PTR) {
+          type = Type.INT;
+        } else if (type == Type.STRING_PTR) {
+          type = Type.STRING;
+        }
+        node.setValue(getOperandName(node.getChild(0)));
+        if (debug) {
+          System.out.println("*" + node.getValue() + " assigned Type " + type + " on line " + node.getLine());
+        }
+      } else if (kind == TreeNodeKind.FUN_CALL) {
+        Declaration function = node.getChild(0).getDeclaration();
+        int argCount = node.getChild(1).getChild(0).getChildCount();
+        if (argCount != function.getParamCount()) {
+          throw new BPLTypeCheckerException("TypeChecker Error: Incorrect number of arguments to " + function.getName());
+        }
       }
+      return type;
     }
-    return FType;
   }
 
-  private Type findReferencesFactor(TreeNode factor, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type factorType = Type.NONE;
-    TreeNode fac = factor.getChildren().get(0);
-    if (factor.getKind() == TreeNodeKind.ARRAY_FACTOR) {
-      Type idType = findReferencesID(factor.getChildren().get(0), localDecs, factor.getChildren().get(0).getValue());
-      Type[] expected = {Type.INT_ARRAY, Type.STRING_ARRAY};
-      assertType(idType, expected, factor.getLine());
-      Type expType = findReferencesExpression(factor.getChildren().get(1), localDecs);
-      assertType(expType, Type.INT, factor.getLine());
-      factorType = idType;
-      if (idType == Type.INT_ARRAY) {
-        factorType = Type.INT;
-      } else if (idType == Type.STRING_ARRAY) {
-        factorType = Type.STRING;
-      }
-
-      if (debug) {
-        System.out.println(factor.getChildren().get(0).getValue() + "[<expression>]" + " assigned Type " + factorType + " on line " + factor.getLine());
-      }
-
-
-    } else if (factor.getKind() == TreeNodeKind.ADDRESS_F) {
-      factorType = findReferencesFactor(fac, localDecs);
-      Type[] expected = {Type.INT, Type.STRING};
-      assertType(factorType, expected, factor.getLine());
-
-      if (factorType == Type.INT) {
-        factorType = Type.INT_ADDRESS;
-      } else if (factorType == Type.STRING) {
-        factorType = Type.STRING_ADDRESS;
-      }
-      factor.setValue(factor.getChildren().get(0).getValue());
-      if (debug) {
-        System.out.println("&" + factor.getValue() + " assigned Type " + factorType + " on line " + factor.getLine());
-      }
-
-    } else if (factor.getKind() == TreeNodeKind.DEREF_F) {
-      factorType = findReferencesFactor(fac, localDecs);
-      Type[] expected = {Type.INT_PTR, Type.STRING_PTR};
-      assertType(factorType, expected, factor.getLine());
-      if (factorType == Type.INT_PTR) {
-        factorType = Type.INT;
-      } else if (factorType == Type.STRING_PTR) {
-        factorType = Type.STRING;
-      }
-      factor.setValue(factor.getChildren().get(0).getValue());
-      if (debug) {
-        System.out.println("*" + factor.getValue() + " assigned Type " + factorType + " on line " + factor.getLine());
-      }
-
-    } else if (fac.getKind() == TreeNodeKind.ID) {
-      factorType = findReferencesID(fac, localDecs, fac.getValue());
-      factor.setValue(fac.getValue());
-    } else if (fac.getKind() == TreeNodeKind.EXPRESSION) {
-      factorType = findReferencesExpression(fac, localDecs);
-    } else if (fac.getKind() == TreeNodeKind.FUN_CALL) {
-      Type funRtnType = findReferencesID(fac.getChildren().get(0), localDecs, fac.getChildren().get(0).getValue());
-      findReferencesArgs(fac.getChildren().get(1), localDecs, fac.getChildren().get(0).getDec());
-      factorType = funRtnType;
-    } else if (fac.getKind() == TreeNodeKind.NUM) {
-      factorType = Type.INT;
-    } else if (fac.getKind() == TreeNodeKind.STR) {
-      factorType = Type.STRING;
-    } else if (fac.getKind() == TreeNodeKind.READ) {
-      factorType = Type.INT;
-    }
-    return factorType;
-  }
-
-  private void findReferencesArgs(TreeNode args, LinkedList<TreeNode> localDecs, TreeNode funDec) throws BPLTypeCheckerException {
-    TreeNode argList = args.getChildren().get(0);
-    TreeNode params = funDec.getChildren().get(2);
-    TreeNode paramList = null;
-    Type paramType = Type.NONE;
-    if (!areParams(params)) {
-      paramList = new TreeNode(TreeNodeKind.EMPTY, -1, null);
-    } else {
-      paramList = params.getChildren().get(0);
-    }
-
-    while (!isEmpty(argList) && !isEmpty(paramList)) {
-      TreeNode param = getParam(paramList);
-      paramType = getParamType(param);
-      TreeNode exp = argList.getChildren().get(1);
-      Type expType = findReferencesExpression(exp, localDecs);
-      assertType(expType, paramType, args.getLine());
-
-      argList = argList.getChildren().get(0);
-      paramList = getParamList(paramList);
-    }
+  private boolean isBinaryExp(TreeNode exp) {
+    TreeNodeKind kind = exp.getKind();
+    return kind == TreeNodeKind.REL_EXP || kind == TreeNodeKind.ADD_EXP || kind == TreeNodeKind.MUL_EXP;
+  }
 
-    if (!isEmpty(argList) || !isEmpty(paramList)) {
-      throw new BPLTypeCheckerException("TypeChecker Error: Incorrect number of arguments to " + funDec.getChildren().get(1).getValue());
+  // the variable named by the operand of & or *, null if it is not an ID
+  private String getOperandName(TreeNode operand) {
+    if (operand.getKind() == TreeNodeKind.ID) {
+      return operand.getValue();
     }
+    return null;
   }
-
   private Type getParamType(TreeNode param) {
-    TreeNodeKind type = param.getChildren().get(0).getChildren().get(0).getKind();
+    TreeNodeKind type = param.getChild(0).getChild(0).getKind();
     Type paramType = Type.NONE;
 
     if (param.getKind() == TreeNodeKind.POINTER_PARAM) {
@@ -353,67 +831,19 @@ public class BPLTypeChecker {
     return paramType;
   }
 
-  private Type findReferencesAssignExp(TreeNode assignExp, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
-    Type varType = findReferencesVar(assignExp.getChildren().get(0), localDecs);
-    Type expType = findReferencesExpression(assignExp.getChildren().get(1), localDecs);
-
-    if (varType == Type.INT_PTR) {
-      assertType(expType, Type.INT_ADDRESS, assignExp.getLine());
-
-    } else if (varType == Type.STRING_PTR) {
-      assertType(expType, Type.STRING_ADDRESS, assignExp.getLine());
-    } else {
-      assertType(expType, varType, assignExp.getLine());
-      assignExp.setType(expType);
-    }
-    return expType;
-  }
-
-  private Type findReferencesVar(TreeNode var, LinkedList<TreeNode> localDecs) throws BPLTypeCheckerException {
+  private Type findReferencesID(TreeNode var, ScopeStack<TreeNode> localDecs, TreeNode ID) throws BPLTypeCheckerException {
     Type varType = Type.NONE;
-    TreeNode ID = var.getChildren().get(0);
     String id = ID.getValue();
-    varType = findReferencesID(var, localDecs, id);
-    ID.setDec(var.getDec());
-    if (var.getKind() == TreeNodeKind.ARRAY_VAR) {
-      Type expType = findReferencesExpression(var.getChildren().get(1), localDecs);
-      assertType(expType, Type.INT, var.getLine());
-
-      if (varType == Type.INT_ARRAY) {
-        varType = Type.INT;
-      } else if (varType == Type.STRING_ARRAY) {
-        varType = Type.STRING;
-      }
-
-      if (debug) {
-        System.out.println( id + "[<expression>]" + " assigned Type " + varType + " on line " + var.getLine());
-      }
-
-    } else if (var.getKind() == TreeNodeKind.POINTER_VAR) {
-      if (varType == Type.INT_PTR) {
-        varType = Type.INT;
-      } else if (varType == Type.STRING_PTR) {
-        varType = Type.STRING;
-      }
-      if (debug) {
-        System.out.println("*" + id + " assigned Type " + varType + " on line " + var.getLine());
-      }
-    }
-    var.setType(varType);
-    return varType;
-  }
-
-  private Type findReferencesID(TreeNode var, LinkedList<TreeNode> localDecs, String id) throws BPLTypeCheckerException {
-    Type varType = Type.NONE;
-    TreeNode reference = findLocalReference(id, localDecs);
+    TreeNode reference = findLocalReference(ID.getSymbol(), localDecs);
     if (reference == null) {
-      reference = findGlobalReference(id);
+      reference = findGlobalReference(ID.getSymbol());
     }
     if (reference == null) {
       throw new BPLTypeCheckerException("TypeChecker Error: Variable " + id + " referenced before assignment.");
     }
     var.setDec(reference);
-    varType = findVarType(reference);
+    var.setDeclaration(reference.getDeclaration());
+    varType = reference.getDeclaration().getType();
     if (debug) {
       System.out.println(var.getKind() + " " + id + " on line " + var.getLine() + " linked to declaration " + reference.getKind() + " on line " + reference.getLine());
       if (reference.getKind() == TreeNodeKind.FUN_DEC) {
@@ -428,96 +858,97 @@ public class BPLTypeChecker {
     return varType;
   }
 
+  // the type of a declaration, from which its descriptor is made
   private Type findVarType(TreeNode reference) {
     Type refType = Type.NONE;
     if (reference.getKind() == TreeNodeKind.ARRAY_VAR_DEC) {
-      if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.INT) {
+      if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.INT) {
         refType = Type.INT_ARRAY;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.STR) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.STR) {
         refType = Type.STRING_ARRAY;
       }
     } else if (reference.getKind() == TreeNodeKind.POINTER_VAR_DEC) {
-      if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.INT) {
+      if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.INT) {
         refType = Type.INT_PTR;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.STR) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.STR) {
         refType = Type.STRING_PTR;
       }
     } else if (reference.getKind() == TreeNodeKind.FUN_DEC) {
-      if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.INT) {
+      if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.INT) {
         refType = Type.INT;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.STR) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.STR) {
         refType = Type.STRING;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.VOID) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.VOID) {
         refType = Type.VOID;
       }
     } else if (reference.getKind() == TreeNodeKind.ARRAY_PARAM) {
-      if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.INT) {
+      if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.INT) {
         refType = Type.INT_ARRAY;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.STR) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.STR) {
         refType = Type.STRING_ARRAY;
       }
     } else if (reference.getKind() == TreeNodeKind.POINTER_PARAM) {
-      if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.INT) {
+      if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.INT) {
         refType = Type.INT_PTR;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.STR) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.STR) {
         refType = Type.STRING_PTR;
       }
     } else {
-      if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.INT) {
+      if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.INT) {
         refType = Type.INT;
-      } else if (reference.getChildren().get(0).getChildren().get(0).getKind() == TreeNodeKind.STR) {
+      } else if (reference.getChild(0).getChild(0).getKind() == TreeNodeKind.STR) {
         refType = Type.STRING;
       }
     }
     return refType;
   }
 
-  private TreeNode findLocalReference(String id, LinkedList<TreeNode> localDecs) {
-    for (TreeNode t : localDecs) {
-      if (getDecId(t).equals(id)) {
-        return t;
-      }
-    }
-    return null;
+  private TreeNode findLocalReference(int symbol, ScopeStack<TreeNode> localDecs) {
+    return localDecs.lookup(symbol);
   }
 
-  private TreeNode findGlobalReference(String id) {
-    if (globalDecs.containsKey(id)) {
-      return globalDecs.get(id);
+  private TreeNode findGlobalReference(int symbol) {
+    if (globalDecs[symbol] == null || globalOrder[symbol] > declarationIndex) {
+      return null;
     }
-    return null;
+    if (referencedBy[symbol] != declarationIndex + 1) {
+      referencedBy[symbol] = declarationIndex + 1;
+      dependencies.add(getDecId(globalDecs[symbol]));
+    }
+    return globalDecs[symbol];
   }
 
-  private void addVarDecToLocalDecs(TreeNode varDec, LinkedList<TreeNode> localDecs) {
-    localDecs.addFirst(varDec);
+  private void addVarDecToLocalDecs(TreeNode varDec, ScopeStack<TreeNode> localDecs) {
+    int arrayLength = getArrayLength(varDec);
+    // an array takes arrayLength slots, and its slot is the last of them
+    nextSlot += varDec.getKind() == TreeNodeKind.ARRAY_VAR_DEC ? arrayLength : 1;
+    varDec.setDeclaration(new Declaration(getDecId(varDec), findVarType(varDec), Declaration.Storage.LOCAL, nextSlot - 1, arrayLength, null));
+    localDecs.declare(getDecSymbol(varDec), varDec);
 
     if (debug) {
       System.out.println("Added " + varDec.getKind() + " " + getDecType(varDec) + " " + getDecId(varDec) + " to Local Declarations on line " + varDec.getLine());
     }
   }
 
-  private void findReferencesParams(TreeNode funDec, LinkedList<TreeNode> localDecs) {
-    TreeNode params = funDec.getChildren().get(2);
+  private void findReferencesParams(TreeNode funDec, ScopeStack<TreeNode> localDecs) {
+    TreeNode params = funDec.getChild(2);
 
     if (!areParams(params)) {
       return;
     }
 
-    TreeNode paramList = params.getChildren().get(0);
-    while (!isEmpty(paramList)) {
-      TreeNode param = getParam(paramList);
-      addParamToLocalDec(param, localDecs);
-      paramList = getParamList(paramList);
+    TreeNode paramList = params.getChild(0);
+    List<TreeNode> paramDecs = paramList.getChildren();
+    for (int i = 0; i < paramDecs.size(); i++) {
+      addParamToLocalDec(paramDecs.get(i), i, localDecs);
     }
 
   }
 
-  private TreeNode getParamList(TreeNode paramList) {
-    return paramList.getChildren().get(0);
-  }
-
-  private void addParamToLocalDec(TreeNode param, LinkedList<TreeNode> localDecs) {
-    localDecs.addFirst(param);
+  // param is parameter index of its function, and takes that frame slot
+  private void addParamToLocalDec(TreeNode param, int index, ScopeStack<TreeNode> localDecs) {
+    param.setDeclaration(new Declaration(getParamId(param), getParamType(param), Declaration.Storage.PARAM, index, 0, null));
+    localDecs.declare(getDecSymbol(param), param);
 
     if (debug) {
       System.out.println("Added " + param.getKind() + " " + getParamTypeString(param) + " " + getParamId(param) + " to Local Declarations on line " + param.getLine());
@@ -525,73 +956,48 @@ public class BPLTypeChecker {
   }
 
   private String getParamId(TreeNode param) {
-    return param.getChildren().get(1).getValue();
+    return param.getChild(1).getValue();
   }
 
   private String getParamTypeString(TreeNode param) {
-    return param.getChildren().get(0).getChildren().get(0).getValue();
-  }
-
-  private TreeNode getParam(TreeNode paramList) {
-    return paramList.getChildren().get(1);
+    return param.getChild(0).getChild(0).getValue();
   }
 
   private boolean areParams(TreeNode params) {
-    TreeNode paramList = params.getChildren().get(0);
+    TreeNode paramList = params.getChild(0);
     if (paramList.getKind() == TreeNodeKind.EMPTY || paramList.getKind() == TreeNodeKind.VOID) {
       return false;
     }
     return true;
   }
 
-  private void addFunDecToGlobalDecs(TreeNode dec) throws BPLTypeCheckerException {
-    TreeNode funDec = dec.getChildren().get(0);
-    if (globalDecs.containsKey(getDecId(funDec))) {
-      throw new BPLTypeCheckerException("TypeChecker Error: Variable " + getDecId(funDec) + " already assigned.");
-    }
-    globalDecs.put(getDecId(funDec), funDec);
-
-    if (debug) {
-      System.out.println("Added " + funDec.getKind() + " " + getDecType(funDec) + " " + getDecId(funDec) + " to Global Declarations on line " + funDec.getLine());
-    }
-  }
-
-  private void addVarDecToGlobalDecs(TreeNode dec) throws BPLTypeCheckerException {
-    TreeNode varDec = dec.getChildren().get(0);
-    if (globalDecs.containsKey(getDecId(varDec))) {
-      throw new BPLTypeCheckerException("TypeChecker Error: Variable " + getDecId(varDec) + " already assigned.");
+  private void addGlobalDec(TreeNode dec, int index) throws BPLTypeCheckerException {
+    TreeNode globalDec = dec.getChild(0);
+    if (globalOrder[getDecSymbol(globalDec)] != index) {
+      throw new BPLTypeCheckerException("TypeChecker Error: Variable " + getDecId(globalDec) + " already assigned.");
     }
-    globalDecs.put(getDecId(varDec), varDec);
 
     if (debug) {
-      System.out.println("Added " + varDec.getKind() + " " + getDecType(varDec) + " " + getDecId(varDec) + " to Global Declarations on line " + varDec.getLine());
+      System.out.println("Added " + globalDec.getKind() + " " + getDecType(globalDec) + " " + getDecId(globalDec) + " to Global Declarations on line " + globalDec.getLine());
     }
   }
 
   private String getDecType(TreeNode dec) {
-    return dec.getChildren().get(0).getChildren().get(0).getKind().toString();
+    return dec.getChild(0).getChild(0).getKind().toString();
   }
 
   private String getDecId(TreeNode dec) {
-    TreeNode id = dec.getChildren().get(1);
+    TreeNode id = dec.getChild(1);
     return id.getValue();
   }
 
-  private boolean isVarDec(TreeNode dec) {
-    TreeNodeKind decKind = dec.getChildren().get(0).getKind();
-    return decKind == TreeNodeKind.VAR_DEC || decKind == TreeNodeKind.POINTER_VAR_DEC || decKind == TreeNodeKind.ARRAY_VAR_DEC;
-  }
-
-  private boolean isEmpty(TreeNode t) {
-    return t.getKind() == TreeNodeKind.EMPTY;
-  }
-
-  private TreeNode getDec(TreeNode t) {
-    return t.getChildren().get(1);
+  private int getDecSymbol(TreeNode dec) {
+    return dec.getChild(1).getSymbol();
   }
 
-  private TreeNode getDecList(TreeNode t) {
-    return t.getChildren().get(0);
+  private boolean isVarDec(TreeNode dec) {
+    TreeNodeKind decKind = dec.getChild(0).getKind();
+    return decKind == TreeNodeKind.VAR_DEC || decKind == TreeNodeKind.POINTER_VAR_DEC || decKind == TreeNodeKind.ARRAY_VAR_DEC;
   }
 
   private void assertType(Type type, Type expected, int line) throws BPLTypeCheckerException {
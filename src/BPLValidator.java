@@ -0,0 +1,973 @@
+/* Check-only front end: decides whether a BPL program scans, parses and type
+ * checks, in one pass over its TokenStream that builds no parse tree. Each
+ * method, and each step of an expression, follows the BPLParser method of
+ * the same name, reading the same tokens, and returns the Type
+ * BPLTypeChecker would give the node that method builds instead of the
+ * node. What the checker needs to know about
+ * declarations is kept per symbol ID: the type of each global and of each
+ * local or parameter in scope, and the parameter types of each function.
+ *
+ * validate() throws the exception compiling would stop on: the parser's
+ * error if there is one anywhere in the program, since the whole program is
+ * parsed before it is checked, otherwise the type checker's first error.
+ * A type error therefore only stops checking; parsing goes on to the end.
+ * Where the checker reports a mismatch on the line of a node that ends after
+ * the operand at fault, the line is filled in once that node ends.
+*/
+
+import java.util.Arrays;
+
+public class BPLValidator {
+	// the productions expression() keeps frames for
+	private static final int EXPRESSION = 0;
+	private static final int ASSIGNMENT = 1;
+	private static final int VAR = 2;
+	private static final int BINARY = 3;
+	private static final int UNARY = 4;
+	private static final int FACTOR = 5;
+	private static final int FUN_CALL = 6;
+
+	private TokenStream tokens;
+	private int tokenIndex;
+	private int currLine;
+
+	// indexed by symbol ID: the type of the global declared with that name,
+	// null for none, and for functions their parameter types; the types of
+	// the locals and parameters in scope, as the type checker scopes them
+	private Type[] globalTypes;
+	private Type[][] globalParams;
+	private ScopeStack<Type> localTypes;
+	private Type[] paramTypes;
+	private int paramCount;
+
+	// the first type error, still without its line while pendingLine is set;
+	// unchecked counts the arguments being read that the checker skips
+	private String typeError;
+	private boolean pendingLine;
+	private int unchecked;
+
+	// expression()'s stack of frames, and the brackets isAssignment() has
+	// open and found closed, as in BPLParser
+	private Frame[] frames;
+	private int frameCount;
+	private int[] openers;
+	private int[] closes;
+	private int closeBase;
+
+	public BPLValidator(String inputFileName) {
+		this(new BPLScanner(inputFileName).scan());
+	}
+
+	public BPLValidator(TokenStream tokens) {
+		this.tokens = tokens;
+		this.tokenIndex = 0;
+		this.currLine = 1;
+		int symbols = tokens.getSymbolTable().size();
+		this.globalTypes = new Type[symbols];
+		this.globalParams = new Type[symbols][];
+		this.localTypes = new ScopeStack<Type>(symbols);
+		this.paramTypes = new Type[8];
+		this.paramCount = 0;
+		this.typeError = null;
+		this.pendingLine = false;
+		this.unchecked = 0;
+		this.frames = new Frame[16];
+		this.frameCount = 0;
+		this.openers = new int[16];
+		this.closes = null;
+		this.closeBase = 0;
+	}
+
+	public void validate() throws BPLParserException, BPLTypeCheckerException {
+		declaractionList();
+		if (typeError != null) {
+			throw new BPLTypeCheckerException(typeError);
+		}
+	}
+
+	private void declaractionList() throws BPLParserException {
+		int token = getNextToken();
+		reset(token);
+		while (tokens.getKind(token) != Kind.T_EOF) {
+			declaration();
+			token = getNextToken();
+			reset(token);
+		}
+	}
+
+	private void declaration() throws BPLParserException {
+		int token1 = peek(0);
+		if (tokens.getKind(token1) != Kind.T_INT && tokens.getKind(token1) != Kind.T_VOID && tokens.getKind(token1) != Kind.T_STR) {
+			assertToken(token1, Kind.T_INT, "int, void or string");
+		}
+		int token2 = peek(1);
+		if (tokens.getKind(token2) == Kind.T_ASTERISK) {
+			varDec(true);
+		} else {
+			assertToken(token2, Kind.T_ID, "<id>");
+			int token3 = peek(2);
+			if (tokens.getKind(token3) == Kind.T_LPAREN) {
+				funDec();
+			} else if (tokens.getKind(token3) == Kind.T_SEMICOLON || tokens.getKind(token3) == Kind.T_LBRACKET){
+				varDec(true);
+			} else {
+				assertToken(token3, Kind.T_SEMICOLON, "(, [, or ;");
+			}
+		}
+	}
+
+	// reads a variable declaration and declares the variable as a global or
+	// a local of the function being read
+	private void varDec(boolean global) throws BPLParserException {
+		Kind type = typeSpecifier();
+		Type varType = Type.NONE;
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_ASTERISK) {
+			varType = pointerType(type);
+		} else {
+			reset(token);
+			varType = valueType(type);
+		}
+		int symbol = tokens.getSymbol(id());
+		token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_LBRACKET) {
+			varType = arrayType(type);
+			num();
+			token = getNextToken();
+			assertToken(token, Kind.T_RBRACKET, "]");
+			token = getNextToken();
+		}
+		assertToken(token, Kind.T_SEMICOLON, ";");
+		if (global) {
+			declareGlobal(symbol, varType);
+		} else {
+			declareLocal(symbol, varType);
+		}
+	}
+
+	private void localDecs() throws BPLParserException {
+		int token = getNextToken();
+		reset(token);
+		while (tokens.getKind(token) == Kind.T_INT || tokens.getKind(token) == Kind.T_VOID || tokens.getKind(token) == Kind.T_STR) {
+			varDec(false);
+			token = getNextToken();
+			reset(token);
+		}
+	}
+
+	// functionType is the return type of the function being read
+	private void statement(Type functionType) throws BPLParserException {
+		int line = currLine;
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_LBRACE) {
+			reset(token);
+			compoundStatement(functionType);
+		} else if (tokens.getKind(token) == Kind.T_WHILE) {
+			whileStatement(functionType);
+		} else if (tokens.getKind(token) == Kind.T_IF){
+			ifStatement(functionType);
+		} else if (tokens.getKind(token) == Kind.T_RETURN) {
+			assertType(returnStatement(), functionType, line);
+		} else if (tokens.getKind(token) == Kind.T_WRITE || tokens.getKind(token) == Kind.T_WRITELN) {
+			reset(token);
+			writeStatement();
+		} else {
+			reset(token);
+			expressionStatement();
+		}
+	}
+
+	private Kind typeSpecifier() throws BPLParserException {
+		int token = getNextToken();
+		if (tokens.getKind(token) != Kind.T_INT && tokens.getKind(token) != Kind.T_VOID && tokens.getKind(token) != Kind.T_STR) {
+			assertToken(token, Kind.T_INT, "int, void or string");
+		}
+		return tokens.getKind(token);
+	}
+
+	private void funDec() throws BPLParserException {
+		Kind type = typeSpecifier();
+		Type functionType = type == Kind.T_INT ? Type.INT : type == Kind.T_STR ? Type.STRING : Type.VOID;
+		int symbol = tokens.getSymbol(id());
+		declareGlobal(symbol, functionType);
+		int token = getNextToken();
+		assertToken(token, Kind.T_LPAREN, "(");
+		paramCount = 0;
+		localTypes.push();
+		params();
+		token = getNextToken();
+		assertToken(token, Kind.T_RPAREN, ")");
+		globalParams[symbol] = Arrays.copyOf(paramTypes, paramCount);
+		compoundStatement(functionType);
+		localTypes.pop();
+	}
+
+	private void params() throws BPLParserException {
+		int token = getNextToken();
+		if (tokens.getKind(token) != Kind.T_VOID) {
+			reset(token);
+			paramList();
+		}
+	}
+
+	private void paramList() throws BPLParserException {
+		int token = getNextToken();
+		reset(token);
+		while (tokens.getKind(token) != Kind.T_RPAREN) {
+			param();
+			token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_RPAREN) {
+				reset(token);
+			} else {
+				assertToken(token, Kind.T_COMMA, ",");
+			}
+			token = getNextToken();
+			reset(token);
+		}
+	}
+
+	private void param() throws BPLParserException {
+		Kind type = typeSpecifier();
+		Type paramType = Type.NONE;
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_ASTERISK) {
+			paramType = pointerType(type);
+		} else {
+			reset(token);
+			paramType = valueType(type);
+		}
+		int symbol = tokens.getSymbol(id());
+		token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_LBRACKET) {
+			paramType = arrayType(type);
+			token = getNextToken();
+			assertToken(token, Kind.T_RBRACKET, "]");
+		} else {
+			reset(token);
+		}
+		declareLocal(symbol, paramType);
+		if (paramCount == paramTypes.length) {
+			paramTypes = Arrays.copyOf(paramTypes, paramCount * 2);
+		}
+		paramTypes[paramCount++] = paramType;
+	}
+
+	private void compoundStatement(Type functionType) throws BPLParserException {
+		int token = getNextToken();
+		assertToken(token, Kind.T_LBRACE, "{");
+		localTypes.push();
+		token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_INT || tokens.getKind(token) == Kind.T_VOID || tokens.getKind(token) == Kind.T_STR) {
+			reset(token);
+			localDecs();
+			token = getNextToken();
+		}
+		if (tokens.getKind(token) != Kind.T_RBRACE) {
+			reset(token);
+			statementList(functionType);
+			token = getNextToken();
+		}
+		assertToken(token, Kind.T_RBRACE, "}");
+		localTypes.pop();
+	}
+
+	private void whileStatement(Type functionType) throws BPLParserException {
+		int line = currLine;
+		int token = getNextToken();
+		assertToken(token, Kind.T_LPAREN, "(");
+		Type condition = expression();
+		assertType(condition, Type.INT, line);
+		token = getNextToken();
+		assertToken(token, Kind.T_RPAREN, ")");
+		statement(functionType);
+	}
+
+	private void ifStatement(Type functionType) throws BPLParserException {
+		int line = currLine;
+		int token = getNextToken();
+		assertToken(token, Kind.T_LPAREN, "(");
+		Type condition = expression();
+		assertType(condition, Type.INT, line);
+		token = getNextToken();
+		assertToken(token, Kind.T_RPAREN, ")");
+		statement(functionType);
+		token = getNextToken();
+		if (tokens.getKind(token) != Kind.T_ELSE) {
+			reset(token);
+			return;
+		}
+		statement(functionType);
+	}
+
+	private Type returnStatement() throws BPLParserException {
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_SEMICOLON) {
+			return Type.VOID;
+		}
+		reset(token);
+		Type type = expression();
+		token = getNextToken();
+		assertToken(token, Kind.T_SEMICOLON, ";");
+		return type;
+	}
+
+	private void writeStatement() throws BPLParserException {
+		int line = currLine;
+		int token = getNextToken();
+
+		if (tokens.getKind(token) == Kind.T_WRITE) {
+			token = getNextToken();
+			assertToken(token, Kind.T_LPAREN, "(");
+			Type type = expression();
+			assertType(type, new Type[] {Type.INT, Type.STRING}, line);
+			token = getNextToken();
+			assertToken(token, Kind.T_RPAREN, ")");
+			token = getNextToken();
+			assertToken(token, Kind.T_SEMICOLON, ";");
+		} else {
+			token = getNextToken();
+			assertToken(token, Kind.T_LPAREN, "(");
+			token = getNextToken();
+			assertToken(token, Kind.T_RPAREN, ")");
+			token = getNextToken();
+			assertToken(token, Kind.T_SEMICOLON, ";");
+		}
+	}
+
+	private void statementList(Type functionType) throws BPLParserException {
+		int token = getNextToken();
+		reset(token);
+		if (tokens.getKind(token) == Kind.T_EOF) {
+			assertToken(token, Kind.T_RBRACE, "}");
+		}
+		while (tokens.getKind(token) != Kind.T_RBRACE) {
+			statement(functionType);
+			token = getNextToken();
+			reset(token);
+			if (tokens.getKind(token) == Kind.T_EOF) {
+				assertToken(token, Kind.T_RBRACE, "}");
+			}
+		}
+	}
+
+	private void expressionStatement() throws BPLParserException {
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_SEMICOLON) {
+			return;
+		}
+		reset(token);
+		expression();
+		token = getNextToken();
+		assertToken(token, Kind.T_SEMICOLON, ";");
+	}
+
+	// Expressions are read without recursion, as BPLParser parses them: each
+	// production below that can hold another expression keeps a Frame on the
+	// frames stack while it waits for one, and step() takes the top frame one
+	// step further, either pushing a frame for the next part and returning
+	// null, or returning the type of what its frame read. A step takes the
+	// first step of the frames BPLParser's does itself, through start().
+
+	// follows BPLParser.isAssignment()
+	private boolean isAssignment() throws BPLParserException {
+		int mark = mark();
+		if (closes == null) {
+			closeBase = mark;
+		}
+		int open = 0;
+		boolean assignment = false;
+		int token = getNextToken();
+		while (true) {
+			Kind kind = tokens.getKind(token);
+			if (kind == Kind.T_EQ && open == 0) {
+				assignment = true;
+				break;
+			} else if (kind == Kind.T_SEMICOLON || kind == Kind.T_EOF) {
+				while (open > 1) {
+					setClose(openers[--open], token);
+				}
+				break;
+			} else if (kind == Kind.T_COMMA && open == 0) {
+				break;
+			} else if (kind == Kind.T_RPAREN || kind == Kind.T_RBRACKET) {
+				if (open == 0) {
+					break;
+				}
+				int opener = openers[--open];
+				if (kind == Kind.T_RPAREN) {
+					assertToken(opener, Kind.T_LPAREN, "]");
+				} else {
+					assertToken(opener, Kind.T_LBRACKET, ")");
+				}
+				if (open > 0) {
+					setClose(opener, token);
+				}
+			} else if (kind == Kind.T_LPAREN || kind == Kind.T_LBRACKET) {
+				int close = getClose(token);
+				if (close >= 0) {
+					reset(close);
+					token = getNextToken();
+					if (tokens.getKind(token) == Kind.T_RPAREN || tokens.getKind(token) == Kind.T_RBRACKET) {
+						token = getNextToken();
+					}
+					continue;
+				}
+				if (open == openers.length) {
+					openers = Arrays.copyOf(openers, open * 2);
+				}
+				openers[open++] = token;
+			}
+			token = getNextToken();
+		}
+		reset(mark);
+		return assignment;
+	}
+
+	private int getClose(int opener) {
+		int i = opener - closeBase;
+		return closes == null || i < 0 || i >= closes.length ? -1 : closes[i] - 1;
+	}
+
+	private void setClose(int opener, int token) {
+		if (closes == null) {
+			closes = new int[64];
+		}
+		int i = opener - closeBase;
+		if (i < 0) {
+			return;
+		}
+		if (i >= closes.length) {
+			closes = Arrays.copyOf(closes, Math.max(closes.length * 2, i + 1));
+		}
+		closes[i] = token + 1;
+	}
+
+	private Type expression() throws BPLParserException {
+		int base = frameCount;
+		try {
+			push(EXPRESSION, 0);
+			Type result = null;
+			while (true) {
+				int top = frameCount;
+				Type type = step(frames[top - 1], result);
+				if (frameCount > top) {
+					result = null;
+					continue;
+				}
+				frameCount--;
+				if (frameCount == base) {
+					return type;
+				}
+				result = type;
+			}
+		} finally {
+			for (int i = base; i < frameCount; i++) {
+				frames[i].params = null;
+			}
+			frameCount = base;
+		}
+	}
+
+	private void push(int production, int minPrecedence) {
+		if (frameCount == frames.length) {
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		}
+		Frame frame = frames[frameCount];
+		if (frame == null) {
+			frame = new Frame();
+			frames[frameCount] = frame;
+		}
+		frame.production = production;
+		frame.step = 0;
+		frame.minPrecedence = minPrecedence;
+		frame.type = null;
+		frame.params = null;
+		frameCount++;
+	}
+
+	private Frame top() {
+		return frames[frameCount - 1];
+	}
+
+	// follows BPLParser.start()
+	private Type start(Type type) {
+		if (type != null) {
+			frameCount--;
+		}
+		return type;
+	}
+
+	// Takes frame one step, result being the type of the frame it pushed
+	// last, or null on its first step.
+	private Type step(Frame frame, Type result) throws BPLParserException {
+		switch (frame.production) {
+		case EXPRESSION:
+			if (frame.step == 0) {
+				frame.step = 1;
+				if (isAssignment()) {
+					push(ASSIGNMENT, 0);
+					return start(assignmentStep(top(), null));
+				}
+				push(BINARY, BPLParser.REL_PRECEDENCE);
+				return start(binaryStep(top(), null));
+			}
+			return result;
+		case ASSIGNMENT:
+			return assignmentStep(frame, result);
+		case VAR:
+			return varStep(frame, result);
+		case BINARY:
+			return binaryStep(frame, result);
+		case UNARY:
+			return unaryStep(frame, result);
+		case FACTOR:
+			return factorStep(frame, result);
+		default:
+			return funCallStep(frame, result);
+		}
+	}
+
+	// the type of the variable is frame.type
+	private Type assignmentStep(Frame frame, Type result) throws BPLParserException {
+		if (frame.step == 0) {
+			frame.line = currLine;
+			frame.step = 1;
+			push(VAR, 0);
+			result = start(varStep(top(), null));
+			if (result == null) {
+				return null;
+			}
+		}
+		if (frame.step == 1) {
+			frame.type = result;
+			int token = getNextToken();
+			assertToken(token, Kind.T_EQ, "=");
+			frame.step = 2;
+			push(EXPRESSION, 0);
+			return null;
+		}
+		if (frame.type == Type.INT_PTR) {
+			assertType(result, Type.INT_ADDRESS, frame.line);
+		} else if (frame.type == Type.STRING_PTR) {
+			assertType(result, Type.STRING_ADDRESS, frame.line);
+		} else {
+			assertType(result, frame.type, frame.line);
+		}
+		return result;
+	}
+
+	// the type of the array indexed is frame.type
+	private Type varStep(Frame frame, Type result) throws BPLParserException {
+		if (frame.step == 1) {
+			assertType(result, Type.INT, frame.line);
+			int token = getNextToken();
+			assertToken(token, Kind.T_RBRACKET, "]");
+			return elementType(frame.type);
+		}
+		frame.line = currLine;
+		boolean pointer = false;
+		int token = getNextToken();
+		if (tokens.getKind(token) == Kind.T_ASTERISK) {
+			pointer = true;
+		} else {
+			reset(token);
+		}
+		Type varType = reference(id());
+		token = getNextToken();
+
+		if (tokens.getKind(token) == Kind.T_LBRACKET) {
+			frame.type = varType;
+			frame.step = 1;
+			push(EXPRESSION, 0);
+			return null;
+		}
+		reset(token);
+		if (pointer && varType == Type.INT_PTR) {
+			return Type.INT;
+		} else if (pointer && varType == Type.STRING_PTR) {
+			return Type.STRING;
+		}
+		return varType;
+	}
+
+	// follows BPLParser.binaryStep(), see there for the lines of the nodes;
+	// the left operand so far is frame.type, and frame.wrong is set if it
+	// gave the first type error, which needs the line of the operator's node
+	private Type binaryStep(Frame frame, Type result) throws BPLParserException {
+		if (frame.step == 0) {
+			frame.line = currLine;
+			frame.step = 1;
+			push(UNARY, 0);
+			result = start(unaryStep(top(), null));
+			if (result == null) {
+				return null;
+			}
+		}
+		while (true) {
+			if (frame.step == 1) {
+				frame.type = result;
+			} else {
+				int precedence = precedence(tokens.getKind(frame.token));
+				int expLine = precedence == BPLParser.REL_PRECEDENCE ? frame.line : currLine;
+				if (frame.wrong) {
+					setErrorLine(expLine);
+				}
+				assertType(result, Type.INT, expLine);
+				if (precedence == BPLParser.REL_PRECEDENCE) {
+					return Type.INT;
+				}
+				frame.type = Type.INT;
+			}
+			int token = getNextToken();
+			int precedence = precedence(tokens.getKind(token));
+			if (precedence < frame.minPrecedence) {
+				reset(token);
+				return frame.type;
+			}
+			frame.wrong = assertTypeLater(frame.type, Type.INT);
+			frame.token = token;
+			frame.step = 2;
+			if (precedence == BPLParser.MUL_PRECEDENCE) {
+				push(UNARY, 0);
+				result = start(unaryStep(top(), null));
+			} else {
+				push(BINARY, precedence + 1);
+				result = start(binaryStep(top(), null));
+			}
+			if (result == null) {
+				return null;
+			}
+		}
+	}
+
+	private static int precedence(Kind kind) {
+		if (kind == Kind.T_LEQ || kind == Kind.T_LESS || kind == Kind.T_DOUBLEEQ
+				|| kind == Kind.T_NEQ || kind == Kind.T_GREATER || kind == Kind.T_GEQ) {
+			return BPLParser.REL_PRECEDENCE;
+		} else if (kind == Kind.T_PLUS || kind == Kind.T_MINUS) {
+			return BPLParser.ADD_PRECEDENCE;
+		} else if (kind == Kind.T_ASTERISK || kind == Kind.T_FSLASH || kind == Kind.T_PERCENT) {
+			return BPLParser.MUL_PRECEDENCE;
+		}
+		return 0;
+	}
+
+	// frame.token is the operator, if any
+	private Type unaryStep(Frame frame, Type result) throws BPLParserException {
+		if (frame.step == 0) {
+			int token = getNextToken();
+			frame.line = currLine;
+			frame.token = token;
+			if (tokens.getKind(token) == Kind.T_MINUS) {
+				frame.step = 1;
+				push(UNARY, 0);
+				return null;
+			} else if (tokens.getKind(token) == Kind.T_AMPERSAND || tokens.getKind(token) == Kind.T_ASTERISK) {
+				frame.step = 1;
+				push(FACTOR, 0);
+				result = start(factorStep(top(), null));
+				if (result == null) {
+					return null;
+				}
+			} else {
+				// the frame goes on as the operand's
+				reset(token);
+				frame.production = FACTOR;
+				return factorStep(frame, null);
+			}
+		}
+		Kind kind = tokens.getKind(frame.token);
+		if (kind == Kind.T_MINUS) {
+			assertType(result, Type.INT, frame.line);
+			return result;
+		} else if (kind == Kind.T_AMPERSAND) {
+			assertType(result, new Type[] {Type.INT, Type.STRING}, frame.line);
+			return result == Type.INT ? Type.INT_ADDRESS : result == Type.STRING ? Type.STRING_ADDRESS : result;
+		}
+		assertType(result, new Type[] {Type.INT_PTR, Type.STRING_PTR}, frame.line);
+		return result == Type.INT_PTR ? Type.INT : result == Type.STRING_PTR ? Type.STRING : result;
+	}
+
+	// for an array element, the array's type is frame.type, and frame.wrong
+	// is set if it gave the first type error
+	private Type factorStep(Frame frame, Type result) throws BPLParserException {
+		if (frame.step == 1) {
+			int token2 = getNextToken();
+			assertToken(token2, Kind.T_RBRACKET, "]");
+			if (frame.wrong) {
+				setErrorLine(currLine);
+			}
+			assertType(result, Type.INT, currLine);
+			return elementType(frame.type);
+		} else if (frame.step == 2) {
+			int token = getNextToken();
+			assertToken(token, Kind.T_RPAREN, ")");
+			return result;
+		}
+		int token = getNextToken();
+
+		if (tokens.getKind(token) == Kind.T_READ) {
+			token = getNextToken();
+			assertToken(token, Kind.T_LPAREN, "(");
+			token = getNextToken();
+			assertToken(token, Kind.T_RPAREN, ")");
+			return Type.INT;
+		} else if (tokens.getKind(token) == Kind.T_NUM) {
+			reset(token);
+			num();
+			return Type.INT;
+		} else if (tokens.getKind(token) == Kind.T_STRING) {
+			reset(token);
+			string();
+			return Type.STRING;
+		} else if (tokens.getKind(token) == Kind.T_ID) {
+			int token2 = getNextToken();
+			reset(token);
+			if (tokens.getKind(token2) == Kind.T_LBRACKET) {
+				frame.type = reference(id());
+				frame.wrong = assertTypeLater(frame.type, new Type[] {Type.INT_ARRAY, Type.STRING_ARRAY});
+				token = getNextToken();
+				assertToken(token, Kind.T_LBRACKET, "[");
+				frame.step = 1;
+				push(EXPRESSION, 0);
+				return null;
+			} else if (tokens.getKind(token2) == Kind.T_LPAREN) {
+				frame.production = FUN_CALL;
+				return funCallStep(frame, null);
+			}
+			return reference(id());
+		} else if (tokens.getKind(token) == Kind.T_LPAREN) {
+			frame.step = 2;
+			push(EXPRESSION, 0);
+			return null;
+		}
+		throw new BPLParserException("Parser Error: Expected " + "<EXPRESSION>" + " but got " + tokens.getKind(token) + " on line " + tokens.getLine(token));
+	}
+
+	// Reads a call and its arguments: the function's name is at frame.token
+	// and its type is frame.type, with parameters of types frame.params, or
+	// null if they are not being checked. frame.count arguments have been
+	// read, and frame.skip is set while one past the last parameter is,
+	// which is not checked, as in the type checker.
+	private Type funCallStep(Frame frame, Type result) throws BPLParserException {
+		int token;
+		if (frame.step == 0) {
+			int name = id();
+			int symbol = tokens.getSymbol(name);
+			frame.token = name;
+			frame.type = reference(name);
+			if (checking()) {
+				frame.params = localTypes.lookup(symbol) == null ? globalParams[symbol] : null;
+				if (frame.params == null) {
+					setError("TypeChecker Error: " + tokens.getValue(name) + " is not a function");
+				}
+			}
+			token = getNextToken();
+			assertToken(token, Kind.T_LPAREN, "(");
+			frame.line = currLine;
+			frame.count = 0;
+			token = getNextToken();
+			reset(token);
+		} else {
+			if (frame.skip) {
+				unchecked--;
+			} else if (frame.params != null) {
+				assertType(result, frame.params[frame.count], frame.line);
+			}
+			frame.count++;
+			token = getNextToken();
+			if (tokens.getKind(token) == Kind.T_RPAREN) {
+				reset(token);
+			} else {
+				assertToken(token, Kind.T_COMMA, ",");
+			}
+			token = getNextToken();
+			reset(token);
+		}
+		if (tokens.getKind(token) != Kind.T_RPAREN) {
+			frame.skip = frame.params != null && frame.count >= frame.params.length;
+			if (frame.skip) {
+				unchecked++;
+			}
+			frame.step = 1;
+			push(EXPRESSION, 0);
+			return null;
+		}
+		if (frame.params != null && frame.count != frame.params.length && checking()) {
+			setError("TypeChecker Error: Incorrect number of arguments to " + tokens.getValue(frame.token));
+		}
+		token = getNextToken();
+		assertToken(token, Kind.T_RPAREN, ")");
+		return frame.type;
+	}
+
+	private int id() throws BPLParserException {
+		int token = getNextToken();
+		assertToken(token, Kind.T_ID, "<id>");
+		return token;
+	}
+
+	private int num() throws BPLParserException {
+		int token = getNextToken();
+		assertToken(token, Kind.T_NUM, "<num>");
+		return token;
+	}
+
+	private int string() throws BPLParserException {
+		int token = getNextToken();
+		assertToken(token, Kind.T_STRING, "<string>");
+		return token;
+	}
+
+	// the type of the declaration the ID at token names, as the type checker
+	// links it: the innermost local, else the global
+	private Type reference(int token) {
+		if (!checking()) {
+			return Type.NONE;
+		}
+		int symbol = tokens.getSymbol(token);
+		Type type = localTypes.lookup(symbol);
+		if (type == null) {
+			type = globalTypes[symbol];
+		}
+		if (type == null) {
+			setError("TypeChecker Error: Variable " + tokens.getValue(token) + " referenced before assignment.");
+			return Type.NONE;
+		}
+		return type;
+	}
+
+	private void declareLocal(int symbol, Type type) {
+		localTypes.declare(symbol, type);
+	}
+
+	private void declareGlobal(int symbol, Type type) {
+		if (checking() && globalTypes[symbol] != null) {
+			setError("TypeChecker Error: Variable " + tokens.getSymbolTable().getName(symbol) + " already assigned.");
+		}
+		globalTypes[symbol] = type;
+	}
+
+	private static Type valueType(Kind type) {
+		return type == Kind.T_INT ? Type.INT : type == Kind.T_STR ? Type.STRING : Type.NONE;
+	}
+
+	private static Type arrayType(Kind type) {
+		return type == Kind.T_INT ? Type.INT_ARRAY : type == Kind.T_STR ? Type.STRING_ARRAY : Type.NONE;
+	}
+
+	private static Type pointerType(Kind type) {
+		return type == Kind.T_INT ? Type.INT_PTR : type == Kind.T_STR ? Type.STRING_PTR : Type.NONE;
+	}
+
+	private static Type elementType(Type arrayType) {
+		return arrayType == Type.INT_ARRAY ? Type.INT : arrayType == Type.STRING_ARRAY ? Type.STRING : arrayType;
+	}
+
+	private boolean checking() {
+		return typeError == null && unchecked == 0;
+	}
+
+	private void setError(String message) {
+		if (checking()) {
+			typeError = message;
+		}
+	}
+
+	private void assertType(Type type, Type expected, int line) {
+		if (checking() && type != expected) {
+			typeError = "TypeChecker Error: Expected " + expected + " but got " + type + " on line " + line;
+		}
+	}
+
+	private void assertType(Type type, Type[] expected, int line) {
+		if (assertTypeLater(type, expected)) {
+			setErrorLine(line);
+		}
+	}
+
+	// Like assertType() for a node whose line is not known yet: returns
+	// true if this is the first type error, whose line setErrorLine() must
+	// then give.
+	private boolean assertTypeLater(Type type, Type expected) {
+		if (checking() && type != expected) {
+			typeError = "TypeChecker Error: Expected " + expected + " but got " + type;
+			pendingLine = true;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean assertTypeLater(Type type, Type[] expected) {
+		if (!checking()) {
+			return false;
+		}
+		String expectedTypes = "";
+		for (Type t : expected) {
+			if (type == t) {
+				return false;
+			}
+			expectedTypes = expectedTypes + t + ",";
+		}
+		typeError = "TypeChecker Error: Expected " + expectedTypes + " but got " + type;
+		pendingLine = true;
+		return true;
+	}
+
+	private void setErrorLine(int line) {
+		if (pendingLine) {
+			typeError = typeError + " on line " + line;
+			pendingLine = false;
+		}
+	}
+
+	private boolean assertToken(int t, Kind expectedKind, String expectedString) throws BPLParserException {
+		if (tokens.getKind(t) != expectedKind) {
+			throw new BPLParserException("Parser Error: Expected " + expectedString + " but got " + tokens.getKind(t) + " on line " + tokens.getLine(t));
+		}
+		return true;
+	}
+
+	private int getNextToken() throws BPLParserException {
+		int token = peek(0);
+		if (tokens.getKind(token) != Kind.T_EOF) {
+			tokenIndex++;
+		}
+		currLine = tokens.getLine(token);
+		return token;
+	}
+
+	private int peek(int k) throws BPLParserException {
+		int token = tokenIndex + k;
+		if (token >= tokens.size()) {
+			if (tokens.getError() != null) {
+				throw new BPLParserException("Parser Error: " + tokens.getError().getMessage());
+			}
+			token = tokens.size() - 1;
+		}
+		return token;
+	}
+
+	private int mark() {
+		return tokenIndex;
+	}
+
+	private void reset(int mark) {
+		tokenIndex = mark;
+	}
+
+	// a production expression() is part way through; see the step method
+	// of each for what the fields hold
+	private static class Frame {
+		private int production;
+		private int step;
+		private int minPrecedence;
+		private int line;
+		private int token;
+		private int count;
+		private boolean wrong;
+		private boolean skip;
+		private Type type;
+		private Type[] params;
+	}
+}
@@ -0,0 +1,96 @@
+/* What BPLTypeChecker resolves about one declaration, made once when it is
+ * declared: its name, type and storage class, its frame slot, the length of
+ * an array and the parameter types of a function. The declaration node and
+ * every ID linked to it point to the same Declaration (see
+ * TreeNode.getDeclaration()), so neither type checking a reference nor
+ * generating code for it goes back to the declaration's subtree.
+ *
+ * Once the checker has checked a function's body, its descriptor also
+ * holds the names of the globals the body refers to (see DependencyGraph).
+ *
+ * A parameter's slot is its index among the parameters. A local's slot
+ * counts down from the frame pointer, those of a block following the
+ * blocks it is nested in; an array takes arrayLength slots, and its slot is
+ * the last of them, where its first element is.
+*/
+
+import java.util.Arrays;
+
+public class Declaration {
+	public enum Storage { GLOBAL, FUNCTION, PARAM, LOCAL }
+
+	private String name;
+	private Type type;
+	private Storage storage;
+	private int slot;
+	private int arrayLength;
+	private Type[] params;
+	private String[] dependencies;
+
+	// arrayLength is 0 unless the declaration is an array with a length,
+	// and -1 if that length is not an int; params is null unless it is a
+	// function
+	public Declaration(String name, Type type, Storage storage, int slot, int arrayLength, Type[] params) {
+		this.name = name;
+		this.type = type;
+		this.storage = storage;
+		this.slot = slot;
+		this.arrayLength = arrayLength;
+		this.params = params;
+		this.dependencies = null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	// -1 for a global or a function
+	public int getSlot() {
+		return slot;
+	}
+
+	public int getArrayLength() {
+		return arrayLength;
+	}
+
+	public boolean isArray() {
+		return type == Type.INT_ARRAY || type == Type.STRING_ARRAY;
+	}
+
+	// the frame slots a local takes
+	public int getSize() {
+		return isArray() ? arrayLength : 1;
+	}
+
+	public int getParamCount() {
+		return params.length;
+	}
+
+	public Type getParamType(int i) {
+		return params[i];
+	}
+
+	// the globals a function's body refers to, each once, or null if the
+	// body has not been checked
+	public String[] getDependencies() {
+		return dependencies;
+	}
+
+	public void setDependencies(String[] dependencies) {
+		this.dependencies = dependencies;
+	}
+
+	// whether a reference checks against this declaration as it does against
+	// other; an array's length does not matter
+	public boolean hasSameSignature(Declaration other) {
+		return name.equals(other.name) && type == other.type && storage == other.storage && Arrays.equals(params, other.params);
+	}
+}
@@ -0,0 +1,63 @@
+/* The globals each function of a type checked tree depends on: the
+ * variables and functions its body refers to, which the type checker
+ * records in the function's Declaration as it checks it. Type checking a
+ * function looks at nothing else outside it, so a function unchanged by an
+ * edit checks as before as long as each global it depends on is still
+ * declared before it the same way (see BPLTypeChecker's constructor taking
+ * a DependencyGraph).
+ *
+ * The graph is a snapshot of the tree's declarations when it is made, so
+ * one made before BPLParser.reparse() edits a tree in place still describes
+ * the tree as it was checked.
+*/
+
+import java.util.HashMap;
+import java.util.List;
+
+public class DependencyGraph {
+	private TreeNode[] declarations;
+	private Declaration[] descriptors;
+	// by name, the index of the first declaration of each global
+	private HashMap<String, Integer> globals;
+
+	public DependencyGraph(TreeNode checkedRoot) {
+		List<TreeNode> decs = checkedRoot.getChild(0).getChildren();
+		this.declarations = new TreeNode[decs.size()];
+		this.descriptors = new Declaration[decs.size()];
+		this.globals = new HashMap<String, Integer>();
+		for (int i = 0; i < declarations.length; i++) {
+			declarations[i] = decs.get(i).getChild(0);
+			descriptors[i] = declarations[i].getDeclaration();
+			String name = declarations[i].getChild(1).getValue();
+			if (!globals.containsKey(name)) {
+				globals.put(name, i);
+			}
+		}
+	}
+
+	public int getDeclarationCount() {
+		return declarations.length;
+	}
+
+	// the VAR_DEC, POINTER_VAR_DEC, ARRAY_VAR_DEC or FUN_DEC of declaration i
+	public TreeNode getDeclaration(int i) {
+		return declarations[i];
+	}
+
+	// what the checker made of declaration i, null if it was not checked
+	public Declaration getDescriptor(int i) {
+		return descriptors[i];
+	}
+
+	// the index of the global declaration of name, -1 if there is none
+	public int indexOf(String name) {
+		Integer index = globals.get(name);
+		return index == null ? -1 : index;
+	}
+
+	// the names of the globals function i refers to, each once, or null if
+	// it is not a function whose body was checked
+	public String[] getDependencies(int i) {
+		return descriptors[i] == null ? null : descriptors[i].getDependencies();
+	}
+}
@@ -0,0 +1,207 @@
+/* Writes the assembly BPLCodeGenerator generates. Lines are appended to a
+ * StringBuilder that is reused for the whole output and handed to the sink
+ * whenever it holds CHUNK characters, so the sink sees a few large writes
+ * instead of one formatted write per instruction. The sink is a Writer, or
+ * a channel such as a FileChannel, which gets the text encoded into a
+ * reused ByteBuffer. Nothing reaches the sink before it is full or flush()
+ * is called.
+ *
+ * Instructions are laid out as the code generator's printf formats did,
+ * "\t %4s %4s, %4s %10s #%s%n" and the like: an opcode and its operands
+ * are padded on the left to 4 characters and the comment follows 10 spaces
+ * and a '#'. Without comments, an instruction line ends after its last
+ * operand.
+*/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+public class Emitter {
+	private static final int CHUNK = 1 << 16;
+	private static final String NEWLINE = System.lineSeparator();
+	// what %10s makes of "", and the space before it
+	private static final String GAP = "           ";
+	private static final String PADDING = "    ";
+
+	private StringBuilder buffer;
+	private char[] chars;
+	private boolean comments;
+	private Writer writer;
+	private WritableByteChannel channel;
+	private CharsetEncoder encoder;
+	private ByteBuffer bytes;
+
+	public Emitter(Writer out) {
+		this(out, true);
+	}
+
+	public Emitter(Writer out, boolean comments) {
+		this.buffer = new StringBuilder(CHUNK + 256);
+		this.chars = new char[CHUNK + 256];
+		this.comments = comments;
+		this.writer = out;
+		this.channel = null;
+		this.encoder = null;
+		this.bytes = null;
+	}
+
+	// unencodable characters are replaced, as a Writer of the same charset
+	// would
+	public Emitter(WritableByteChannel out, Charset charset, boolean comments) {
+		this.buffer = new StringBuilder(CHUNK + 256);
+		this.chars = new char[CHUNK + 256];
+		this.comments = comments;
+		this.writer = null;
+		this.channel = out;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		// encoders work on a heap buffer's array in bulk but on a direct
+		// buffer one character at a time; the channel copies the bytes out
+		this.bytes = ByteBuffer.allocate(CHUNK);
+	}
+
+	// text as it is, then a line separator
+	public void line(String text) {
+		buffer.append(text).append(NEWLINE);
+		endLine();
+	}
+
+	public void label(String label) {
+		buffer.append(label).append(':').append(NEWLINE);
+		endLine();
+	}
+
+	public void instruction(String opcode, String comment) {
+		buffer.append("\t ");
+		pad(opcode);
+		comment(comment);
+	}
+
+	public void instruction(String opcode, String operand, String comment) {
+		buffer.append("\t ");
+		pad(opcode);
+		buffer.append(' ');
+		pad(operand);
+		comment(comment);
+	}
+
+	public void instruction(String opcode, String source, String destination, String comment) {
+		buffer.append("\t ");
+		pad(opcode);
+		buffer.append(' ');
+		pad(source);
+		buffer.append(", ");
+		pad(destination);
+		comment(comment);
+	}
+
+	public void call(String function) {
+		buffer.append("\t call ").append(function);
+		if (comments) {
+			buffer.append(GAP);
+		}
+		buffer.append(NEWLINE);
+		endLine();
+	}
+
+	// instruction as the methods above write it; a call's operand is the
+	// function
+	public void emit(Instruction instruction) {
+		if (instruction.isLabel()) {
+			label(instruction.getLabel());
+		} else if (instruction.isCall()) {
+			call(instruction.getOperand(0));
+		} else if (instruction.getOperandCount() == 0) {
+			instruction(instruction.getOpcode(), instruction.getComment());
+		} else if (instruction.getOperandCount() == 1) {
+			instruction(instruction.getOpcode(), instruction.getOperand(0), instruction.getComment());
+		} else {
+			instruction(instruction.getOpcode(), instruction.getOperand(0), instruction.getOperand(1), instruction.getComment());
+		}
+	}
+
+	// hands everything appended so far to the sink and flushes a Writer
+	public void flush() {
+		write();
+		if (writer != null) {
+			try {
+				writer.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// s padded on the left to 4 characters, as %4s
+	private void pad(String s) {
+		if (s.length() < 4) {
+			buffer.append(PADDING, 0, 4 - s.length());
+		}
+		buffer.append(s);
+	}
+
+	private void comment(String comment) {
+		if (comments) {
+			buffer.append(GAP).append(" #").append(comment);
+		}
+		buffer.append(NEWLINE);
+		endLine();
+	}
+
+	// writes a full buffer; lines are never split, so neither is a
+	// surrogate pair
+	private void endLine() {
+		if (buffer.length() >= CHUNK) {
+			write();
+		}
+	}
+
+	private void write() {
+		int length = buffer.length();
+		if (length == 0) {
+			return;
+		}
+		if (chars.length < length) {
+			chars = new char[length];
+		}
+		buffer.getChars(0, length, chars, 0);
+		try {
+			if (writer != null) {
+				writer.write(chars, 0, length);
+			} else {
+				encode(CharBuffer.wrap(chars, 0, length));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.setLength(0);
+	}
+
+	private void encode(CharBuffer in) throws IOException {
+		encoder.reset();
+		CoderResult result;
+		do {
+			result = encoder.encode(in, bytes, true);
+			drain();
+		} while (result.isOverflow());
+		do {
+			result = encoder.flush(bytes);
+			drain();
+		} while (result.isOverflow());
+	}
+
+	private void drain() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+}
@@ -0,0 +1,91 @@
+/* One line of the code BPLCodeGenerator generates for a function: a label,
+ * or an opcode with its operands, in AT&T order (source first), and a
+ * comment. BPLCodeGenerator collects a function's instructions before any
+ * of them is written so that a PeepholeOptimizer can rewrite them; see
+ * Emitter.emit().
+*/
+
+public class Instruction {
+	private String label;
+	private String opcode;
+	private String[] operands;
+	private String comment;
+
+	// the label line "label:"
+	public Instruction(String label) {
+		this.label = label;
+		this.opcode = null;
+		this.operands = new String[0];
+		this.comment = null;
+	}
+
+	public Instruction(String opcode, String comment) {
+		this(opcode, new String[0], comment);
+	}
+
+	public Instruction(String opcode, String operand, String comment) {
+		this(opcode, new String[] {operand}, comment);
+	}
+
+	public Instruction(String opcode, String source, String destination, String comment) {
+		this(opcode, new String[] {source, destination}, comment);
+	}
+
+	private Instruction(String opcode, String[] operands, String comment) {
+		this.label = null;
+		this.opcode = opcode;
+		this.operands = operands;
+		this.comment = comment;
+	}
+
+	public boolean isLabel() {
+		return label != null;
+	}
+
+	// null unless this is a label
+	public String getLabel() {
+		return label;
+	}
+
+	// null for a label
+	public String getOpcode() {
+		return opcode;
+	}
+
+	public int getOperandCount() {
+		return operands.length;
+	}
+
+	public String getOperand(int i) {
+		return operands[i];
+	}
+
+	public String getComment() {
+		return comment;
+	}
+
+	public boolean is(String opcode) {
+		return opcode.equals(this.opcode);
+	}
+
+	// a jump, conditional or not, whose target is its operand
+	public boolean isJump() {
+		return opcode != null && opcode.charAt(0) == 'j';
+	}
+
+	public boolean isCall() {
+		return is("call");
+	}
+
+	@Override
+	public String toString() {
+		if (isLabel()) {
+			return label + ":";
+		}
+		StringBuilder text = new StringBuilder(opcode);
+		for (int i = 0; i < operands.length; i++) {
+			text.append(i == 0 ? " " : ", ").append(operands[i]);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,294 @@
+/* Program generates a BPL program whose main function has the given number
+ * of statements, then times scanning and parsing it, type checking it, and
+ * generating its assembly, printing the best time for each, times loading
+ * its checked tree from a BPLTreeCache, and measures the heap its parse tree
+ * takes per source line. It compares the time and memory allocated to
+ * validate it with BPLValidator against compiling it. It then splits the same number
+ * of statements over functions of 100 statements each and times parse()
+ * against parseParallel() and runTypeChecker() against
+ * runTypeCheckerParallel() on that program, and rescan() and reparse() after
+ * a statement is added to the middle function against scanning and parsing
+ * the whole program again, and checking the reparsed program against the
+ * DependencyGraph of the checked one against checking it all again. Last,
+ * it compiles and validates expressions nested depth levels deep in
+ * parentheses, unary minuses, calls and array indexes.
+ *
+ * Usage: java ParserBenchmark [statements] [runs] [depth]
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+public class ParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int statements = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int depth = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		File source = generateSource(statements);
+		System.out.println("Compiling a function with " + statements + " statements (" + source.length() + " bytes), best of " + runs + " runs");
+		long parse = Long.MAX_VALUE;
+		long check = Long.MAX_VALUE;
+		long generate = Long.MAX_VALUE;
+		long size = 0;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(source.getPath()), false);
+			long parsed = System.nanoTime();
+			StringWriter assembly = new StringWriter();
+			BPLCodeGenerator codeGenerator = new BPLCodeGenerator(typeChecker, new Emitter(assembly));
+			long checked = System.nanoTime();
+			codeGenerator.generate();
+			long generated = System.nanoTime();
+			parse = Math.min(parse, parsed - start);
+			check = Math.min(check, checked - parsed);
+			generate = Math.min(generate, generated - checked);
+			size = assembly.getBuffer().length();
+		}
+		System.out.printf("%-20s %10.1f ms%n", "scan and parse", parse / 1e6);
+		System.out.printf("%-20s %10.1f ms%n", "type check", check / 1e6);
+		System.out.printf("%-20s %10.1f ms %10d chars%n", "generate", generate / 1e6, size);
+		System.out.printf("%-20s %10.1f ms%n", "load cached tree", loadCached(source, runs) / 1e6);
+		System.out.printf("%-20s %10.1f bytes/line%n", "parse tree heap", treeBytesPerLine(source));
+
+		long validate = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			new BPLValidator(source.getPath()).validate();
+			validate = Math.min(validate, System.nanoTime() - start);
+		}
+		long allocated = allocatedBytes();
+		new BPLValidator(source.getPath()).validate();
+		long validateBytes = allocatedBytes() - allocated;
+		allocated = allocatedBytes();
+		new BPLCodeGenerator(new BPLTypeChecker(new BPLParser(source.getPath()), false), new Emitter(new StringWriter())).generate();
+		long compileBytes = allocatedBytes() - allocated;
+		System.out.printf("%-20s %10.1f ms %10.1f MB allocated%n", "check only", validate / 1e6, validateBytes / 1e6);
+		System.out.printf("%-20s %10.1f ms %10.1f MB allocated%n", "full pipeline", (parse + check + generate) / 1e6, compileBytes / 1e6);
+
+		File functions = generateFunctions(statements / 100, 100);
+		System.out.println("Parsing " + statements / 100 + " functions (" + functions.length() + " bytes), best of " + runs + " runs");
+		TokenStream tokens = new BPLScanner(functions.getPath()).scan();
+		long sequential = Long.MAX_VALUE;
+		long parallel = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			new BPLParser(tokens).parse();
+			long parsed = System.nanoTime();
+			new BPLParser(tokens).parseParallel();
+			long parsedParallel = System.nanoTime();
+			sequential = Math.min(sequential, parsed - start);
+			parallel = Math.min(parallel, parsedParallel - parsed);
+		}
+		System.out.printf("%-20s %10.1f ms%n", "parse", sequential / 1e6);
+		System.out.printf("%-20s %10.1f ms %10d threads%n", "parallel parse", parallel / 1e6, ForkJoinPool.commonPool().getParallelism());
+
+		sequential = Long.MAX_VALUE;
+		parallel = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(tokens), false);
+			BPLTypeChecker parallelChecker = new BPLTypeChecker(new BPLParser(tokens), false);
+			long start = System.nanoTime();
+			typeChecker.runTypeChecker();
+			long checked = System.nanoTime();
+			parallelChecker.runTypeCheckerParallel();
+			long checkedParallel = System.nanoTime();
+			sequential = Math.min(sequential, checked - start);
+			parallel = Math.min(parallel, checkedParallel - checked);
+		}
+		System.out.printf("%-20s %10.1f ms%n", "type check", sequential / 1e6);
+		System.out.printf("%-20s %10.1f ms %10d threads%n", "parallel type check", parallel / 1e6, ForkJoinPool.commonPool().getParallelism());
+
+		String text = tokens.getText().toString();
+		int offset = text.indexOf(";\n", text.length() / 2) + 1;
+		String inserted = "\n\tx = x + 1;";
+		String edited = text.substring(0, offset) + inserted + text.substring(offset);
+		long full = Long.MAX_VALUE;
+		long incremental = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			TokenStream previous = new BPLScanner(functions.getPath()).scan();
+			TreeNode program = new BPLParser(previous).parse();
+			long start = System.nanoTime();
+			TokenStream edit = BPLScanner.rescan(functions.getPath(), previous, offset, 0, inserted);
+			BPLParser.reparse(program, previous, edit, offset, 0, inserted);
+			long reparsed = System.nanoTime();
+			char[] chars = edited.toCharArray();
+			new BPLParser(new BPLScanner(functions.getPath(), chars, chars.length, new SymbolTable()).scan()).parse();
+			long parsed = System.nanoTime();
+			incremental = Math.min(incremental, reparsed - start);
+			full = Math.min(full, parsed - reparsed);
+		}
+		System.out.printf("%-20s %10.1f ms%n", "parse after edit", full / 1e6);
+		System.out.printf("%-20s %10.1f ms%n", "reparse after edit", incremental / 1e6);
+
+		char[] chars = edited.toCharArray();
+		TokenStream editedTokens = new BPLScanner(functions.getPath(), chars, chars.length, new SymbolTable()).scan();
+		full = Long.MAX_VALUE;
+		incremental = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(editedTokens), false);
+			TokenStream previous = new BPLScanner(functions.getPath()).scan();
+			BPLTypeChecker checked = new BPLTypeChecker(new BPLParser(previous), false);
+			checked.runTypeChecker();
+			DependencyGraph graph = new DependencyGraph(checked.getRoot());
+			TokenStream edit = BPLScanner.rescan(functions.getPath(), previous, offset, 0, inserted);
+			TreeNode program = BPLParser.reparse(checked.getRoot(), previous, edit, offset, 0, inserted);
+			BPLTypeChecker recheck = new BPLTypeChecker(graph, program, null);
+			long start = System.nanoTime();
+			typeChecker.runTypeChecker();
+			long fullyChecked = System.nanoTime();
+			recheck.runTypeChecker();
+			long rechecked = System.nanoTime();
+			full = Math.min(full, fullyChecked - start);
+			incremental = Math.min(incremental, rechecked - fullyChecked);
+		}
+		System.out.printf("%-20s %10.1f ms%n", "check after edit", full / 1e6);
+		System.out.printf("%-20s %10.1f ms%n", "recheck after edit", incremental / 1e6);
+
+		File nested = generateNested(depth);
+		System.out.println("Compiling expressions nested " + depth + " deep (" + nested.length() + " bytes), best of " + runs + " runs");
+		parse = Long.MAX_VALUE;
+		check = Long.MAX_VALUE;
+		generate = Long.MAX_VALUE;
+		validate = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			BPLTypeChecker typeChecker = new BPLTypeChecker(new BPLParser(nested.getPath()), false);
+			long parsed = System.nanoTime();
+			BPLCodeGenerator codeGenerator = new BPLCodeGenerator(typeChecker, new Emitter(new StringWriter()));
+			long checked = System.nanoTime();
+			codeGenerator.generate();
+			long generated = System.nanoTime();
+			new BPLValidator(nested.getPath()).validate();
+			long validated = System.nanoTime();
+			parse = Math.min(parse, parsed - start);
+			check = Math.min(check, checked - parsed);
+			generate = Math.min(generate, generated - checked);
+			validate = Math.min(validate, validated - generated);
+		}
+		System.out.printf("%-20s %10.1f ms%n", "scan and parse", parse / 1e6);
+		System.out.printf("%-20s %10.1f ms%n", "type check", check / 1e6);
+		System.out.printf("%-20s %10.1f ms%n", "generate", generate / 1e6);
+		System.out.printf("%-20s %10.1f ms%n", "check only", validate / 1e6);
+	}
+
+	// bytes allocated by this thread so far
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+
+	// best time for BPLTreeCache.typeChecker() to find source's tree
+	private static long loadCached(File source, int runs) throws Exception {
+		File directory = Files.createTempDirectory("parserbench").toFile();
+		BPLTreeCache cache = new BPLTreeCache(directory);
+		cache.typeChecker(source.getPath());
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			cache.typeChecker(source.getPath());
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		return best;
+	}
+
+	private static double treeBytesPerLine(File source) throws IOException, BPLParserException {
+		long lines = 0;
+		for (byte b : Files.readAllBytes(source.toPath())) {
+			if (b == '\n') {
+				lines++;
+			}
+		}
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long before = runtime.totalMemory() - runtime.freeMemory();
+		TreeNode root = new BPLParser(source.getPath()).parse();
+		System.gc();
+		long after = runtime.totalMemory() - runtime.freeMemory();
+		Reference.reachabilityFence(root);
+		return (after - before) / (double) lines;
+	}
+
+	private static File generateSource(int statements) throws IOException {
+		File source = File.createTempFile("parserbench", ".bpl");
+		source.deleteOnExit();
+		try (FileWriter writer = new FileWriter(source)) {
+			writer.write("int x;\nint a[10];\n\nint f(int n, int m) {\n\treturn n + m;\n}\n\n");
+			writer.write("void main(void) {\n\tint i;\n\tstring s;\n\ti = 0;\n");
+			for (int i = 0; i < statements; i++) {
+				switch (i % 4) {
+				case 0:
+					writer.write("\tx = x + i * " + (i % 97) + ";\n");
+					break;
+				case 1:
+					writer.write("\tif (x > 1000) x = f(x, i) % 1000;\n");
+					break;
+				case 2:
+					writer.write("\ta[i % 10] = x;\n");
+					break;
+				default:
+					writer.write("\ts = \"s" + (i % 13) + "\";\n");
+					break;
+				}
+			}
+			writer.write("\twrite(x);\n\twriteln();\n}\n");
+		}
+		return source;
+	}
+
+	// a program assigning x expressions nested depth deep: in parentheses,
+	// under unary minuses, in calls and in array indexes
+	private static File generateNested(int depth) throws IOException {
+		File source = File.createTempFile("parserbench", ".bpl");
+		source.deleteOnExit();
+		try (FileWriter writer = new FileWriter(source)) {
+			writer.write("int a[10];\n\nint f(int n) {\n\treturn n;\n}\n\n");
+			writer.write("void main(void) {\n\tint x;\n\tx = 1;\n\ta[0] = 0;\n");
+			String[][] nestings = {{"(", "x + 1", ")"}, {"-", "x", ""}, {"f(", "x", ")"}, {"a[", "0", "]"}};
+			for (String[] nesting : nestings) {
+				writer.write("\tx = ");
+				for (int i = 0; i < depth; i++) {
+					writer.write(nesting[0]);
+				}
+				writer.write(nesting[1]);
+				for (int i = 0; i < depth; i++) {
+					writer.write(nesting[2]);
+				}
+				writer.write(";\n");
+			}
+			writer.write("\twrite(x);\n\twriteln();\n}\n");
+		}
+		return source;
+	}
+
+	private static File generateFunctions(int functions, int statements) throws IOException {
+		File source = File.createTempFile("parserbench", ".bpl");
+		source.deleteOnExit();
+		try (FileWriter writer = new FileWriter(source)) {
+			writer.write("int x;\n\n");
+			for (int f = 0; f < functions; f++) {
+				writer.write("int f" + f + "(int n, int a[]) {\n\tint i;\n\ti = 0;\n");
+				for (int i = 0; i < statements; i++) {
+					if (i % 2 == 0) {
+						writer.write("\tx = x + n * " + (i % 97) + ";\n");
+					} else {
+						writer.write("\tif (x > 1000) a[i % 10] = x - 1000;\n");
+					}
+				}
+				writer.write("\treturn x;\n}\n\n");
+			}
+			writer.write("void main(void) {\n\twrite(x);\n}\n");
+		}
+		return source;
+	}
+}
@@ -0,0 +1,317 @@
+/* Removes and fuses redundant instructions in the code BPLCodeGenerator
+ * generates for a function. The code is passed once through the rules, each
+ * instruction appended to the output and the rules applied to its end until
+ * none matches; then the .L labels no jump refers to are dropped, which can
+ * let rules match across where they were, and the passes are repeated until
+ * the code no longer changes. Labels that do not start with .L are functions
+ * and are kept.
+ *
+ * The rules may rely on what the generated code does: a jump's target is
+ * its operand, %rcx is not used, and the flags are only read by the jump
+ * right after the cmpl that set them, never after an add to %rsp.
+ *
+ * The optimizer counts the instructions, labels aside, it was given and
+ * those it returned over all the functions it optimized.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class PeepholeOptimizer {
+	// the most instructions a rule looks past between a push and its pop
+	private static final int MAX_BETWEEN = 4;
+
+	private List<PeepholeRule> rules;
+	private long instructionsBefore;
+	private long instructionsAfter;
+
+	public PeepholeOptimizer() {
+		this(defaultRules());
+	}
+
+	public PeepholeOptimizer(List<PeepholeRule> rules) {
+		this.rules = rules;
+		this.instructionsBefore = 0;
+		this.instructionsAfter = 0;
+	}
+
+	// the rules for the patterns the generator leaves
+	public static List<PeepholeRule> defaultRules() {
+		return Arrays.asList(new JumpToNext(), new SelfMove(), new StoreLoad(), new PushPop(), new DiscardedPush(),
+				new DeadStackAdjustment(), new StackOperand());
+	}
+
+	public List<Instruction> optimize(List<Instruction> code) {
+		instructionsBefore += countInstructions(code);
+		boolean changed = true;
+		while (changed) {
+			ArrayList<Instruction> optimized = new ArrayList<Instruction>(code.size());
+			changed = false;
+			for (Instruction instruction : code) {
+				optimized.add(instruction);
+				while (rewrite(optimized)) {
+					changed = true;
+				}
+			}
+			code = withoutUnusedLabels(optimized);
+			changed |= code.size() < optimized.size();
+		}
+		instructionsAfter += countInstructions(code);
+		return code;
+	}
+
+	public long getInstructionsBefore() {
+		return instructionsBefore;
+	}
+
+	public long getInstructionsAfter() {
+		return instructionsAfter;
+	}
+
+	private boolean rewrite(List<Instruction> code) {
+		for (PeepholeRule rule : rules) {
+			if (rule.apply(code)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private List<Instruction> withoutUnusedLabels(List<Instruction> code) {
+		HashMap<String, Integer> jumps = new HashMap<String, Integer>();
+		for (Instruction instruction : code) {
+			if (instruction.isJump()) {
+				jumps.merge(instruction.getOperand(0), 1, Integer::sum);
+			}
+		}
+		ArrayList<Instruction> used = new ArrayList<Instruction>(code.size());
+		for (Instruction instruction : code) {
+			if (!instruction.isLabel() || !instruction.getLabel().startsWith(".L") || jumps.containsKey(instruction.getLabel())) {
+				used.add(instruction);
+			}
+		}
+		return used;
+	}
+
+	private static long countInstructions(List<Instruction> code) {
+		long count = 0;
+		for (Instruction instruction : code) {
+			if (!instruction.isLabel()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// the instruction back from the end of code, 0 being the last; null if
+	// there is none
+	private static Instruction last(List<Instruction> code, int back) {
+		return back < code.size() ? code.get(code.size() - 1 - back) : null;
+	}
+
+	// removes the last count instructions of code
+	private static void removeLast(List<Instruction> code, int count) {
+		code.subList(code.size() - count, code.size()).clear();
+	}
+
+	private static boolean isRegister(String operand) {
+		return operand.startsWith("%");
+	}
+
+	// a movq or leaq into register from an operand that does not involve
+	// register itself; it sets no flags and writes no memory
+	private static boolean isLoad(Instruction instruction, String register) {
+		return instruction != null && (instruction.is("movq") || instruction.is("leaq")) && instruction.getOperandCount() == 2
+				&& instruction.getOperand(1).equals(register) && !mentions(instruction, register);
+	}
+
+	// whether an operand of instruction names register or its lower half
+	private static boolean mentions(Instruction instruction, String register) {
+		String lower = "%e" + register.substring(2);
+		for (int i = 0; i < instruction.getOperandCount(); i++) {
+			if (instruction.getOperand(i).contains(register) || instruction.getOperand(i).contains(lower)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Whether instruction does the same wherever the top of the stack is and
+	// whatever register holds: it is no label, jump, call, push, pop or
+	// instruction with registers it does not name, writes no memory, and
+	// names neither %rsp nor register.
+	private static boolean isIndependent(Instruction instruction, String register) {
+		if (instruction == null || instruction.isLabel() || instruction.isJump() || instruction.isCall() || instruction.is("push")
+				|| instruction.is("pop") || instruction.is("ret") || instruction.is("cltq") || instruction.is("cqto") || instruction.is("idivl")) {
+			return false;
+		}
+		int count = instruction.getOperandCount();
+		if (count == 2 && instruction.getOperand(1).contains("(")) {
+			return false;
+		}
+		return !mentions(instruction, "%rsp") && !mentions(instruction, register);
+	}
+
+	// jmp or jcc L, then L: possibly among other labels; the jump goes
+	// where the code would anyway
+	private static class JumpToNext implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			int back = 0;
+			while (last(code, back) != null && last(code, back).isLabel()) {
+				back++;
+			}
+			Instruction jump = last(code, back);
+			if (back == 0 || jump == null || !jump.isJump()) {
+				return false;
+			}
+			for (int i = 0; i < back; i++) {
+				if (last(code, i).getLabel().equals(jump.getOperand(0))) {
+					code.remove(code.size() - 1 - back);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	// movq r, r; and movl %eax, %eax before cltq, which sign-extends %eax
+	// over the upper half movl would have cleared
+	private static class SelfMove implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			Instruction move = last(code, 0);
+			if (move.is("movq") && move.getOperandCount() == 2 && isRegister(move.getOperand(0)) && move.getOperand(0).equals(move.getOperand(1))) {
+				removeLast(code, 1);
+				return true;
+			}
+			Instruction previous = last(code, 1);
+			if (move.is("cltq") && previous != null && previous.is("movl") && previous.getOperandCount() == 2
+					&& previous.getOperand(0).equals("%eax") && previous.getOperand(1).equals("%eax")) {
+				code.remove(code.size() - 2);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	// mov %rax, m; movq m, %rax loads what was just stored
+	private static class StoreLoad implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			Instruction load = last(code, 0);
+			Instruction store = last(code, 1);
+			if (!load.is("movq") || load.getOperandCount() != 2 || !load.getOperand(1).equals("%rax") || store == null
+					|| !(store.is("mov") || store.is("movq")) || store.getOperandCount() != 2 || !store.getOperand(0).equals("%rax")
+					|| !store.getOperand(1).equals(load.getOperand(0))) {
+				return false;
+			}
+			removeLast(code, 1);
+			return true;
+		}
+	}
+
+	// push a; up to MAX_BETWEEN instructions independent of b; pop b, from
+	// one register to another, is movq a, b; then those instructions, and
+	// nothing but them when a is b
+	private static class PushPop implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			Instruction pop = last(code, 0);
+			if (!pop.is("pop") || !isRegister(pop.getOperand(0))) {
+				return false;
+			}
+			String to = pop.getOperand(0);
+			int back = 1;
+			while (back <= MAX_BETWEEN && isIndependent(last(code, back), to)) {
+				back++;
+			}
+			Instruction push = last(code, back);
+			if (push == null || !push.is("push") || !isRegister(push.getOperand(0))) {
+				return false;
+			}
+			code.remove(code.size() - 1);
+			code.remove(code.size() - back);
+			if (!push.getOperand(0).equals(to)) {
+				code.add(code.size() - (back - 1), new Instruction("movq", push.getOperand(0), to, pop.getComment()));
+			}
+			return true;
+		}
+	}
+
+	// push a; addq $8, %rsp leaves the stack as it was
+	private static class DiscardedPush implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			Instruction pop = last(code, 0);
+			Instruction push = last(code, 1);
+			if (!isStackPop(pop) || push == null || !push.is("push")) {
+				return false;
+			}
+			removeLast(code, 2);
+			return true;
+		}
+	}
+
+	// add $n, %rsp; movq %rbx, %rsp moves the stack pointer twice
+	private static class DeadStackAdjustment implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			Instruction reset = last(code, 0);
+			Instruction add = last(code, 1);
+			if (!reset.is("movq") || reset.getOperandCount() != 2 || !reset.getOperand(0).equals("%rbx") || !reset.getOperand(1).equals("%rsp")
+					|| add == null || !add.is("add") || add.getOperandCount() != 2 || !add.getOperand(1).equals("%rsp")) {
+				return false;
+			}
+			code.remove(code.size() - 2);
+			return true;
+		}
+	}
+
+	// For the left operand of + - or *, push %rax; up to MAX_BETWEEN
+	// instructions independent of %rcx that compute the right operand;
+	// op 0(%rsp), %eax; addq $8, %rsp. The left operand is kept in %rcx
+	// instead of on the stack: movq %rax, %rcx; those instructions; op %ecx,
+	// %eax. When it is a constant put in %rax just before, which the first
+	// of them overwrites without reading, it is used as it is instead.
+	private static class StackOperand implements PeepholeRule {
+		@Override
+		public boolean apply(List<Instruction> code) {
+			Instruction pop = last(code, 0);
+			Instruction operation = last(code, 1);
+			if (!isStackPop(pop) || operation == null || !(operation.is("addl") || operation.is("subl") || operation.is("imul"))
+					|| operation.getOperandCount() != 2 || !operation.getOperand(0).equals("0(%rsp)") || !operation.getOperand(1).equals("%eax")) {
+				return false;
+			}
+			int back = 2;
+			while (back < 2 + MAX_BETWEEN && isIndependent(last(code, back), "%rcx")) {
+				back++;
+			}
+			Instruction push = last(code, back);
+			if (back == 2 || push == null || !push.is("push") || !push.getOperand(0).equals("%rax")) {
+				return false;
+			}
+			List<Instruction> between = new ArrayList<Instruction>(code.subList(code.size() - back, code.size() - 2));
+			Instruction constant = last(code, back + 1);
+			removeLast(code, back + 1);
+			if (constant != null && constant.is("movq") && constant.getOperandCount() == 2 && constant.getOperand(0).startsWith("$")
+					&& constant.getOperand(1).equals("%rax") && isLoad(between.get(0), "%rax")) {
+				code.remove(code.size() - 1);
+				code.addAll(between);
+				code.add(new Instruction(operation.getOpcode(), constant.getOperand(0), "%eax", operation.getComment()));
+			} else {
+				code.add(new Instruction("movq", "%rax", "%rcx", push.getComment()));
+				code.addAll(between);
+				code.add(new Instruction(operation.getOpcode(), "%ecx", "%eax", operation.getComment()));
+			}
+			return true;
+		}
+	}
+
+	private static boolean isStackPop(Instruction instruction) {
+		return instruction.is("addq") && instruction.getOperandCount() == 2 && instruction.getOperand(0).equals("$8")
+				&& instruction.getOperand(1).equals("%rsp");
+	}
+}
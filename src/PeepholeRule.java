@@ -0,0 +1,15 @@
+/* A rewrite PeepholeOptimizer tries on the end of the code it has
+ * optimized so far, each time it appends an instruction and again after
+ * every rewrite. A rule only ever looks back from the end, so it sees
+ * instructions as they will run up to the last one appended, and each
+ * rewrite must leave fewer instructions than it found, so that optimizing
+ * ends.
+*/
+
+import java.util.List;
+
+public interface PeepholeRule {
+	// Rewrites the last instructions of code if they match, and returns
+	// whether it did.
+	boolean apply(List<Instruction> code);
+}
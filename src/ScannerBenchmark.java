@@ -0,0 +1,130 @@
+/* Program takes the name of a BPL file, repeats its contents into a generated
+ * source of at least the given number of megabytes, and scans that source
+ * into a TokenStream, sequentially and with scanParallel(), and into a list of Token objects with the whole-file
+ * buffer scanner and the line-buffered scanner, printing tokens/second for
+ * each. It times rescan() after one-character edits in the middle of
+ * sources of 1, 8 and 32 megabytes, whose cost should not depend on the
+ * size. It then scans a source made of a comment spanning a million lines
+ * followed by a million blank lines in both scanner modes.
+ *
+ * Usage: java ScannerBenchmark <file.bpl> [megabytes] [runs]
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+public class ScannerBenchmark {
+
+	public static void main(String[] args) throws IOException, BPLScannerException {
+		String inputFileName = args[0];
+		int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		File source = generateSource(inputFileName, megabytes);
+		System.out.println("Scanning " + source.length() + " bytes, best of " + runs + " runs");
+		report("token stream", source.getPath(), false, true, runs);
+		reportParallel(source.getPath(), runs);
+		report("whole-file buffer", source.getPath(), false, false, runs);
+		report("line-buffered", source.getPath(), true, false, runs);
+		System.out.println("Rescanning after one-character edits to 1, 8 and 32 megabyte sources");
+		reportRescan(inputFileName, new int[] {1, 8, 32}, 10000);
+
+		File stress = generateStress(inputFileName, 1000000);
+		System.out.println("Scanning " + stress.length() + " bytes of comments and blank lines, best of " + runs + " runs");
+		report("whole-file buffer", stress.getPath(), false, false, runs);
+		report("line-buffered", stress.getPath(), true, false, runs);
+	}
+
+	private static void report(String name, String fileName, boolean lineBuffered, boolean stream, int runs) throws BPLScannerException {
+		long best = Long.MAX_VALUE;
+		long tokens = 0;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			tokens = stream ? new BPLScanner(fileName).scan().size() : scan(fileName, lineBuffered);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%-20s %10d tokens %10.1f ms %14.0f tokens/s%n", name, tokens, best / 1e6, tokens / (best / 1e9));
+	}
+
+	private static void reportParallel(String fileName, int runs) {
+		long best = Long.MAX_VALUE;
+		long tokens = 0;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			tokens = new BPLScanner(fileName).scanParallel().size();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%-20s %10d tokens %10.1f ms %14.0f tokens/s%n", "parallel stream", tokens, best / 1e6, tokens / (best / 1e9));
+	}
+
+	// Times rescan() per edit on sources of megabytes, each edit typing a
+	// space in the middle of the source or deleting it again, on the tokens
+	// the edit before returned. The first edit, which makes room in the
+	// source text, is not timed.
+	private static void reportRescan(String inputFileName, int[] megabytes, int edits) throws IOException {
+		for (int size : megabytes) {
+			File source = generateSource(inputFileName, size);
+			TokenStream tokens = new BPLScanner(source.getPath()).scan();
+			int offset = tokens.getText().length() / 2;
+			tokens = BPLScanner.rescan(source.getPath(), tokens, offset, 0, " ");
+			long start = System.nanoTime();
+			for (int i = 0; i < edits; i++) {
+				if (i % 2 == 0) {
+					tokens = BPLScanner.rescan(source.getPath(), tokens, offset, 1, "");
+				} else {
+					tokens = BPLScanner.rescan(source.getPath(), tokens, offset, 0, " ");
+				}
+			}
+			long time = System.nanoTime() - start;
+			System.out.printf("%-20s %10d tokens %10.1f us per edit%n", "rescan after edit", tokens.size(), time / 1e3 / edits);
+			source.delete();
+		}
+	}
+
+	private static long scan(String fileName, boolean lineBuffered) throws BPLScannerException {
+		BPLScanner scanner = new BPLScanner(fileName, lineBuffered);
+		ArrayList<Token> tokens = new ArrayList<Token>();
+		while (scanner.hasNextToken()) {
+			scanner.getNextToken();
+			tokens.add(scanner.nextToken);
+		}
+		return tokens.size();
+	}
+
+	private static File generateSource(String inputFileName, int megabytes) throws IOException {
+		String program = new String(Files.readAllBytes(Paths.get(inputFileName)));
+		File source = File.createTempFile("bench", ".bpl");
+		source.deleteOnExit();
+		long size = 0;
+		try (FileWriter writer = new FileWriter(source)) {
+			while (size < megabytes * 1024L * 1024L) {
+				writer.write(program);
+				writer.write('\n');
+				size += program.length() + 1;
+			}
+		}
+		return source;
+	}
+
+	private static File generateStress(String inputFileName, int lines) throws IOException {
+		String program = new String(Files.readAllBytes(Paths.get(inputFileName)));
+		File source = File.createTempFile("stress", ".bpl");
+		source.deleteOnExit();
+		try (FileWriter writer = new FileWriter(source)) {
+			writer.write("/*\n");
+			for (int i = 0; i < lines; i++) {
+				writer.write(" * comment line\n");
+			}
+			writer.write("*/\n");
+			for (int i = 0; i < lines; i++) {
+				writer.write('\n');
+			}
+			writer.write(program);
+		}
+		return source;
+	}
+}
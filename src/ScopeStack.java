@@ -0,0 +1,75 @@
+/* Declarations of nested scopes, looked up by symbol ID. The innermost
+ * declaration of each symbol is kept in an array indexed by its symbol ID,
+ * so a lookup costs the same however many names are in scope. Each
+ * declaration is logged with the one it hides, and pop() puts back what
+ * was hidden in the scope it leaves. A declaration therefore ends with its
+ * scope, and one in an inner scope hides the same name further out until
+ * then. A name declared twice in one scope means its later declaration.
+*/
+
+import java.util.Arrays;
+
+public class ScopeStack<T> {
+	private Object[] declarations;
+	private int[] loggedSymbols;
+	private Object[] hidden;
+	private int logSize;
+	private int[] scopeStarts;
+	private int depth;
+
+	// symbols is the number of symbol IDs expected; more are allowed
+	public ScopeStack(int symbols) {
+		this.declarations = new Object[Math.max(symbols, 16)];
+		this.loggedSymbols = new int[16];
+		this.hidden = new Object[16];
+		this.logSize = 0;
+		this.scopeStarts = new int[8];
+		this.depth = 0;
+	}
+
+	public void push() {
+		if (depth == scopeStarts.length) {
+			scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+		}
+		scopeStarts[depth++] = logSize;
+	}
+
+	// ends the innermost scope and every declaration made in it
+	public void pop() {
+		int start = scopeStarts[--depth];
+		while (logSize > start) {
+			logSize--;
+			declarations[loggedSymbols[logSize]] = hidden[logSize];
+			hidden[logSize] = null;
+		}
+	}
+
+	// declares symbol in the innermost scope
+	public void declare(int symbol, T declaration) {
+		if (depth == 0) {
+			throw new IllegalStateException("no scope to declare in");
+		}
+		if (symbol >= declarations.length) {
+			declarations = Arrays.copyOf(declarations, Math.max(symbol + 1, declarations.length * 2));
+		}
+		if (logSize == loggedSymbols.length) {
+			loggedSymbols = Arrays.copyOf(loggedSymbols, logSize * 2);
+			hidden = Arrays.copyOf(hidden, logSize * 2);
+		}
+		loggedSymbols[logSize] = symbol;
+		hidden[logSize] = declarations[symbol];
+		logSize++;
+		declarations[symbol] = declaration;
+	}
+
+	// the innermost declaration of symbol in scope, null if there is none
+	@SuppressWarnings("unchecked")
+	public T lookup(int symbol) {
+		return symbol < declarations.length ? (T) declarations[symbol] : null;
+	}
+
+	// the number of scopes pushed and not yet popped
+	public int getDepth() {
+		return depth;
+	}
+}
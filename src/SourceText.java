@@ -0,0 +1,96 @@
+/* The text of a BPL source that BPLScanner.rescan() edits in place: a gap
+ * buffer, whose text before the gap is at the start of one char array and
+ * the text after it at the end. An edit moves the gap to where it is,
+ * copying only the chars in between, and fills or widens it there, so a
+ * run of edits close to each other costs what they change and not the size
+ * of the text. Offsets are into the text, the gap left out.
+ *
+ * The array only grows when an insertion does not fit in the gap, and then
+ * to twice its size.
+*/
+
+public class SourceText {
+	private char[] chars;
+	private int gapStart;
+	private int gapEnd;
+
+	// the text chars[0, end), with the chars after it as the gap; chars is
+	// used as it is and edited by replace()
+	public SourceText(char[] chars, int end) {
+		this.chars = chars;
+		this.gapStart = end;
+		this.gapEnd = chars.length;
+	}
+
+	public int length() {
+		return chars.length - (gapEnd - gapStart);
+	}
+
+	public char charAt(int offset) {
+		return offset < gapStart ? chars[offset] : chars[offset + gapEnd - gapStart];
+	}
+
+	public String substring(int start, int end) {
+		if (end <= gapStart) {
+			return new String(chars, start, end - start);
+		} else if (start >= gapStart) {
+			return new String(chars, start + gapEnd - gapStart, end - start);
+		}
+		return new StringBuilder(end - start).append(chars, start, gapStart - start).append(chars, gapEnd, end - gapStart).toString();
+	}
+
+	// replaces the removed chars at offset with inserted
+	public void replace(int offset, int removed, String inserted) {
+		moveGap(offset);
+		gapEnd += removed;
+		if (inserted.length() > gapEnd - gapStart) {
+			grow(inserted.length());
+		}
+		inserted.getChars(0, inserted.length(), chars, gapStart);
+		gapStart += inserted.length();
+	}
+
+	// Moves the gap to offset, so that the text from offset on is
+	// getChars()[getGapEnd(), getChars().length).
+	public void moveGap(int offset) {
+		if (offset < gapStart) {
+			int count = gapStart - offset;
+			System.arraycopy(chars, offset, chars, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (offset > gapStart) {
+			int count = offset - gapStart;
+			System.arraycopy(chars, gapEnd, chars, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	// the array holding the text, which the next edit may replace
+	public char[] getChars() {
+		return chars;
+	}
+
+	public int getGapEnd() {
+		return gapEnd;
+	}
+
+	// the index in getChars() of offset, where the gap starts or after it
+	public int getIndex(int offset) {
+		return offset < gapStart ? offset : offset + gapEnd - gapStart;
+	}
+
+	private void grow(int needed) {
+		int after = chars.length - gapEnd;
+		char[] grown = new char[Math.max(chars.length * 2, length() + needed + 16)];
+		System.arraycopy(chars, 0, grown, 0, gapStart);
+		System.arraycopy(chars, gapEnd, grown, grown.length - after, after);
+		gapEnd = grown.length - after;
+		chars = grown;
+	}
+
+	@Override
+	public String toString() {
+		return substring(0, length());
+	}
+}
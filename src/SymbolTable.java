@@ -0,0 +1,115 @@
+/* Compiler-wide table of interned identifiers. The scanner interns every
+ * identifier it finds, so each distinct name is stored once and is known
+ * everywhere by a dense int symbol ID (0, 1, 2, ... in order of first
+ * appearance). Later stages can then index arrays by symbol ID instead of
+ * hashing and comparing Strings.
+*/
+
+import java.util.Arrays;
+
+public class SymbolTable {
+	private static final int EMPTY = -1;
+
+	private String[] names;
+	private int[] hashes;
+	private int[] slots;
+	private int size;
+
+	public SymbolTable() {
+		this.names = new String[64];
+		this.hashes = new int[64];
+		this.slots = new int[128];
+		this.size = 0;
+		Arrays.fill(slots, EMPTY);
+	}
+
+	// returns the symbol ID of the identifier in chars[start, start+length)
+	public int intern(char[] chars, int start, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + chars[start + i];
+		}
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (slots[slot] != EMPTY) {
+			int symbol = slots[slot];
+			if (hashes[symbol] == hash && matches(names[symbol], chars, start, length)) {
+				return symbol;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return add(new String(chars, start, length), hash, slot);
+	}
+
+	public int intern(String name) {
+		char[] chars = name.toCharArray();
+		return intern(chars, 0, chars.length);
+	}
+
+	// the symbol ID of name, or -1 if it has not been interned
+	public int lookup(String name) {
+		int hash = name.hashCode();
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (slots[slot] != EMPTY) {
+			int symbol = slots[slot];
+			if (hashes[symbol] == hash && names[symbol].equals(name)) {
+				return symbol;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return EMPTY;
+	}
+
+	public String getName(int symbol) {
+		return names[symbol];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int add(String name, int hash, int slot) {
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		int symbol = size++;
+		names[symbol] = name;
+		hashes[symbol] = hash;
+		slots[slot] = symbol;
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return symbol;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		Arrays.fill(slots, EMPTY);
+		int mask = slots.length - 1;
+		for (int symbol = 0; symbol < size; symbol++) {
+			int slot = mix(hashes[symbol]) & mask;
+			while (slots[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = symbol;
+		}
+	}
+
+	private static int mix(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean matches(String name, char[] chars, int start, int length) {
+		if (name.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != chars[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
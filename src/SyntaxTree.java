@@ -0,0 +1,702 @@
+/* Arena of parse tree nodes built by BPLParser. Node n is described by its
+ * TreeNodeKind, line, first child, last child and next sibling, each kept in
+ * a primitive array indexed by n, so a node costs a few dozen bytes and no
+ * object of its own. Children are linked in source order from the first
+ * child through the next siblings; -1 ends the chain.
+ *
+ * The value of a node is one int read according to its kind: an ID holds
+ * its symbol ID, a NUM its decoded value, and any other node the index of
+ * its text in a table of distinct strings, or -1 for none. A NUM whose text
+ * is not the decimal form of an int (leading zeros, or too large) keeps its
+ * text instead, as -1 - index. The type checker's type, declaration, depth
+ * and position of each node are kept in arrays alongside, as is the
+ * Declaration descriptor of each declaration and of each ID linked to one.
+ *
+ * TreeNode is a view of one node, made on demand by getNode(n). Trees
+ * parsed separately can be joined with append(), which renumbers the nodes
+ * appended, or with reserve() and copyAt() to copy several at once. Nodes
+ * no longer in the tree stay in the arrays until compact() copies the
+ * others into a new tree.
+ *
+ * writeTo() stores a tree, with its symbol table and strings, as flat arrays
+ * in a ByteBuffer, and readFrom() rebuilds it with one bulk copy per array;
+ * see BPLTreeCache.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+public class SyntaxTree {
+	private static final TreeNodeKind[] KINDS = TreeNodeKind.values();
+	private static final Type[] TYPES = Type.values();
+	private static final Declaration.Storage[] STORAGES = Declaration.Storage.values();
+	private static final int MAGIC = 0x42504c54; // "BPLT"
+	private static final int FORMAT = 3;
+
+	private SymbolTable symbolTable;
+	private byte[] kinds;
+	private int[] lines;
+	private int[] firstChildren;
+	private int[] lastChildren;
+	private int[] nextSiblings;
+	private int[] values;
+	private byte[] types;
+	private int[] decs;
+	private int[] depths;
+	private int[] positions;
+	private Declaration[] declarations;
+	private int size;
+	private ArrayList<String> strings;
+	private HashMap<String, Integer> stringIndex;
+	private int[] declarationNodes;
+	private int[] declarationTokens;
+	private int declarationCount;
+	private int released;
+
+	public SyntaxTree(SymbolTable symbolTable, int capacity) {
+		this.symbolTable = symbolTable;
+		this.kinds = new byte[capacity];
+		this.lines = new int[capacity];
+		this.firstChildren = new int[capacity];
+		this.lastChildren = new int[capacity];
+		this.nextSiblings = new int[capacity];
+		this.values = new int[capacity];
+		this.types = new byte[capacity];
+		this.decs = new int[capacity];
+		this.depths = new int[capacity];
+		this.positions = new int[capacity];
+		this.declarations = new Declaration[capacity];
+		this.size = 0;
+		this.strings = new ArrayList<String>();
+		this.stringIndex = new HashMap<String, Integer>();
+		this.declarationNodes = new int[16];
+		this.declarationTokens = new int[16];
+		this.declarationCount = 0;
+		this.released = 0;
+	}
+
+	// adds a childless node whose value is the string value (which may be
+	// null) and returns its index
+	public int add(TreeNodeKind kind, int line, String value) {
+		return add(kind, line, value == null ? -1 : stringIndex(value));
+	}
+
+	public int addId(int line, int symbol) {
+		return add(TreeNodeKind.ID, line, symbol);
+	}
+
+	public int addNum(int line, String text) {
+		int value = -1;
+		if (text.length() <= 10 && (text.length() == 1 || text.charAt(0) != '0')) {
+			long number = Long.parseLong(text);
+			if (number <= Integer.MAX_VALUE) {
+				value = (int) number;
+			}
+		}
+		if (value < 0) {
+			value = -1 - stringIndex(text);
+		}
+		return add(TreeNodeKind.NUM, line, value);
+	}
+
+	private int add(TreeNodeKind kind, int line, int value) {
+		if (size == kinds.length) {
+			grow(size + 1);
+		}
+		int node = size++;
+		kinds[node] = (byte) kind.ordinal();
+		lines[node] = line;
+		firstChildren[node] = -1;
+		lastChildren[node] = -1;
+		nextSiblings[node] = -1;
+		values[node] = value;
+		types[node] = -1;
+		decs[node] = -1;
+		depths[node] = -1;
+		positions[node] = -1;
+		declarations[node] = null;
+		return node;
+	}
+
+	public void addChild(int parent, int child) {
+		if (firstChildren[parent] < 0) {
+			firstChildren[parent] = child;
+		} else {
+			nextSiblings[lastChildren[parent]] = child;
+		}
+		lastChildren[parent] = child;
+	}
+
+	// Appends the nodes of other, which must have the same symbol table, and
+	// returns the shift they were appended at: node n of other becomes node
+	// n + shift of this tree.
+	public int append(SyntaxTree other) {
+		int shift = reserve(other.size);
+		copyAt(other, shift, internStrings(other));
+		return shift;
+	}
+
+	// Adds count nodes to be filled in by copyAt() and returns the first.
+	public int reserve(int count) {
+		if (size + count > kinds.length) {
+			grow(size + count);
+		}
+		int first = size;
+		size += count;
+		return first;
+	}
+
+	// Interns the strings of other into this tree's table; string i of other
+	// is string map[i] of this tree.
+	public int[] internStrings(SyntaxTree other) {
+		int[] map = new int[other.strings.size()];
+		for (int i = 0; i < map.length; i++) {
+			map[i] = stringIndex(other.strings.get(i));
+		}
+		return map;
+	}
+
+	// Copies the nodes of other into reserved nodes [shift, shift +
+	// other.size()), with stringMap from internStrings(other). Copies into
+	// disjoint ranges may run at the same time.
+	public void copyAt(SyntaxTree other, int shift, int[] stringMap) {
+		int count = other.size;
+		System.arraycopy(other.kinds, 0, kinds, shift, count);
+		System.arraycopy(other.lines, 0, lines, shift, count);
+		System.arraycopy(other.types, 0, types, shift, count);
+		System.arraycopy(other.depths, 0, depths, shift, count);
+		System.arraycopy(other.positions, 0, positions, shift, count);
+		// descriptors hold no node indices, so both trees may share them
+		System.arraycopy(other.declarations, 0, declarations, shift, count);
+		copyShifted(other.firstChildren, firstChildren, shift, count);
+		copyShifted(other.lastChildren, lastChildren, shift, count);
+		copyShifted(other.nextSiblings, nextSiblings, shift, count);
+		copyShifted(other.decs, decs, shift, count);
+		byte id = (byte) TreeNodeKind.ID.ordinal();
+		byte num = (byte) TreeNodeKind.NUM.ordinal();
+		for (int i = 0; i < count; i++) {
+			int value = other.values[i];
+			byte kind = other.kinds[i];
+			if (kind == num) {
+				value = value >= 0 ? value : -1 - stringMap[-1 - value];
+			} else if (kind != id) {
+				value = value >= 0 ? stringMap[value] : -1;
+			}
+			values[shift + i] = value;
+		}
+	}
+
+	// copies from[0, count) to to[shift, shift+count), moving node indices
+	// (but not -1) by shift
+	private static void copyShifted(int[] from, int[] to, int shift, int count) {
+		for (int i = 0; i < count; i++) {
+			int node = from[i];
+			to[shift + i] = node < 0 ? node : node + shift;
+		}
+	}
+
+	private void grow(int needed) {
+		int capacity = Math.max(Math.max(16, size * 2), needed);
+		kinds = Arrays.copyOf(kinds, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		lastChildren = Arrays.copyOf(lastChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		values = Arrays.copyOf(values, capacity);
+		types = Arrays.copyOf(types, capacity);
+		decs = Arrays.copyOf(decs, capacity);
+		depths = Arrays.copyOf(depths, capacity);
+		positions = Arrays.copyOf(positions, capacity);
+		declarations = Arrays.copyOf(declarations, capacity);
+	}
+
+	// Interns the name of every symbol, after which setting a node's value
+	// to one only reads the string table, and threads may set the values of
+	// different nodes at once.
+	public void internSymbolNames() {
+		for (int symbol = 0; symbol < symbolTable.size(); symbol++) {
+			stringIndex(symbolTable.getName(symbol));
+		}
+	}
+
+	private int stringIndex(String value) {
+		Integer index = stringIndex.get(value);
+		if (index == null) {
+			index = strings.size();
+			strings.add(value);
+			stringIndex.put(value, index);
+		}
+		return index;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public TreeNode getNode(int node) {
+		return new TreeNode(this, node);
+	}
+
+	public TreeNodeKind getKind(int node) {
+		return KINDS[kinds[node]];
+	}
+
+	public int getLine(int node) {
+		return lines[node];
+	}
+
+	public void setLine(int node, int line) {
+		lines[node] = line;
+	}
+
+	public int getFirstChild(int node) {
+		return firstChildren[node];
+	}
+
+	public int getNextSibling(int node) {
+		return nextSiblings[node];
+	}
+
+	// the i-th child of node, found by walking its siblings
+	public int getChild(int node, int i) {
+		int child = firstChildren[node];
+		for (int skip = i; skip > 0 && child >= 0; skip--) {
+			child = nextSiblings[child];
+		}
+		if (child < 0) {
+			throw new IndexOutOfBoundsException("child " + i + " of node " + node);
+		}
+		return child;
+	}
+
+	public int getChildCount(int node) {
+		int count = 0;
+		for (int child = firstChildren[node]; child >= 0; child = nextSiblings[child]) {
+			count++;
+		}
+		return count;
+	}
+
+	public String getValue(int node) {
+		int value = values[node];
+		if (kinds[node] == TreeNodeKind.ID.ordinal()) {
+			return symbolTable.getName(value);
+		} else if (kinds[node] == TreeNodeKind.NUM.ordinal()) {
+			return value >= 0 ? Integer.toString(value) : strings.get(-1 - value);
+		}
+		return value >= 0 ? strings.get(value) : null;
+	}
+
+	public void setValue(int node, String value) {
+		values[node] = value == null ? -1 : stringIndex(value);
+	}
+
+	// Whether node has the value fromNode, of the same kind, has in from,
+	// with stringMap from internStrings(from) and symbolMap from
+	// mapSymbols(from).
+	public boolean hasSameValue(int node, SyntaxTree from, int fromNode, int[] stringMap, int[] symbolMap) {
+		int value = values[node];
+		int fromValue = from.values[fromNode];
+		if (kinds[node] == TreeNodeKind.ID.ordinal()) {
+			return symbolMap[fromValue] == value;
+		} else if (kinds[node] == TreeNodeKind.NUM.ordinal()) {
+			return fromValue >= 0 ? value == fromValue : value == -1 - stringMap[-1 - fromValue];
+		}
+		return fromValue >= 0 ? value == stringMap[fromValue] : value == -1;
+	}
+
+	// gives node, which is not an ID or NUM, the value fromNode has in from,
+	// with stringMap from internStrings(from)
+	public void copyValue(int node, SyntaxTree from, int fromNode, int[] stringMap) {
+		int fromValue = from.values[fromNode];
+		values[node] = fromValue >= 0 ? stringMap[fromValue] : -1;
+	}
+
+	// The symbol in this tree's table of each symbol of other's, or -1 for a
+	// name this tree's table does not have.
+	public int[] mapSymbols(SyntaxTree other) {
+		int[] map = new int[other.symbolTable.size()];
+		for (int symbol = 0; symbol < map.length; symbol++) {
+			map[symbol] = other.symbolTable == symbolTable ? symbol : symbolTable.lookup(other.symbolTable.getName(symbol));
+		}
+		return map;
+	}
+
+	public int getSymbol(int node) {
+		return kinds[node] == TreeNodeKind.ID.ordinal() ? values[node] : -1;
+	}
+
+	// the value of a NUM node
+	public int getNumber(int node) {
+		int value = values[node];
+		return value >= 0 ? value : Integer.parseInt(strings.get(-1 - value));
+	}
+
+	public Type getType(int node) {
+		return types[node] < 0 ? null : TYPES[types[node]];
+	}
+
+	public void setType(int node, Type type) {
+		types[node] = type == null ? -1 : (byte) type.ordinal();
+	}
+
+	public int getDec(int node) {
+		return decs[node];
+	}
+
+	public void setDec(int node, int dec) {
+		decs[node] = dec;
+	}
+
+	public int getDepth(int node) {
+		return depths[node];
+	}
+
+	public void setDepth(int node, int depth) {
+		depths[node] = depth;
+	}
+
+	public int getPosition(int node) {
+		return positions[node];
+	}
+
+	public void setPosition(int node, int position) {
+		positions[node] = position;
+	}
+
+	public Declaration getDeclaration(int node) {
+		return declarations[node];
+	}
+
+	public void setDeclaration(int node, Declaration declaration) {
+		declarations[node] = declaration;
+	}
+
+	// Records node as the next top-level declaration, starting at token
+	// firstToken of the TokenStream the tree was parsed from. Declaration i
+	// spans tokens [getDeclarationToken(i), getDeclarationToken(i+1)), the
+	// last one up to the closing T_EOF.
+	public void addDeclaration(int node, int firstToken) {
+		if (declarationCount == declarationNodes.length) {
+			declarationNodes = Arrays.copyOf(declarationNodes, declarationCount * 2);
+			declarationTokens = Arrays.copyOf(declarationTokens, declarationCount * 2);
+		}
+		declarationNodes[declarationCount] = node;
+		declarationTokens[declarationCount] = firstToken;
+		declarationCount++;
+	}
+
+	public int getDeclarationCount() {
+		return declarationCount;
+	}
+
+	public int getDeclarationNode(int i) {
+		return declarationNodes[i];
+	}
+
+	public int getDeclarationToken(int i) {
+		return declarationTokens[i];
+	}
+
+	// Makes the first count of nodes the children of parent, in order, and
+	// the top-level declarations, with the first tokens in tokens.
+	public void setDeclarations(int parent, int[] nodes, int[] tokens, int count) {
+		declarationNodes = nodes;
+		declarationTokens = tokens;
+		declarationCount = count;
+		firstChildren[parent] = count > 0 ? nodes[0] : -1;
+		lastChildren[parent] = count > 0 ? nodes[count - 1] : -1;
+		for (int i = 0; i < count; i++) {
+			nextSiblings[nodes[i]] = i + 1 < count ? nodes[i + 1] : -1;
+		}
+	}
+
+	// moves the lines of node and all nodes under it by shift
+	public void shiftLines(int node, int shift) {
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = node;
+		while (top > 0) {
+			int next = stack[--top];
+			lines[next] += shift;
+			for (int child = firstChildren[next]; child >= 0; child = nextSiblings[child]) {
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, top * 2);
+				}
+				stack[top++] = child;
+			}
+		}
+	}
+
+	// Counts node and all nodes under it as no longer in the tree, as when
+	// BPLParser.reparse() replaces the declaration they make.
+	public void release(int node) {
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = node;
+		while (top > 0) {
+			int next = stack[--top];
+			released++;
+			for (int child = firstChildren[next]; child >= 0; child = nextSiblings[child]) {
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, top * 2);
+				}
+				stack[top++] = child;
+			}
+		}
+	}
+
+	// nodes given to release() since the tree was parsed or compacted
+	public int getReleasedCount() {
+		return released;
+	}
+
+	// A copy of the nodes node 0, the root, and those under it, in the same
+	// order, the others left out, with the strings they use and the same
+	// top-level declarations. What the type checker set is not copied,
+	// including the values it gives VAR, ARRAY_VAR, POINTER_VAR, ADDRESS_F
+	// and DEREF_F nodes, so the copy is as parsing would leave it.
+	public SyntaxTree compact() {
+		int[] map = new int[size];
+		Arrays.fill(map, -1);
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int next = stack[--top];
+			map[next] = 0;
+			for (int child = firstChildren[next]; child >= 0; child = nextSiblings[child]) {
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, top * 2);
+				}
+				stack[top++] = child;
+			}
+		}
+		int count = 0;
+		for (int node = 0; node < size; node++) {
+			if (map[node] == 0) {
+				map[node] = count++;
+			}
+		}
+
+		SyntaxTree copy = new SyntaxTree(symbolTable, Math.max(16, count));
+		byte id = (byte) TreeNodeKind.ID.ordinal();
+		byte num = (byte) TreeNodeKind.NUM.ordinal();
+		for (int node = 0; node < size; node++) {
+			if (map[node] < 0) {
+				continue;
+			}
+			int value = values[node];
+			TreeNodeKind kind = KINDS[kinds[node]];
+			if (kind == TreeNodeKind.VAR || kind == TreeNodeKind.ARRAY_VAR || kind == TreeNodeKind.POINTER_VAR
+					|| kind == TreeNodeKind.ADDRESS_F || kind == TreeNodeKind.DEREF_F) {
+				value = -1;
+			} else if (kinds[node] == num) {
+				value = value >= 0 ? value : -1 - copy.stringIndex(strings.get(-1 - value));
+			} else if (kinds[node] != id && value >= 0) {
+				value = copy.stringIndex(strings.get(value));
+			}
+			int added = copy.add(kind, lines[node], value);
+			copy.firstChildren[added] = firstChildren[node] < 0 ? -1 : map[firstChildren[node]];
+			copy.lastChildren[added] = lastChildren[node] < 0 ? -1 : map[lastChildren[node]];
+			copy.nextSiblings[added] = nextSiblings[node] < 0 ? -1 : map[nextSiblings[node]];
+		}
+		for (int i = 0; i < declarationCount; i++) {
+			copy.addDeclaration(map[declarationNodes[i]], declarationTokens[i]);
+		}
+		return copy;
+	}
+
+	// bytes writeTo() needs for this tree
+	public int serializedSize() {
+		long bytes = 7 * 4 + size * (9 * 4 + 2) + declarationCount * 2 * 4;
+		for (int i = 0; i < strings.size(); i++) {
+			bytes += 4 + 2 * strings.get(i).length();
+		}
+		for (int symbol = 0; symbol < symbolTable.size(); symbol++) {
+			bytes += 4 + 2 * symbolTable.getName(symbol).length();
+		}
+		for (Declaration declaration : descriptorTable(new IdentityHashMap<Declaration, Integer>())) {
+			bytes += 4 + 2 * declaration.getName().length() + 5 * 4;
+			if (declaration.getStorage() == Declaration.Storage.FUNCTION) {
+				bytes += declaration.getParamCount() * 4 + 4;
+				String[] dependencies = declaration.getDependencies();
+				for (int i = 0; dependencies != null && i < dependencies.length; i++) {
+					bytes += 4 + 2 * dependencies[i].length();
+				}
+			}
+		}
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("tree too large to serialize");
+		}
+		return (int) bytes;
+	}
+
+	// Writes the tree at out's position: a header, the int arrays, the
+	// declaration index, the strings and symbol names, the descriptors, then
+	// the byte arrays, all in out's byte order. Nodes refer to descriptors
+	// by their index in the table written.
+	public void writeTo(ByteBuffer out) {
+		IdentityHashMap<Declaration, Integer> descriptorIds = new IdentityHashMap<Declaration, Integer>();
+		ArrayList<Declaration> descriptors = descriptorTable(descriptorIds);
+		out.putInt(MAGIC).putInt(FORMAT).putInt(size).putInt(declarationCount).putInt(strings.size()).putInt(symbolTable.size()).putInt(descriptors.size());
+		int[] ids = new int[size];
+		for (int node = 0; node < size; node++) {
+			ids[node] = declarations[node] == null ? -1 : descriptorIds.get(declarations[node]);
+		}
+		putInts(out, lines, size);
+		putInts(out, firstChildren, size);
+		putInts(out, lastChildren, size);
+		putInts(out, nextSiblings, size);
+		putInts(out, values, size);
+		putInts(out, decs, size);
+		putInts(out, depths, size);
+		putInts(out, positions, size);
+		putInts(out, ids, size);
+		putInts(out, declarationNodes, declarationCount);
+		putInts(out, declarationTokens, declarationCount);
+		for (int i = 0; i < strings.size(); i++) {
+			putString(out, strings.get(i));
+		}
+		for (int symbol = 0; symbol < symbolTable.size(); symbol++) {
+			putString(out, symbolTable.getName(symbol));
+		}
+		for (Declaration declaration : descriptors) {
+			putString(out, declaration.getName());
+			out.putInt(declaration.getType().ordinal()).putInt(declaration.getStorage().ordinal());
+			out.putInt(declaration.getSlot()).putInt(declaration.getArrayLength());
+			if (declaration.getStorage() == Declaration.Storage.FUNCTION) {
+				out.putInt(declaration.getParamCount());
+				for (int i = 0; i < declaration.getParamCount(); i++) {
+					out.putInt(declaration.getParamType(i).ordinal());
+				}
+				String[] dependencies = declaration.getDependencies();
+				out.putInt(dependencies == null ? -1 : dependencies.length);
+				for (int i = 0; dependencies != null && i < dependencies.length; i++) {
+					putString(out, dependencies[i]);
+				}
+			} else {
+				out.putInt(-1);
+			}
+		}
+		out.put(kinds, 0, size);
+		out.put(types, 0, size);
+	}
+
+	// Reads a tree written by writeTo() from in's position, with a new symbol
+	// table holding the same symbol IDs. Returns null if in does not start
+	// with a tree in this format.
+	public static SyntaxTree readFrom(ByteBuffer in) {
+		if (in.remaining() < 7 * 4 || in.getInt() != MAGIC || in.getInt() != FORMAT) {
+			return null;
+		}
+		int size = in.getInt();
+		int declarationCount = in.getInt();
+		int stringCount = in.getInt();
+		int symbolCount = in.getInt();
+		int descriptorCount = in.getInt();
+		if (size < 0 || declarationCount < 0 || stringCount < 0 || symbolCount < 0 || descriptorCount < 0
+				|| (long) size * (9 * 4 + 2) + (long) declarationCount * 2 * 4 > in.remaining()) {
+			return null;
+		}
+		SymbolTable symbolTable = new SymbolTable();
+		SyntaxTree tree = new SyntaxTree(symbolTable, Math.max(16, size));
+		tree.size = size;
+		getInts(in, tree.lines, size);
+		getInts(in, tree.firstChildren, size);
+		getInts(in, tree.lastChildren, size);
+		getInts(in, tree.nextSiblings, size);
+		getInts(in, tree.values, size);
+		getInts(in, tree.decs, size);
+		getInts(in, tree.depths, size);
+		getInts(in, tree.positions, size);
+		int[] ids = new int[size];
+		getInts(in, ids, size);
+		tree.declarationNodes = new int[Math.max(16, declarationCount)];
+		tree.declarationTokens = new int[Math.max(16, declarationCount)];
+		tree.declarationCount = declarationCount;
+		getInts(in, tree.declarationNodes, declarationCount);
+		getInts(in, tree.declarationTokens, declarationCount);
+		for (int i = 0; i < stringCount; i++) {
+			tree.stringIndex(getString(in));
+		}
+		for (int symbol = 0; symbol < symbolCount; symbol++) {
+			symbolTable.intern(getString(in));
+		}
+		Declaration[] descriptors = new Declaration[descriptorCount];
+		for (int i = 0; i < descriptorCount; i++) {
+			String name = getString(in);
+			Type type = TYPES[in.getInt()];
+			Declaration.Storage storage = STORAGES[in.getInt()];
+			int slot = in.getInt();
+			int arrayLength = in.getInt();
+			int paramCount = in.getInt();
+			Type[] params = paramCount < 0 ? null : new Type[paramCount];
+			for (int j = 0; j < paramCount; j++) {
+				params[j] = TYPES[in.getInt()];
+			}
+			descriptors[i] = new Declaration(name, type, storage, slot, arrayLength, params);
+			if (params != null) {
+				int dependencyCount = in.getInt();
+				String[] dependencies = dependencyCount < 0 ? null : new String[dependencyCount];
+				for (int j = 0; j < dependencyCount; j++) {
+					dependencies[j] = getString(in);
+				}
+				descriptors[i].setDependencies(dependencies);
+			}
+		}
+		for (int node = 0; node < size; node++) {
+			tree.declarations[node] = ids[node] < 0 ? null : descriptors[ids[node]];
+		}
+		in.get(tree.kinds, 0, size);
+		in.get(tree.types, 0, size);
+		return tree;
+	}
+
+	// the distinct descriptors of the nodes in the order first used, with
+	// the index of each put in ids
+	private ArrayList<Declaration> descriptorTable(IdentityHashMap<Declaration, Integer> ids) {
+		ArrayList<Declaration> descriptors = new ArrayList<Declaration>();
+		for (int node = 0; node < size; node++) {
+			Declaration declaration = declarations[node];
+			if (declaration != null && !ids.containsKey(declaration)) {
+				ids.put(declaration, descriptors.size());
+				descriptors.add(declaration);
+			}
+		}
+		return descriptors;
+	}
+
+	private static void putInts(ByteBuffer out, int[] from, int count) {
+		out.asIntBuffer().put(from, 0, count);
+		out.position(out.position() + 4 * count);
+	}
+
+	private static void getInts(ByteBuffer in, int[] to, int count) {
+		IntBuffer ints = in.asIntBuffer();
+		ints.get(to, 0, count);
+		in.position(in.position() + 4 * count);
+	}
+
+	private static void putString(ByteBuffer out, String value) {
+		out.putInt(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			out.putChar(value.charAt(i));
+		}
+	}
+
+	private static String getString(ByteBuffer in) {
+		char[] chars = new char[in.getInt()];
+		in.asCharBuffer().get(chars);
+		in.position(in.position() + 2 * chars.length);
+		return new String(chars);
+	}
+
+	public SymbolTable getSymbolTable() {
+		return symbolTable;
+	}
+}
@@ -1,29 +1,25 @@
-import java.util.concurrent.atomic.AtomicInteger;
-
 /* Token object that stores the Kind, String value, and the line number it was 
- * found. 
+ * found. T_ID tokens also carry the identifier's SymbolTable symbol ID.
  * 
  * Name: Aaron (Shang Wei) Young
  * CSCI 331 Compilers Spring 2016
 */
 
 public class Token {
-	static AtomicInteger nextId = new AtomicInteger();
-	
 	private Kind kind;
 	private String value;
 	private int line;
-	private final int id;
+	private int symbol;
 	
 	public Token(Kind kind, String value, int line) {
+		this(kind, value, line, -1);
+	}
+	
+	public Token(Kind kind, String value, int line, int symbol) {
 		this.kind = kind;
 		this.value = value;
 		this.line = line;
-		this.id = nextId.incrementAndGet();
-	}
-	
-	public int getID() {
-		return this.id;
+		this.symbol = symbol;
 	}
 	
 	public String getValue() {
@@ -34,6 +30,10 @@ public class Token {
 		return this.line;
 	}
 	
+	public int getSymbol() {
+		return this.symbol;
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (!(obj instanceof Token)) { return false; }
@@ -49,7 +49,7 @@ public class Token {
 	
 	@Override
 	public String toString() {
-		String s = "Token " + this.kind + ",\tstring " + this.value + ",\tline number " + this.line + " ID: " + this.id;
+		String s = "Token " + this.kind + ",\tstring " + this.value + ",\tline number " + this.line;
 		return s;
 	}
 }
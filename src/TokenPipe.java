@@ -0,0 +1,197 @@
+/* Bounded single-producer/single-consumer ring of token batches between a
+ * scanner thread and the parser, see BPLScanner.scanPipelined(). The scanner
+ * fills the batch at the tail of the ring and publishes it by moving the
+ * tail; the parser appends the batch at the head to its own TokenStream and
+ * frees it by moving the head. A full ring stops the scanner and an empty one
+ * stops the parser until the other side moves.
+ *
+ * The consumer's TokenStream has its own SymbolTable, so the parser never
+ * reads the one the scanner is interning into. Symbol IDs are handed out in
+ * order of first appearance, so each batch carries the names of the symbols
+ * first seen in it, and interning them in order on the consumer side gives
+ * the same IDs.
+ *
+ * The last batch published carries the scanner error, if any, which the
+ * consumer sets on its TokenStream once it has taken every token before it.
+*/
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+public class TokenPipe {
+	private Batch[] ring;
+	private int mask;
+	private volatile long head;
+	private volatile long tail;
+	private volatile Thread waitingConsumer;
+	private volatile Thread waitingProducer;
+	private volatile boolean cancelled;
+
+	// producer side
+	private SymbolTable producerSymbols;
+	private Batch batch;
+	private int namesSent;
+
+	// consumer side
+	private TokenStream tokens;
+	private boolean finished;
+
+	// ringSize must be a power of two
+	public TokenPipe(char[] source, int sourceEnd, SymbolTable producerSymbols, int ringSize, int batchSize) {
+		this.ring = new Batch[ringSize];
+		for (int i = 0; i < ringSize; i++) {
+			ring[i] = new Batch(batchSize);
+		}
+		this.mask = ringSize - 1;
+		this.head = 0;
+		this.tail = 0;
+		this.cancelled = false;
+		this.producerSymbols = producerSymbols;
+		this.batch = null;
+		this.namesSent = producerSymbols.size();
+		this.tokens = new TokenStream(source, sourceEnd, new SymbolTable(), Math.max(16, sourceEnd / 4));
+		for (int symbol = 0; symbol < namesSent; symbol++) {
+			tokens.getSymbolTable().intern(producerSymbols.getName(symbol));
+		}
+		this.finished = false;
+	}
+
+	// Producer: adds a token to the current batch, publishing the batch when it
+	// is full. Returns false if the consumer has cancelled the pipe.
+	public boolean add(Kind kind, int start, int length, int line, int symbol) {
+		if (batch == null && !acquire()) {
+			return false;
+		}
+		int i = batch.count++;
+		batch.kinds[i] = kind;
+		batch.starts[i] = start;
+		batch.lengths[i] = length;
+		batch.lines[i] = line;
+		batch.symbols[i] = symbol;
+		while (namesSent < producerSymbols.size()) {
+			batch.addName(producerSymbols.getName(namesSent++));
+		}
+		if (batch.count == batch.kinds.length) {
+			publish();
+		}
+		return true;
+	}
+
+	// Producer: publishes the last batch, ending the stream with error (which
+	// may be null).
+	public void finish(BPLScannerException error) {
+		if (batch == null && !acquire()) {
+			return;
+		}
+		batch.last = true;
+		batch.error = error;
+		publish();
+	}
+
+	// Consumer: the TokenStream that take() appends to
+	public TokenStream getTokens() {
+		return tokens;
+	}
+
+	// Consumer: waits for the next batch and appends it to getTokens().
+	// Returns false once the last batch has been taken.
+	public boolean take() {
+		if (finished) {
+			return false;
+		}
+		if (head == tail) {
+			waitingConsumer = Thread.currentThread();
+			while (head == tail) {
+				LockSupport.park(this);
+			}
+			waitingConsumer = null;
+		}
+		Batch next = ring[(int) head & mask];
+		for (int i = 0; i < next.nameCount; i++) {
+			tokens.getSymbolTable().intern(next.names[i]);
+		}
+		for (int i = 0; i < next.count; i++) {
+			tokens.add(next.kinds[i], next.starts[i], next.lengths[i], next.lines[i], next.symbols[i]);
+		}
+		if (next.last) {
+			tokens.setError(next.error);
+			finished = true;
+		}
+		next.clear();
+		head++;
+		wake(waitingProducer);
+		return true;
+	}
+
+	// Consumer: stops the producer once it next waits for a free batch
+	public void cancel() {
+		cancelled = true;
+		wake(waitingProducer);
+	}
+
+	// waits for the batch at the tail to be free; false if cancelled
+	private boolean acquire() {
+		if (tail - head == ring.length) {
+			waitingProducer = Thread.currentThread();
+			while (tail - head == ring.length && !cancelled) {
+				LockSupport.park(this);
+			}
+			waitingProducer = null;
+		}
+		if (cancelled) {
+			return false;
+		}
+		batch = ring[(int) tail & mask];
+		return true;
+	}
+
+	private void publish() {
+		batch = null;
+		tail++;
+		wake(waitingConsumer);
+	}
+
+	private static void wake(Thread thread) {
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	// one ring slot: up to kinds.length tokens in struct-of-arrays form
+	private static class Batch {
+		private Kind[] kinds;
+		private int[] starts;
+		private int[] lengths;
+		private int[] lines;
+		private int[] symbols;
+		private int count;
+		private String[] names;
+		private int nameCount;
+		private boolean last;
+		private BPLScannerException error;
+
+		private Batch(int size) {
+			this.kinds = new Kind[size];
+			this.starts = new int[size];
+			this.lengths = new int[size];
+			this.lines = new int[size];
+			this.symbols = new int[size];
+			this.names = new String[16];
+			clear();
+		}
+
+		private void addName(String name) {
+			if (nameCount == names.length) {
+				names = Arrays.copyOf(names, nameCount * 2);
+			}
+			names[nameCount++] = name;
+		}
+
+		private void clear() {
+			count = 0;
+			nameCount = 0;
+			last = false;
+			error = null;
+		}
+	}
+}
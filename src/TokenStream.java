@@ -0,0 +1,408 @@
+/* Struct-of-arrays token storage filled by BPLScanner.scan(). Token i is
+ * described by its Kind, start offset and length in the source text, line
+ * number and (for T_ID) symbol ID, each kept in a primitive int array, so no
+ * object is allocated per token. Lexeme text is only materialized when
+ * getValue(i) is called.
+ *
+ * The arrays are those of chunks, which the stream holds ranges of, each
+ * with a start and line shift added to what the chunk says when a token is
+ * read. A stream filled by add() is one range of one chunk. append() shares
+ * another stream's ranges rather than copying their tokens, shifted as a
+ * whole, which is how BPLScanner.rescan() keeps the tokens before and after
+ * an edit without touching each of them. Short pieces are copied instead,
+ * and a stream made of many more ranges than its size needs is copied into
+ * one chunk, so that ranges stay long and few.
+ *
+ * If the scanner stopped on an error, the stream holds the tokens before it
+ * and getError() returns the exception for the token at index size().
+ *
+ * The span of token i is the source range [getSpanStart(i), getSpanEnd(i)),
+ * which for T_STRING includes the quotes that start and length leave out.
+*/
+
+import java.util.Arrays;
+
+public class TokenStream {
+	private static final Kind[] KINDS = Kind.values();
+	// append() copies pieces of fewer tokens than this, unless they are a
+	// whole range of the other stream
+	private static final int SHARE_MIN = 1024;
+
+	private SourceText text;
+	private SymbolTable symbolTable;
+	// range r is tokens [firsts[r], firsts[r+1]); token i of it is at index
+	// i + offsets[r] of chunks[r], which gives its start startShifts[r] too
+	// early and its line lineShifts[r] too early
+	private Chunk[] chunks;
+	private int[] firsts;
+	private int[] offsets;
+	private int[] startShifts;
+	private int[] lineShifts;
+	private int rangeCount;
+	// tokens [0, flatEnd) are those of the first range when it is not
+	// shifted, token i at index i of these, its chunk's arrays; every token
+	// of a stream filled by add()
+	private int[] kinds;
+	private int[] starts;
+	private int[] lengths;
+	private int[] lines;
+	private int[] symbols;
+	private int flatEnd;
+	// the chunk of the last range if add() may append to it, else null
+	private Chunk open;
+	// the range of the last token looked up; lookups on other threads only
+	// make it miss
+	private int cursor;
+	private int size;
+	private BPLScannerException error;
+
+	public TokenStream(char[] source, int sourceEnd, SymbolTable symbolTable, int capacity) {
+		this(new SourceText(source, sourceEnd), symbolTable, capacity);
+	}
+
+	public TokenStream(SourceText text, SymbolTable symbolTable, int capacity) {
+		this.text = text;
+		this.symbolTable = symbolTable;
+		this.chunks = new Chunk[4];
+		this.firsts = new int[5];
+		this.offsets = new int[4];
+		this.startShifts = new int[4];
+		this.lineShifts = new int[4];
+		this.rangeCount = 0;
+		this.kinds = null;
+		this.starts = null;
+		this.lengths = null;
+		this.lines = null;
+		this.symbols = null;
+		this.flatEnd = 0;
+		this.open = null;
+		this.cursor = 0;
+		this.size = 0;
+		this.error = null;
+		openChunk(capacity);
+	}
+
+	public void add(Kind kind, int start, int length, int line, int symbol) {
+		if (open == null) {
+			openChunk(16);
+		}
+		int at = size + offsets[rangeCount - 1];
+		if (at == open.kinds.length) {
+			open.grow(at + 1);
+			updateFlat();
+		}
+		open.kinds[at] = kind.ordinal();
+		open.starts[at] = start;
+		open.lengths[at] = length;
+		open.lines[at] = line;
+		open.symbols[at] = symbol;
+		size++;
+		firsts[rangeCount] = size;
+		if (rangeCount == 1) {
+			flatEnd = size;
+		}
+	}
+
+	// Appends tokens [begin, end) of other, moving their starts by startShift
+	// and their line numbers by lineShift. Both streams must share a symbol
+	// table. The tokens are shared with other, and add() never changes
+	// them, in either stream.
+	public void append(TokenStream other, int begin, int end, int startShift, int lineShift) {
+		int i = begin;
+		while (i < end) {
+			int r = other.range(i);
+			int pieceEnd = Math.min(end, other.firsts[r + 1]);
+			boolean whole = i == other.firsts[r] && pieceEnd == other.firsts[r + 1];
+			if (whole || pieceEnd - i >= SHARE_MIN) {
+				share(other.chunks[r], i + other.offsets[r], pieceEnd - i, other.startShifts[r] + startShift, other.lineShifts[r] + lineShift);
+			} else {
+				copy(other, r, i, pieceEnd, startShift, lineShift, null);
+			}
+			i = pieceEnd;
+		}
+		if (rangeCount > 16 + 2 * (size / SHARE_MIN)) {
+			compact();
+		}
+	}
+
+	// Appends tokens [begin, end) of other, moving their line numbers by
+	// lineShift. other may have its own symbol table: its identifiers are
+	// interned into this stream's table in the order they appear.
+	public void appendInterned(TokenStream other, int begin, int end, int lineShift) {
+		int[] symbolMap = new int[other.symbolTable.size()];
+		Arrays.fill(symbolMap, -1);
+		int i = begin;
+		while (i < end) {
+			int r = other.range(i);
+			int pieceEnd = Math.min(end, other.firsts[r + 1]);
+			copy(other, r, i, pieceEnd, 0, lineShift, symbolMap);
+			i = pieceEnd;
+		}
+	}
+
+	// appends chunk's tokens [from, from + count) as a range of their own
+	private void share(Chunk chunk, int from, int count, int startShift, int lineShift) {
+		if (rangeCount > 0 && firsts[rangeCount - 1] == size) {
+			// the last range is an empty open chunk
+			rangeCount--;
+		}
+		addRange(chunk, from - size, startShift, lineShift);
+		size += count;
+		firsts[rangeCount] = size;
+		open = null;
+		updateFlat();
+	}
+
+	// copies tokens [begin, end) of range r of other into the open chunk,
+	// with their symbols mapped to this stream's table if symbolMap is not
+	// null
+	private void copy(TokenStream other, int r, int begin, int end, int startShift, int lineShift, int[] symbolMap) {
+		int count = end - begin;
+		if (open == null) {
+			openChunk(Math.max(16, count));
+		}
+		int at = size + offsets[rangeCount - 1];
+		if (at + count > open.kinds.length) {
+			open.grow(at + count);
+		}
+		Chunk from = other.chunks[r];
+		int index = begin + other.offsets[r];
+		startShift += other.startShifts[r];
+		lineShift += other.lineShifts[r];
+		System.arraycopy(from.kinds, index, open.kinds, at, count);
+		System.arraycopy(from.lengths, index, open.lengths, at, count);
+		for (int i = 0; i < count; i++) {
+			open.starts[at + i] = from.starts[index + i] + startShift;
+			open.lines[at + i] = from.lines[index + i] + lineShift;
+		}
+		if (symbolMap == null) {
+			System.arraycopy(from.symbols, index, open.symbols, at, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				int symbol = from.symbols[index + i];
+				if (symbol >= 0) {
+					if (symbolMap[symbol] < 0) {
+						symbolMap[symbol] = symbolTable.intern(other.symbolTable.getName(symbol));
+					}
+					symbol = symbolMap[symbol];
+				}
+				open.symbols[at + i] = symbol;
+			}
+		}
+		size += count;
+		firsts[rangeCount] = size;
+		updateFlat();
+	}
+
+	// copies every token into one chunk, which becomes the only range
+	private void compact() {
+		TokenStream flat = new TokenStream(text, symbolTable, size + 16);
+		for (int r = 0; r < rangeCount; r++) {
+			flat.copy(this, r, firsts[r], firsts[r + 1], 0, 0, null);
+		}
+		this.chunks = flat.chunks;
+		this.firsts = flat.firsts;
+		this.offsets = flat.offsets;
+		this.startShifts = flat.startShifts;
+		this.lineShifts = flat.lineShifts;
+		this.rangeCount = flat.rangeCount;
+		this.open = flat.open;
+		this.cursor = 0;
+		updateFlat();
+	}
+
+	private void updateFlat() {
+		if (offsets[0] == 0 && startShifts[0] == 0 && lineShifts[0] == 0) {
+			kinds = chunks[0].kinds;
+			starts = chunks[0].starts;
+			lengths = chunks[0].lengths;
+			lines = chunks[0].lines;
+			symbols = chunks[0].symbols;
+			flatEnd = firsts[1];
+		} else {
+			flatEnd = 0;
+		}
+	}
+
+	// starts a range of a new chunk that add() appends to
+	private void openChunk(int capacity) {
+		open = new Chunk(capacity);
+		addRange(open, -size, 0, 0);
+		firsts[rangeCount] = size;
+		updateFlat();
+	}
+
+	private void addRange(Chunk chunk, int offset, int startShift, int lineShift) {
+		if (rangeCount == chunks.length) {
+			int capacity = rangeCount * 2;
+			chunks = Arrays.copyOf(chunks, capacity);
+			firsts = Arrays.copyOf(firsts, capacity + 1);
+			offsets = Arrays.copyOf(offsets, capacity);
+			startShifts = Arrays.copyOf(startShifts, capacity);
+			lineShifts = Arrays.copyOf(lineShifts, capacity);
+		}
+		chunks[rangeCount] = chunk;
+		firsts[rangeCount] = size;
+		offsets[rangeCount] = offset;
+		startShifts[rangeCount] = startShift;
+		lineShifts[rangeCount] = lineShift;
+		rangeCount++;
+	}
+
+	// the range holding token i
+	private int range(int i) {
+		int r = cursor;
+		if (i >= firsts[r] && i < firsts[r + 1]) {
+			return r;
+		}
+		int low = 0;
+		int high = rangeCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (firsts[mid] <= i) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		cursor = low;
+		return low;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Kind getKind(int i) {
+		if (i < flatEnd) {
+			return KINDS[kinds[i]];
+		}
+		int r = range(i);
+		return KINDS[chunks[r].kinds[i + offsets[r]]];
+	}
+
+	public int getStart(int i) {
+		if (i < flatEnd) {
+			return starts[i];
+		}
+		int r = range(i);
+		return chunks[r].starts[i + offsets[r]] + startShifts[r];
+	}
+
+	public int getLength(int i) {
+		if (i < flatEnd) {
+			return lengths[i];
+		}
+		int r = range(i);
+		return chunks[r].lengths[i + offsets[r]];
+	}
+
+	public int getSpanStart(int i) {
+		if (i < flatEnd) {
+			return kinds[i] == Kind.T_STRING.ordinal() ? starts[i] - 1 : starts[i];
+		}
+		int r = range(i);
+		int start = chunks[r].starts[i + offsets[r]] + startShifts[r];
+		return chunks[r].kinds[i + offsets[r]] == Kind.T_STRING.ordinal() ? start - 1 : start;
+	}
+
+	public int getSpanEnd(int i) {
+		if (i < flatEnd) {
+			return kinds[i] == Kind.T_STRING.ordinal() ? starts[i] + lengths[i] + 1 : starts[i] + lengths[i];
+		}
+		int r = range(i);
+		int end = chunks[r].starts[i + offsets[r]] + startShifts[r] + chunks[r].lengths[i + offsets[r]];
+		return chunks[r].kinds[i + offsets[r]] == Kind.T_STRING.ordinal() ? end + 1 : end;
+	}
+
+	// number of leading tokens whose spans end before offset, found by binary
+	// search since spans are in source order and do not overlap
+	public int countEndingBefore(int offset) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getSpanEnd(mid) < offset) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public int getLine(int i) {
+		if (i < flatEnd) {
+			return lines[i];
+		}
+		int r = range(i);
+		return chunks[r].lines[i + offsets[r]] + lineShifts[r];
+	}
+
+	public int getSymbol(int i) {
+		if (i < flatEnd) {
+			return symbols[i];
+		}
+		int r = range(i);
+		return chunks[r].symbols[i + offsets[r]];
+	}
+
+	public String getValue(int i) {
+		Kind kind = getKind(i);
+		if (kind == Kind.T_ID) {
+			return symbolTable.getName(getSymbol(i));
+		} else if (kind == Kind.T_NUM || kind == Kind.T_STRING) {
+			int start = getStart(i);
+			return text.substring(start, start + getLength(i));
+		}
+		return BPLScanner.getLexeme(kind);
+	}
+
+	public Token getToken(int i) {
+		return new Token(getKind(i), getValue(i), getLine(i), getSymbol(i));
+	}
+
+	// the source the tokens were scanned from, which rescan() edits
+	public SourceText getText() {
+		return text;
+	}
+
+	public SymbolTable getSymbolTable() {
+		return symbolTable;
+	}
+
+	public BPLScannerException getError() {
+		return error;
+	}
+
+	public void setError(BPLScannerException error) {
+		this.error = error;
+	}
+
+	// tokens in struct-of-arrays form, shared by the streams holding ranges
+	// of it
+	private static class Chunk {
+		private int[] kinds;
+		private int[] starts;
+		private int[] lengths;
+		private int[] lines;
+		private int[] symbols;
+
+		private Chunk(int capacity) {
+			this.kinds = new int[capacity];
+			this.starts = new int[capacity];
+			this.lengths = new int[capacity];
+			this.lines = new int[capacity];
+			this.symbols = new int[capacity];
+		}
+
+		private void grow(int needed) {
+			int capacity = Math.max(Math.max(16, kinds.length * 2), needed);
+			kinds = Arrays.copyOf(kinds, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			symbols = Arrays.copyOf(symbols, capacity);
+		}
+	}
+}
@@ -1,87 +1,118 @@
 import java.util.ArrayList;
+import java.util.List;
 
+// View of node id of a SyntaxTree. Views hold no state of their own, so any
+// number of them may be made for the same node.
 public class TreeNode {
-  private TreeNodeKind kind;
-  private int line;
-  private String value;
-  private ArrayList<TreeNode> children;
-  private TreeNode declaration;
-  private Type type;
-  private int depth;
-  private int position;
-
-  public TreeNode(TreeNodeKind kind, int line, String value) {
-    this.kind = kind;
-    this.line = line;
-    this.value = value;
-    this.children = new ArrayList<TreeNode>();
-    this.declaration = null;
-    this.type = null;
-    this.depth = -1;
-    this.position = -1;
+  private SyntaxTree tree;
+  private int id;
+
+  public TreeNode(SyntaxTree tree, int id) {
+    this.tree = tree;
+    this.id = id;
+  }
+
+  public SyntaxTree getTree() {
+    return this.tree;
+  }
+
+  public int getId() {
+    return this.id;
   }
 
   public void setDepth(int d) {
-    this.depth = d;
+    tree.setDepth(id, d);
   }
 
   public int getDepth() {
-    return this.depth;
+    return tree.getDepth(id);
   }
 
   public void setPosition(int p) {
-    this.position = p;
+    tree.setPosition(id, p);
   }
 
   public int getPosition() {
-    return this.position;
+    return tree.getPosition(id);
   }
 
   public void setType(Type type) {
-    this.type = type;
+    tree.setType(id, type);
   }
 
   public Type getType() {
-    return this.type;
+    return tree.getType(id);
   }
 
   public String getValue() {
-    return this.value;
+    return tree.getValue(id);
   }
 
   public void setValue(String val) {
-    if (this.value != null) {
+    if (getValue() != null) {
       System.out.println(this + " value overwritten!");
     }
-    this.value = val;
+    tree.setValue(id, val);
+  }
+
+  public int getSymbol() {
+    return tree.getSymbol(id);
+  }
+
+  // value of a NUM node
+  public int getNumber() {
+    return tree.getNumber(id);
   }
 
   public void setDec(TreeNode t) {
-    this.declaration = t;
+    tree.setDec(id, t == null ? -1 : t.id);
   }
 
   public TreeNode getDec() {
-    return this.declaration;
+    int dec = tree.getDec(id);
+    return dec < 0 ? null : tree.getNode(dec);
+  }
+
+  // the descriptor of a declaration, or of the one an ID is linked to
+  public void setDeclaration(Declaration declaration) {
+    tree.setDeclaration(id, declaration);
   }
 
-  public ArrayList<TreeNode> getChildren() {
-    return this.children;
+  public Declaration getDeclaration() {
+    return tree.getDeclaration(id);
+  }
+
+  // a new list of views of the children
+  public List<TreeNode> getChildren() {
+    ArrayList<TreeNode> children = new ArrayList<TreeNode>();
+    for (int child = tree.getFirstChild(id); child >= 0; child = tree.getNextSibling(child)) {
+      children.add(tree.getNode(child));
+    }
+    return children;
+  }
+
+  public TreeNode getChild(int i) {
+    return tree.getNode(tree.getChild(id, i));
+  }
+
+  public int getChildCount() {
+    return tree.getChildCount(id);
   }
 
   public void addChild(TreeNode t) {
-    children.add(t);
+    tree.addChild(id, t.id);
   }
 
   public int getLine() {
-    return this.line;
+    return tree.getLine(id);
   }
 
   public TreeNodeKind getKind() {
-    return this.kind;
+    return tree.getKind(id);
   }
 
   public void setLine(int line) {
-    this.line = line;
+    tree.setLine(id, line);
   }
 
   @Override
@@ -90,13 +121,18 @@ public class TreeNode {
     if (obj == this) { return true; }
 
     TreeNode t = (TreeNode) obj;
-    return (this.kind == t.kind) && this.value.equals(t.value) && (this.line == t.line);
+    return (this.tree == t.tree) && (this.id == t.id);
+  }
+
+  @Override
+  public int hashCode() {
+    return id;
   }
 
   @Override
   public String toString() {
-    boolean isDec = (this.declaration != null);
-    String s = this.kind + ", string: " + this.value + ", line: " + this.line + " type: " + this.type + " dec: " + isDec + " depth: "+ this.depth + " pos: " + this.position + " ";
+    boolean isDec = (getDec() != null);
+    String s = getKind() + ", string: " + getValue() + ", line: " + getLine() + " type: " + getType() + " dec: " + isDec + " depth: "+ getDepth() + " pos: " + getPosition() + " ";
     return s;
   }
 }
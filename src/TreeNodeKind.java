@@ -30,28 +30,21 @@ public enum TreeNodeKind {
 	ARRAY_PARAM(27),
 	POINTER_VAR_DEC(28),
 	ARRAY_VAR_DEC(29),
-	RELOP(30),
-	ADDOP(31),
-	MULOP(32),
-	EQ_REL_OP(33),
-	ARITHM_OP(34),
-	ASSIGN_EXP(35),
-	ARRAY_VAR(36),
-	POINTER_VAR(37),
-	VAR(38),
-	COMP_EXP(39),
-	E(40),
-	T(41),
-	F(42),
-	FACTOR(43),
-	NEG_F(44),
-	ADDRESS_F(45),
-	DEREF_F(46),
-	READ(47),
-	FUN_CALL(48),
-	ARRAY_FACTOR(49),
-	ARGS(50),
-	ARG_LIST(51);
+	ASSIGN_EXP(30),
+	ARRAY_VAR(31),
+	POINTER_VAR(32),
+	VAR(33),
+	REL_EXP(34),
+	ADD_EXP(35),
+	MUL_EXP(36),
+	NEG_F(37),
+	ADDRESS_F(38),
+	DEREF_F(39),
+	READ(40),
+	FUN_CALL(41),
+	ARRAY_FACTOR(42),
+	ARGS(43),
+	ARG_LIST(44);
 	
 	
 	private int id;
@@ -0,0 +1,108 @@
+/* Post-order walk of a parse tree that keeps its own stack of frames
+ * instead of using the Java call stack, so a tree can be as deep as the
+ * heap allows. BPLTypeChecker and BPLCodeGenerator walk expressions with
+ * it, which machine generated programs can nest thousands of levels deep.
+ *
+ * A subclass says which children of a node to walk, and in which order,
+ * through child(); it may skip children or walk nodes further down. Each
+ * node has a value of type R: enter() gives its first one, combine() folds
+ * in the result of each child walked, and exit() turns the last into the
+ * node's result. Walking node n is thus the iterative form of
+ *
+ *	R walk(n) {
+ *		R value = enter(n);
+ *		for (int i = 0; (c = child(n, i, value)) != null; i++) {
+ *			value = combine(n, i, value, walk(c));
+ *		}
+ *		return exit(n, value);
+ *	}
+ *
+ * and the hooks are called in the order that recursion calls them. X is
+ * the exception the hooks may throw; it leaves walk() as it is. walk() may
+ * be called again from inside a hook.
+*/
+
+import java.util.Arrays;
+
+public abstract class TreeWalker<R, X extends Exception> {
+	private TreeNode[] nodes;
+	private int[] steps;
+	private Object[] values;
+	private int top;
+
+	public TreeWalker() {
+		this.nodes = new TreeNode[64];
+		this.steps = new int[64];
+		this.values = new Object[64];
+		this.top = 0;
+	}
+
+	// the value node starts with, before any of its children are walked
+	protected R enter(TreeNode node) throws X {
+		return null;
+	}
+
+	// the node to walk after i children of node have been walked, or null
+	// once node needs no more
+	protected abstract TreeNode child(TreeNode node, int i, R value) throws X;
+
+	// the value of node once the i-th child walked has given result
+	protected R combine(TreeNode node, int i, R value, R result) throws X {
+		return value;
+	}
+
+	// the result of node once all its children have been walked
+	protected R exit(TreeNode node, R value) throws X {
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public R walk(TreeNode root) throws X {
+		int base = top;
+		try {
+			push(root);
+			while (true) {
+				int frame = top - 1;
+				TreeNode node = nodes[frame];
+				R value = (R) values[frame];
+				TreeNode next = child(node, steps[frame], value);
+				if (next != null) {
+					push(next);
+					continue;
+				}
+				R result = exit(node, value);
+				nodes[frame] = null;
+				values[frame] = null;
+				top = frame;
+				if (top == base) {
+					return result;
+				}
+				frame = top - 1;
+				// combine may walk() itself and grow the arrays, so they are
+				// only indexed after it returns
+				value = combine(nodes[frame], steps[frame], (R) values[frame], result);
+				values[frame] = value;
+				steps[frame]++;
+			}
+		} finally {
+			// an exception leaves frames behind; drop them
+			Arrays.fill(nodes, base, top, null);
+			Arrays.fill(values, base, top, null);
+			top = base;
+		}
+	}
+
+	private void push(TreeNode node) throws X {
+		// enter may walk() itself, so the frame is only claimed after it
+		R value = enter(node);
+		if (top == nodes.length) {
+			nodes = Arrays.copyOf(nodes, top * 2);
+			steps = Arrays.copyOf(steps, top * 2);
+			values = Arrays.copyOf(values, top * 2);
+		}
+		nodes[top] = node;
+		steps[top] = 0;
+		values[top] = value;
+		top++;
+	}
+}